@@ -0,0 +1,115 @@
+package top.anufether.pixiv.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import top.anufether.pixiv.dao.DatabaseManager;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/23 15:40
+ * @Description: 数据库基准测试，在预先写入 10 万个作品的临时数据库上测试 checkArtworks / addArtworks 的吞吐量
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DatabaseBenchmark {
+
+    private static final int PRELOADED = 100_000;
+
+    /**
+     * 列表页面中的作品数量
+     */
+    private static final int PAGE_SIZE = 50;
+
+    @Param({"true", "false"})
+    public boolean memoryIndex;
+
+    @Param({"true", "false"})
+    public boolean writeBehind;
+
+    private Path dir;
+
+    private DatabaseManager databaseManager;
+
+    /**
+     * 查询用的作品ID，一半已存在
+     */
+    private int[] ids;
+
+    private int nextId = PRELOADED * 2;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int position;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("database-benchmark");
+        databaseManager = new DatabaseManager();
+        databaseManager.setJarPath(dir.toString() + "/");
+        databaseManager.setMemoryIndex(memoryIndex);
+        databaseManager.setBatchSize(1000);
+        // 预先写入时总是批量写入，避免准备阶段过长，写入完成后再切换到测试的写入方式
+        databaseManager.setWriteBehind(true);
+        databaseManager.load();
+        for (int id = 1; id <= PRELOADED; id++) {
+            databaseManager.addArtworks(id * 2, 1);
+        }
+        databaseManager.flush();
+        databaseManager.setWriteBehind(writeBehind);
+
+        Random random = new Random(42);
+        ids = new int[1 << 16];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = 1 + random.nextInt(PRELOADED * 2);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        databaseManager.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public int checkArtwork(Cursor cursor) {
+        return databaseManager.checkArtworks(ids[cursor.position++ & (ids.length - 1)]);
+    }
+
+    /**
+     * 一次查询一个列表页面中的所有作品
+     */
+    @Benchmark
+    @OperationsPerInvocation(PAGE_SIZE)
+    public Map<Integer, Integer> checkArtworksBulk(Cursor cursor) {
+        List<Integer> page = new ArrayList<>(PAGE_SIZE);
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            page.add(ids[cursor.position++ & (ids.length - 1)]);
+        }
+        return databaseManager.checkArtworks(page);
+    }
+
+    @Benchmark
+    public void addArtwork() {
+        int id;
+        synchronized (this) {
+            id = nextId++;
+        }
+        databaseManager.addArtworks(id, 1);
+    }
+}
@@ -0,0 +1,113 @@
+package top.anufether.pixiv.benchmark;
+
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONObject;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Elements;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import top.anufether.pixiv.spider.Artwork;
+import top.anufether.pixiv.spider.ListPage;
+import top.anufether.pixiv.spider.PageResolver;
+import top.anufether.pixiv.spider.PreloadExtractor;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/23 15:10
+ * @Description: 页面解析基准测试，使用 fixtures 中录制的排行榜与作品页面，对比原有的链式选择器、DOM + JSON 解析
+ * 与当前 PageResolver / PreloadExtractor 的实现。加上 -prof gc 可同时查看每次操作的内存分配
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ParseBenchmark {
+
+    private static final String RANKING_URL = "https://www.pixiv.net/ranking.php?mode=male&p=2";
+
+    private static final String ARTWORK_ID = "120000037";
+
+    private byte[] rankingHtml;
+
+    private byte[] artworkHtml;
+
+    /**
+     * 预先解析的排行榜页面，用于单独比较选择器
+     */
+    private Document rankingDoc;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        rankingHtml = readFixture("ranking.html");
+        artworkHtml = readFixture("artwork.html");
+        rankingDoc = Jsoup.parse(new ByteArrayInputStream(rankingHtml), "UTF-8", RANKING_URL);
+    }
+
+    static byte[] readFixture(String name) throws IOException {
+        try (InputStream in = ParseBenchmark.class.getResourceAsStream("/fixtures/" + name)) {
+            if (in == null) {
+                throw new IOException("找不到测试页面: " + name);
+            }
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * 排行榜页面的 HTML 解析，两种选择方式都需要这一步
+     */
+    @Benchmark
+    public Document rankingParse() throws IOException {
+        return Jsoup.parse(new ByteArrayInputStream(rankingHtml), "UTF-8", RANKING_URL);
+    }
+
+    /**
+     * 原有实现：两组各约 8 次的链式 select
+     */
+    @Benchmark
+    public void rankingSelectLegacy(Blackhole bh) {
+        Elements pages = rankingDoc.select("#wrapper").select("div.layout-body").select("div")
+                .select("div.ui-fixed-container").select("div").select("nav:nth-child(2)").select("ul")
+                .select("li.after").select("a");
+        bh.consume(pages.get(0).absUrl("href"));
+        Elements images = rankingDoc.select("#wrapper").select("div.layout-body").select("div")
+                .select("div.ranking-items-container").select("div.ranking-items.adjust")
+                .select("section.ranking-item");
+        for (Element image : images) {
+            bh.consume(image.attr("data-id"));
+            bh.consume(image.select("div.ranking-image-item").select("a").get(0).absUrl("href"));
+        }
+    }
+
+    @Benchmark
+    public ListPage rankingSelectPrecompiled() {
+        return PageResolver.parseListPage(rankingDoc, RANKING_URL);
+    }
+
+    /**
+     * 原有实现：构建整个作品页面的 DOM，再将 preload 数据完整解析为 JSONObject
+     */
+    @Benchmark
+    public String preloadLegacy() throws IOException {
+        Document doc = Jsoup.parse(new ByteArrayInputStream(artworkHtml), "UTF-8", "");
+        JSONObject obj = JSON.parseObject(doc.select("#meta-preload-data").first().attr("content"));
+        JSONObject illust = obj.getJSONObject("illust").getJSONObject(ARTWORK_ID);
+        return illust.getIntValue("pageCount") + illust.getJSONObject("urls").getString("original");
+    }
+
+    @Benchmark
+    public Artwork preloadStreaming() throws IOException {
+        return PreloadExtractor.extract(new ByteArrayInputStream(artworkHtml), "UTF-8", ARTWORK_ID);
+    }
+}
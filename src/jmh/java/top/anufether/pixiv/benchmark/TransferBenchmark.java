@@ -0,0 +1,92 @@
+package top.anufether.pixiv.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import top.anufether.pixiv.constant.Constants;
+import top.anufether.pixiv.util.TransferUtils;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/16 16:40
+ * @Description: 图片写入基准测试，对比原有的 1 KB 缓冲流复制与 TransferUtils 的通道写入，结果以字节/秒计
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TransferBenchmark {
+
+    /**
+     * 模拟的图片大小 (MB)
+     */
+    @Param({"1", "8"})
+    public int sizeMb;
+
+    /**
+     * TransferUtils 使用的缓冲区大小 (KB)
+     */
+    @Param({"64", "256"})
+    public int bufferKb;
+
+    private byte[] image;
+
+    private Path target;
+
+    /**
+     * 以写入的字节数作为吞吐量的计量单位
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        image = new byte[(int) (sizeMb * Constants.MEGABYTE)];
+        new Random(42).nextBytes(image);
+        target = Files.createTempFile("transfer-benchmark", ".jpg");
+        TransferUtils.configure((int) (bufferKb * Constants.KILOBYTE), TransferUtils.FsyncPolicy.NONE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(target);
+    }
+
+    /**
+     * 原有实现：BufferedInputStream / BufferedOutputStream 配合 1 KB 数组
+     */
+    @Benchmark
+    public void legacyLoop(Bytes counter) throws IOException {
+        try (BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream(image));
+             BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(target.toFile()))) {
+            byte[] bytes = new byte[1024];
+            int count;
+            while ((count = in.read(bytes)) != Constants.END_OF_STREAM) {
+                out.write(bytes, Constants.BUFFER_START_INDEX, count);
+                counter.bytes += count;
+            }
+        }
+    }
+
+    @Benchmark
+    public void nioTransfer(Bytes counter) throws IOException {
+        counter.bytes += TransferUtils.transfer(new ByteArrayInputStream(image), target, false);
+    }
+}
@@ -0,0 +1,68 @@
+package top.anufether.pixiv.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import top.anufether.pixiv.config.SpiderConfig;
+import top.anufether.pixiv.config.YamlConfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/23 16:05
+ * @Description: 配置读取基准测试，使用默认的 config.yaml 测试单层与多层路径的 getValue 查询，
+ * 以及 SpiderConfig 从配置内容生成快照 (包括所有整数配置项的解析与校验)
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class YamlConfigBenchmark {
+
+    private Path dir;
+
+    private YamlConfig yamlConfig;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("yaml-benchmark");
+        try (InputStream in = YamlConfigBenchmark.class.getResourceAsStream("/config.yaml")) {
+            if (in == null) {
+                throw new IOException("找不到默认配置文件 config.yaml");
+            }
+            Files.copy(in, dir.resolve("config.yaml"));
+        }
+        yamlConfig = new YamlConfig("config.yaml");
+        yamlConfig.setJarPath(dir.toString() + "/");
+        yamlConfig.load("config.yaml");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(dir.resolve("config.yaml"));
+        Files.deleteIfExists(dir);
+    }
+
+    @Benchmark
+    public Object getTopLevel() {
+        return yamlConfig.getValue("startPage");
+    }
+
+    @Benchmark
+    public Object getNested() {
+        return yamlConfig.getValue("database.batchSize");
+    }
+
+    @Benchmark
+    public SpiderConfig snapshot() {
+        return SpiderConfig.of(yamlConfig, dir.toString() + "/");
+    }
+}
@@ -0,0 +1,126 @@
+package top.anufether.pixiv.benchmark;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.openjdk.jmh.annotations.*;
+import top.anufether.pixiv.constant.Constants;
+import top.anufether.pixiv.util.ImageZipperUtils;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/23 16:30
+ * @Description: 图片打包基准测试，对比原有的逐个 DEFLATE 压缩与 ImageZipperUtils.zipImages，图片内容为不可压缩的随机数据
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class ZipBenchmark {
+
+    /**
+     * 图片数量
+     */
+    @Param({"200"})
+    public int files;
+
+    /**
+     * 单张图片大小 (KB)
+     */
+    @Param({"512"})
+    public int sizeKb;
+
+    /**
+     * 并行打包的线程数，为 0 时逐个写入
+     */
+    @Param({"0", "1", "4"})
+    public int threads;
+
+    private Path imageDir;
+
+    private Path outputDir;
+
+    private ImageZipperUtils zipper;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        imageDir = Files.createTempDirectory("zip-benchmark-images");
+        outputDir = Files.createTempDirectory("zip-benchmark-output");
+        Random random = new Random(42);
+        byte[] image = new byte[(int) (sizeKb * Constants.KILOBYTE)];
+        for (int i = 0; i < files; i++) {
+            random.nextBytes(image);
+            Files.write(imageDir.resolve(String.format("%d_p0.jpg", 120000000 + i)), image);
+        }
+        zipper = new ImageZipperUtils();
+        zipper.setZipPath(imageDir.toString());
+        zipper.setParallel(threads > 0);
+        zipper.setThreads(Math.max(1, threads));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        delete(imageDir);
+        delete(outputDir);
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * 原有实现：所有图片使用默认的 DEFLATE 压缩，1 KB 缓冲逐个写入
+     */
+    @Benchmark
+    public void legacyDeflate() throws IOException {
+        File[] imageFiles = imageDir.toFile().listFiles((dir, name) -> name.endsWith(".jpg"));
+        int zipCount = 0;
+        int fileCount = 0;
+        ZipArchiveOutputStream zos = null;
+        try {
+            for (File imageFile : imageFiles) {
+                if (zos == null || fileCount >= Constants.ZIP_MAX_NUM) {
+                    if (zos != null) {
+                        zos.close();
+                    }
+                    zos = new ZipArchiveOutputStream(new FileOutputStream(
+                            outputDir.resolve("legacy" + zipCount++ + ".zip").toFile()));
+                    fileCount = 0;
+                }
+                zos.putArchiveEntry(new ZipArchiveEntry(imageFile.getName()));
+                try (BufferedInputStream in = new BufferedInputStream(new FileInputStream(imageFile))) {
+                    byte[] bytes = new byte[1024];
+                    int count;
+                    while ((count = in.read(bytes)) != Constants.END_OF_STREAM) {
+                        zos.write(bytes, Constants.BUFFER_START_INDEX, count);
+                    }
+                }
+                zos.closeArchiveEntry();
+                fileCount++;
+            }
+        } finally {
+            if (zos != null) {
+                zos.close();
+            }
+        }
+    }
+
+    @Benchmark
+    public void zipImages() throws IOException {
+        zipper.zipImages(outputDir.resolve("images%d.zip").toString());
+    }
+}
@@ -1,9 +1,32 @@
 package top.anufether.pixiv;
 
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpException;
 import lombok.extern.slf4j.Slf4j;
+import top.anufether.pixiv.cluster.ClusterWorker;
+import top.anufether.pixiv.cluster.Coordinator;
+import top.anufether.pixiv.config.ConfigWatcher;
+import top.anufether.pixiv.config.SpiderConfig;
 import top.anufether.pixiv.config.YamlConfig;
+import top.anufether.pixiv.constant.Constants;
 import top.anufether.pixiv.dao.DatabaseManager;
+import top.anufether.pixiv.http.BandwidthLimiter;
+import top.anufether.pixiv.http.CachingHttpFetcher;
+import top.anufether.pixiv.http.HttpFetcher;
+import top.anufether.pixiv.http.JdkHttpFetcher;
+import top.anufether.pixiv.http.RequestPolicy;
+import top.anufether.pixiv.metrics.Metrics;
+import top.anufether.pixiv.metrics.MetricsServer;
+import top.anufether.pixiv.spider.CrawlJournal;
+import top.anufether.pixiv.spider.CrawlPipeline;
+import top.anufether.pixiv.spider.DownloadEngine;
 import top.anufether.pixiv.spider.PageResolver;
+import top.anufether.pixiv.store.ArtworkMetaCache;
+import top.anufether.pixiv.store.ImageIndex;
+import top.anufether.pixiv.store.ImageLayout;
+import top.anufether.pixiv.store.ImageStore;
+import top.anufether.pixiv.util.SftpFileTransfer;
+import top.anufether.pixiv.util.TransferUtils;
 
 import java.io.File;
 import java.io.IOException;
@@ -11,6 +34,10 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.channels.FileChannel;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @Project: pixiv-spider
@@ -32,6 +59,18 @@ public class PixivSpider {
     // 数据库链接
     public static DatabaseManager databaseManager = new DatabaseManager();
 
+    // 当前的配置快照，配置文件修改后替换
+    private static final AtomicReference<SpiderConfig> config = new AtomicReference<>();
+
+    // 爬取日志文件名
+    private static final String JOURNAL_FILE = "pixiv-spider.journal";
+
+    // 迁移图片文件夹的命令行参数
+    private static final String MIGRATE = "migrate";
+
+    // 退出时等待爬取流水线写入剩余结果的时间 (秒)
+    private static final long SHUTDOWN_TIMEOUT = 30;
+
     public static void main(String[] args) {
         log.info("Starting Pixiv Spider...");
 
@@ -49,35 +88,229 @@ public class PixivSpider {
 
         yamlConfig.load("config.yaml");
 
-        // 设置代理
-        String proxyHost = yamlConfig.getString("proxy.host");
-        String proxyPort = yamlConfig.getString("proxy.port");
-        if (!proxyHost.isEmpty() && !proxyPort.isEmpty()) {
-            System.setProperty("proxyHost", proxyHost);
-            System.setProperty("proxyPort", proxyPort);
-            log.info("检测到代理服务器，运行环境已配置代理: {}:{}", proxyHost, proxyPort);
+        // 读取并校验全部配置项，之后只使用配置快照
+        SpiderConfig cfg;
+        try {
+            cfg = SpiderConfig.of(yamlConfig, jarPath);
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage());
+            System.exit(Constants.EXIT_ERROR);
+            return;
+        }
+        config.set(cfg);
+
+        // 设置文件写入方式
+        TransferUtils.configure(cfg.getBufferSize(), cfg.getFsyncPolicy());
+
+        // 启动指标服务，启动失败不影响爬取
+        MetricsServer metricsServer = null;
+        if (cfg.isMetricsEnabled()) {
+            try {
+                metricsServer = new MetricsServer(Metrics.REGISTRY, cfg.getMetricsHost(), cfg.getMetricsPort());
+            } catch (IOException e) {
+                log.error("启动指标服务失败: {}", e.getMessage());
+            }
         }
 
+        // 设置 HTTP 客户端 (代理在客户端上配置)
+        HttpFetcher httpFetcher = new JdkHttpFetcher(cfg);
+        if (cfg.isCacheEnabled()) {
+            httpFetcher = new CachingHttpFetcher(httpFetcher, new File(cfg.getCacheDir()), cfg.getCacheMaxBytes(),
+                    cfg.getCacheMaxAge());
+        }
+        RequestPolicy requestPolicy = new RequestPolicy(cfg);
+        BandwidthLimiter bandwidthLimiter = new BandwidthLimiter(cfg.getBandwidth());
+
         // 设置数据库
         databaseManager.setJarPath(jarPath);
+        databaseManager.setWriteBehind(cfg.isWriteBehind());
+        databaseManager.setBatchSize(cfg.getBatchSize());
+        databaseManager.setFlushInterval(cfg.getFlushInterval());
+        databaseManager.setReaders(cfg.getReaders());
+        databaseManager.setMemoryIndex(cfg.isMemoryIndex());
         databaseManager.load();
 
-        // 设置爬虫
-        PageResolver crawler = new PageResolver(yamlConfig, databaseManager);
-        crawler.setJarPath(jarPath);
-        String cookie = yamlConfig.getString("cookie");
-        crawler.addCookie("PHPSESSID", cookie);
+        // 图片文件索引，保存完成的图片登记后打包与上传不再遍历文件夹
+        ImageIndex imageIndex = new ImageIndex(databaseManager,
+                new ImageLayout(new File(cfg.getImageSavePath()), cfg.getImageLayout()));
+        if (args.length > 0 && MIGRATE.equals(args[0])) {
+            try {
+                imageIndex.migrate();
+            } catch (IOException e) {
+                log.error("迁移图片文件夹失败: {}", e.getMessage());
+            }
+            databaseManager.close();
+            if (metricsServer != null) {
+                metricsServer.close();
+            }
+            return;
+        }
+        if (imageIndex.hasLooseImages()) {
+            // 索引启用前下载的图片在首次启动时登记，打包与上传只读取索引
+            if (imageIndex.isEmpty()) {
+                try {
+                    imageIndex.backfill();
+                } catch (IOException e) {
+                    log.error("登记已有图片失败, 可使用 {} 参数运行一次重新登记: {}", MIGRATE, e.getMessage());
+                }
+            }
+            if (cfg.getImageLayout() == ImageLayout.Mode.SHARDED) {
+                log.warn("图片文件夹中还有未迁移到分片布局的图片, 请先使用 {} 参数运行一次.", MIGRATE);
+            }
+        }
 
-        // 开始爬取
-        String url = yamlConfig.getString("startPage");
-        while (true) {
+        // 设置下载引擎
+        DownloadEngine downloadEngine = new DownloadEngine(cfg.getDownloadWorkers(), cfg.getPerHostLimit(),
+                cfg.getQueueCapacity(), cfg.getThreadMode());
+
+        // 监听配置文件，修改后重新加载可在运行时调整的配置项
+        ConfigWatcher configWatcher = null;
+        try {
+            configWatcher = new ConfigWatcher(cfgFile,
+                    () -> reload(downloadEngine, requestPolicy, bandwidthLimiter));
+        } catch (IOException e) {
+            log.warn("监听配置文件失败, 修改配置后需要重启: {}", e.getMessage());
+        }
+        ConfigWatcher watcher = configWatcher;
+
+        // 设置上传，连接失败时只下载不上传
+        SftpFileTransfer uploader = null;
+        if (cfg.isSshEnabled()) {
+            SftpFileTransfer transfer = new SftpFileTransfer(cfg, databaseManager);
+            transfer.setImageLayout(imageIndex.getLayout());
+            try {
+                transfer.start();
+                uploader = transfer;
+                // 之前未能上传的图片从索引中找出，重新加入上传队列
+                List<File> pending = imageIndex.listNotUploaded();
+                pending.removeIf(file -> !file.isFile());
+                if (!pending.isEmpty()) {
+                    log.info("索引中有 {} 个图片尚未上传, 已加入上传队列.", pending.size());
+                    pending.forEach(transfer::submit);
+                }
+            } catch (JSchException | SftpException e) {
+                log.error("连接 Sftp 服务器失败, 将不上传图片: {}", e.getMessage());
+            }
+        }
+        SftpFileTransfer sftpFileTransfer = uploader;
+
+        // 每个爬取目标读取各自的爬取日志，从上次中断的位置继续；集群模式下进度记录在协调节点的数据库中
+        List<CrawlJournal> journals = new ArrayList<>();
+        int journalCount = cfg.getClusterRole() == Coordinator.Role.STANDALONE ? cfg.getTargets().size() : 0;
+        for (int i = 0; i < journalCount; i++) {
+            String name = i == 0 ? JOURNAL_FILE : JOURNAL_FILE.replace(".journal", "-" + (i + 1) + ".journal");
+            CrawlJournal journal = new CrawlJournal(new File(jarPath + name), cfg.getJournalCompactEvery());
             try {
-                url = crawler.resolveListPage(url);
-                log.info("已完成当前列表并成功获取到下一页: {}", url);
-            } catch (Exception e) {
-                log.error("处理列表页面时发生错误", e);
-                break; // 发生错误后退出循环
+                journal.open(cfg.getTargets().get(i));
+            } catch (IOException e) {
+                log.error("读取爬取日志失败: {}", e.getMessage());
+                System.exit(Constants.EXIT_ERROR);
+            }
+            journals.add(journal);
+        }
+
+        // 设置爬虫
+        PageResolver crawler = new PageResolver(cfg, httpFetcher, requestPolicy);
+        crawler.getImageDownloader().setBandwidthLimiter(bandwidthLimiter);
+        crawler.getImageDownloader().setSavedListener(file -> {
+            imageIndex.register(file);
+            if (sftpFileTransfer != null) {
+                sftpFileTransfer.submit(file);
+            }
+        });
+        ImageStore imageStore = null;
+        if (cfg.isDedup()) {
+            imageStore = new ImageStore(databaseManager, cfg.getDuplicatePolicy());
+            crawler.getImageDownloader().setImageStore(imageStore);
+        }
+        if (cfg.isCacheEnabled()) {
+            crawler.setArtworkMetaCache(new ArtworkMetaCache(databaseManager, cfg.getCacheMaxAge(),
+                    cfg.getCacheArtworkEntries()));
+        }
+        crawler.addCookie("PHPSESSID", cfg.getCookie());
+
+        CrawlPipeline pipeline = cfg.getClusterRole() == Coordinator.Role.STANDALONE
+                ? new CrawlPipeline(crawler, downloadEngine, databaseManager, journals, cfg) : null;
+
+        // 退出时先停止发现新的作品，等待下载完成且结果写入后再关闭上传与数据库
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (watcher != null) {
+                watcher.close();
+            }
+            if (pipeline != null) {
+                pipeline.stop();
+            }
+            downloadEngine.close();
+            if (pipeline != null) {
+                try {
+                    if (!pipeline.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+                        log.warn("爬取流水线未能在限定时间内结束, 未写入的结果将在下次运行时重新爬取.");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (sftpFileTransfer != null) {
+                sftpFileTransfer.close();
             }
+            for (CrawlJournal journal : journals) {
+                journal.close();
+            }
+            databaseManager.close();
+        }, "spider-shutdown"));
+
+        // 开始爬取
+        switch (cfg.getClusterRole()) {
+            case COORDINATOR:
+                new Coordinator(crawler, databaseManager, cfg).run();
+                break;
+            case WORKER:
+                new ClusterWorker(crawler, downloadEngine, cfg).run();
+                break;
+            default:
+                pipeline.run();
+                break;
+        }
+        if (imageStore != null) {
+            log.info("共发现 {} 张重复图片, 节省 {} MB.", imageStore.getDuplicates().sum(),
+                    imageStore.getSavedBytes().sum() / Constants.MEGABYTE);
+        }
+        if (metricsServer != null) {
+            metricsServer.close();
+        }
+    }
+
+    /**
+     * 重新读取配置文件并应用可在运行时修改的配置项：下载线程数、单主机并发上限、请求速率、
+     * 突发请求数、下载带宽与数据库批量大小。配置无效时保留原有配置。
+     */
+    private static void reload(DownloadEngine downloadEngine, RequestPolicy requestPolicy,
+                               BandwidthLimiter bandwidthLimiter) {
+        SpiderConfig next;
+        try {
+            YamlConfig yaml = new YamlConfig("config.yaml");
+            yaml.setJarPath(jarPath);
+            yaml.load("config.yaml");
+            next = SpiderConfig.of(yaml, jarPath);
+        } catch (RuntimeException e) {
+            log.error("重新加载配置文件失败, 继续使用原有配置: {}", e.getMessage());
+            return;
+        }
+        SpiderConfig prev = config.getAndSet(next);
+        log.info("配置文件已修改, 重新加载可在运行时调整的配置项, 其余配置项在重启后生效.");
+
+        if (next.getDownloadWorkers() != prev.getDownloadWorkers() || next.getPerHostLimit() != prev.getPerHostLimit()) {
+            downloadEngine.resize(next.getDownloadWorkers(), next.getPerHostLimit());
+        }
+        if (next.getRate() != prev.getRate() || next.getBurst() != prev.getBurst()) {
+            requestPolicy.setLimits(next.getRate(), next.getBurst());
+        }
+        if (next.getBandwidth() != prev.getBandwidth()) {
+            bandwidthLimiter.setBytesPerSecond(next.getBandwidth());
+        }
+        if (next.getBatchSize() != prev.getBatchSize()) {
+            databaseManager.setBatchSize(next.getBatchSize());
+            log.info("数据库批量大小已修改: {}", next.getBatchSize());
         }
     }
 
@@ -0,0 +1,354 @@
+package top.anufether.pixiv.cluster;
+
+import lombok.extern.slf4j.Slf4j;
+import top.anufether.pixiv.config.SpiderConfig;
+import top.anufether.pixiv.dao.ArtworkLease;
+import top.anufether.pixiv.spider.Artwork;
+import top.anufether.pixiv.spider.ArtworkRef;
+import top.anufether.pixiv.spider.DownloadEngine;
+import top.anufether.pixiv.spider.PageResolver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/29 11:40
+ * @Description: 集群中的 worker。从协调节点批量领取作品，解析后交给下载引擎，所有图片完成后批量上报结果；
+ * 持有的租约定期续约，进程退出后租约过期，作品由协调节点重新分配给其他 worker。
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Slf4j
+public class ClusterWorker {
+
+    /**
+     * 没有可领取的作品时再次领取的间隔 (毫秒)
+     */
+    private static final long POLL_INTERVAL = 1000;
+
+    /**
+     * 上报结果的最长间隔 (毫秒)
+     */
+    private static final long FLUSH_INTERVAL = 1000;
+
+    private final PageResolver resolver;
+    private final DownloadEngine downloadEngine;
+    private final CoordinatorClient client;
+
+    /**
+     * 租约时长 (毫秒)，在到期前续约
+     */
+    private final long leaseTimeout;
+
+    /**
+     * 累计多少个结果后立即上报
+     */
+    private final int batchSize;
+
+    /**
+     * 同时持有的租约数
+     */
+    private final Semaphore inFlight;
+
+    /**
+     * 解析作品页面的线程池
+     */
+    private final ExecutorService resolverPool;
+
+    /**
+     * 续约与定时上报
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * 当前持有的租约，结果上报成功或租约失效后移除
+     */
+    private final Map<Integer, ArtworkLease> held = new ConcurrentHashMap<>();
+
+    /**
+     * 尚未处理完的租约，租约失效时取消其中的解析与下载
+     */
+    private final Map<Integer, LeaseWork> working = new ConcurrentHashMap<>();
+
+    /**
+     * 等待上报的结果
+     */
+    private Map<ArtworkLease, Integer> done = new LinkedHashMap<>();
+    private List<ArtworkLease> failed = new ArrayList<>();
+    private final Object bufferLock = new Object();
+
+    /**
+     * 保证同一时间只有一个上报请求，上报失败时结果放回缓冲区重试
+     */
+    private final Object flushLock = new Object();
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * 一个租约对应的解析任务与图片下载
+     */
+    private static class LeaseWork {
+
+        private final ArtworkLease lease;
+
+        private volatile Future<?> resolve;
+
+        private final List<CompletableFuture<Long>> pages = new CopyOnWriteArrayList<>();
+
+        /**
+         * 保证每个租约只释放一次占用的空位
+         */
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        LeaseWork(ArtworkLease lease) {
+            this.lease = lease;
+        }
+
+        /**
+         * 中断解析，取消尚未开始的下载；已经开始的下载会继续完成
+         */
+        void cancel() {
+            Future<?> task = resolve;
+            if (task != null) {
+                task.cancel(true);
+            }
+            for (CompletableFuture<Long> page : pages) {
+                page.cancel(false);
+            }
+        }
+    }
+
+    public ClusterWorker(PageResolver resolver, DownloadEngine downloadEngine, SpiderConfig config) {
+        this.resolver = resolver;
+        this.downloadEngine = downloadEngine;
+        String worker = config.getWorkerName().isEmpty() ? defaultName() : config.getWorkerName();
+        this.client = new CoordinatorClient(config.getCoordinatorUrl(), worker);
+        this.leaseTimeout = config.getLeaseTimeout();
+        this.batchSize = config.getClusterBatchSize();
+        this.inFlight = new Semaphore(config.getMaxInFlight());
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.resolverPool = Executors.newFixedThreadPool(config.getResolvers(), r -> {
+            Thread t = new Thread(r, "worker-resolver-" + threadIndex.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "worker-lease");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 领取并处理作品，直到协调节点通知没有剩余作品
+     */
+    public void run() {
+        log.info("worker {} 已启动, 协调节点: {}", client.getWorker(), client.getBaseUrl());
+        long renewInterval = Math.max(1, leaseTimeout / 3);
+        scheduler.scheduleWithFixedDelay(this::renew, renewInterval, renewInterval, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+        long failingSince = 0;
+        try {
+            while (true) {
+                // 至少等到一个空位，再一次领取所有空位
+                inFlight.acquire();
+                int permits = 1 + inFlight.drainPermits();
+                CoordinatorClient.LeaseResult result;
+                try {
+                    result = client.lease(permits);
+                    failingSince = 0;
+                } catch (IOException e) {
+                    inFlight.release(permits);
+                    long now = System.currentTimeMillis();
+                    if (failingSince == 0) {
+                        failingSince = now;
+                    }
+                    // 超过租约时长仍无法连接时，持有的租约已经过期，不再重试
+                    if (now - failingSince > leaseTimeout) {
+                        log.error("超过 {} ms 无法连接协调节点, worker 退出: {}", leaseTimeout, e.getMessage());
+                        break;
+                    }
+                    log.warn("领取作品失败, 稍后重试: {}", e.getMessage());
+                    TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL);
+                    continue;
+                }
+                List<ArtworkLease> leases = result.getLeases();
+                inFlight.release(permits - leases.size());
+                for (ArtworkLease lease : leases) {
+                    held.put(lease.getId(), lease);
+                    LeaseWork work = new LeaseWork(lease);
+                    working.put(lease.getId(), work);
+                    work.resolve = resolverPool.submit(() -> process(work));
+                }
+                if (leases.isEmpty()) {
+                    if (result.isFinished() && held.isEmpty()) {
+                        break;
+                    }
+                    TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            scheduler.shutdownNow();
+            resolverPool.shutdownNow();
+            // 退出后不再续约，持有的租约视为失效，排队中的下载不再执行
+            held.clear();
+            for (LeaseWork work : working.values()) {
+                work.cancel();
+                finish(work, 0, false);
+            }
+            flush();
+        }
+        downloadEngine.reportThroughput();
+        log.info("worker {} 已结束, 完成 {} 个作品, 其中 {} 个因租约失效未被接受.", client.getWorker(),
+                completed.get(), rejected.get());
+    }
+
+    /**
+     * 解析作品并下载所有图片，全部完成后记录结果
+     */
+    private void process(LeaseWork work) {
+        ArtworkLease lease = work.lease;
+        ArtworkRef ref = new ArtworkRef(lease.getId(), lease.getUrl(), null);
+        try {
+            Artwork artwork = resolver.resolveArtwork(ref);
+            for (String imgUrl : artwork.getImageUrls()) {
+                work.pages.add(downloadEngine.submit(imgUrl, () -> {
+                    // 排队期间租约可能已失效，不再下载剩余的图片
+                    if (!isHeld(lease)) {
+                        throw new CancellationException("作品 " + lease.getId() + " 的租约已失效");
+                    }
+                    return resolver.downloadImage(imgUrl, ref.getDataId());
+                }));
+            }
+            CompletableFuture.allOf(work.pages.toArray(CompletableFuture<?>[]::new)).whenComplete((v, e) -> {
+                if (e != null && isHeld(lease)) {
+                    log.error("作品 {} 存在下载失败的图片.", lease.getId(), e);
+                    resolver.invalidateArtwork(ref.getId());
+                }
+                finish(work, artwork.getPageCount(), e == null);
+            });
+        } catch (Exception e) {
+            if (isHeld(lease)) {
+                log.error("处理作品 {} 时发生错误", lease.getId(), e);
+            }
+            finish(work, 0, false);
+        }
+    }
+
+    private boolean isHeld(ArtworkLease lease) {
+        return held.get(lease.getId()) == lease;
+    }
+
+    private void finish(LeaseWork work, int pageCount, boolean success) {
+        if (!work.finished.compareAndSet(false, true)) {
+            return;
+        }
+        ArtworkLease lease = work.lease;
+        working.remove(lease.getId(), work);
+        // 续约时已失效的租约不再上报
+        if (isHeld(lease)) {
+            synchronized (bufferLock) {
+                if (success) {
+                    done.put(lease, pageCount);
+                } else {
+                    failed.add(lease);
+                }
+                if (done.size() + failed.size() >= batchSize) {
+                    try {
+                        scheduler.execute(this::flush);
+                    } catch (RejectedExecutionException e) {
+                        // 退出时会上报剩余的结果
+                    }
+                }
+            }
+        }
+        inFlight.release();
+    }
+
+    /**
+     * 上报缓冲区中的结果，上报成功后释放对应的租约
+     */
+    private void flush() {
+        synchronized (flushLock) {
+            Map<ArtworkLease, Integer> batchDone;
+            List<ArtworkLease> batchFailed;
+            synchronized (bufferLock) {
+                if (done.isEmpty() && failed.isEmpty()) {
+                    return;
+                }
+                batchDone = done;
+                batchFailed = failed;
+                done = new LinkedHashMap<>();
+                failed = new ArrayList<>();
+            }
+            try {
+                int accepted = client.complete(batchDone, batchFailed);
+                completed.addAndGet(batchDone.size());
+                rejected.addAndGet(batchDone.size() - accepted);
+                for (ArtworkLease lease : batchDone.keySet()) {
+                    held.remove(lease.getId(), lease);
+                }
+                for (ArtworkLease lease : batchFailed) {
+                    held.remove(lease.getId(), lease);
+                }
+            } catch (IOException e) {
+                log.warn("上报结果失败, 稍后重试: {}", e.getMessage());
+                synchronized (bufferLock) {
+                    batchDone.putAll(done);
+                    batchFailed.addAll(failed);
+                    done = batchDone;
+                    failed = batchFailed;
+                }
+            }
+        }
+    }
+
+    /**
+     * 为持有的租约续约，包括已完成但尚未上报的作品；失效的租约取消未完成的解析与下载
+     */
+    private void renew() {
+        Map<Integer, ArtworkLease> leases = new LinkedHashMap<>(held);
+        if (leases.isEmpty()) {
+            return;
+        }
+        try {
+            for (int id : client.renew(leases.values())) {
+                ArtworkLease lease = leases.get(id);
+                if (held.remove(id, lease)) {
+                    log.warn("作品 {} 的租约已失效, 已由其他 worker 处理.", id);
+                    LeaseWork work = working.get(id);
+                    if (work != null && work.lease == lease) {
+                        work.cancel();
+                        finish(work, 0, false);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.warn("续约失败: {}", e.getMessage());
+        }
+    }
+
+    private static String defaultName() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            host = "worker";
+        }
+        return host + "-" + ProcessHandle.current().pid();
+    }
+}
@@ -0,0 +1,174 @@
+package top.anufether.pixiv.cluster;
+
+import lombok.extern.slf4j.Slf4j;
+import top.anufether.pixiv.config.SpiderConfig;
+import top.anufether.pixiv.dao.ArtworkLease;
+import top.anufether.pixiv.dao.DatabaseManager;
+import top.anufether.pixiv.spider.ArtworkRef;
+import top.anufether.pixiv.spider.ListPage;
+import top.anufether.pixiv.spider.PageResolver;
+import top.anufether.pixiv.spider.PaginationPlanner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/29 11:00
+ * @Description: 协调节点。遍历所有爬取目标的列表页面，将尚未爬取的作品登记到租约表中，由 worker 领取下载；
+ * 所有作品完成后结束。重新启动时已登记的作品不会重复登记，未完成的租约过期后继续分配；
+ * 多次失败后放弃的作品在再次发现时 (如下次运行) 重新分配。
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Slf4j
+public class Coordinator {
+
+    /**
+     * 发现结束后等待 worker 领取结束通知的时间 (毫秒)
+     */
+    private static final long LINGER = 5000;
+
+    /**
+     * 运行角色
+     */
+    public enum Role {
+        /**
+         * 单机运行，在本进程中完成发现与下载
+         */
+        STANDALONE,
+        /**
+         * 协调节点，只负责发现作品并分配给 worker
+         */
+        COORDINATOR,
+        /**
+         * 从协调节点领取作品并下载
+         */
+        WORKER;
+
+        public static Role of(String value) {
+            if (value == null || value.isEmpty()) {
+                return STANDALONE;
+            }
+            try {
+                return valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                log.warn("未知的运行角色: {}, 使用 STANDALONE", value);
+                return STANDALONE;
+            }
+        }
+    }
+
+    private final PageResolver resolver;
+    private final DatabaseManager databaseManager;
+    private final SpiderConfig config;
+
+    public Coordinator(PageResolver resolver, DatabaseManager databaseManager, SpiderConfig config) {
+        this.resolver = resolver;
+        this.databaseManager = databaseManager;
+        this.config = config;
+    }
+
+    /**
+     * 启动协调服务并发现作品，直到所有作品完成或多次失败后放弃
+     */
+    public void run() {
+        CoordinatorServer server;
+        try {
+            server = new CoordinatorServer(databaseManager, config.getClusterHost(), config.getClusterPort(),
+                    config.getLeaseTimeout(), config.getClusterMaxAttempts());
+        } catch (IOException e) {
+            log.error("启动协调服务失败: {}", e.getMessage());
+            return;
+        }
+        List<String> targets = config.getTargets();
+        ExecutorService listExecutor = null;
+        if (config.getListFanout() > 1) {
+            AtomicInteger threadIndex = new AtomicInteger();
+            listExecutor = Executors.newFixedThreadPool(config.getListFanout() * targets.size(), r -> {
+                Thread t = new Thread(r, "coordinator-list-" + threadIndex.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        PaginationPlanner planner = new PaginationPlanner(resolver::fetchListPage, listExecutor, config.getListFanout());
+        try {
+            List<Thread> walkers = new ArrayList<>(targets.size());
+            for (int i = 0; i < targets.size(); i++) {
+                String startUrl = targets.get(i);
+                Thread t = new Thread(() -> discover(planner, startUrl), "coordinator-discovery-" + (i + 1));
+                t.start();
+                walkers.add(t);
+            }
+            for (Thread t : walkers) {
+                t.join();
+            }
+            server.setDiscoveryFinished(true);
+            log.info("作品发现已结束, 等待 worker 完成剩余作品.");
+
+            int[] last = null;
+            while (!server.isDrained()) {
+                TimeUnit.SECONDS.sleep(10);
+                int[] counts = databaseManager.countLeases();
+                if (last == null || counts[ArtworkLease.DONE] != last[ArtworkLease.DONE]
+                        || counts[ArtworkLease.PENDING] != last[ArtworkLease.PENDING]) {
+                    log.info("等待分配: {}, 处理中: {}, 已完成: {}, 已放弃: {}", counts[ArtworkLease.PENDING],
+                            counts[ArtworkLease.LEASED], counts[ArtworkLease.DONE], counts[ArtworkLease.FAILED]);
+                }
+                last = counts;
+            }
+            // 留出时间让正在轮询的 worker 收到结束通知
+            TimeUnit.MILLISECONDS.sleep(LINGER);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (listExecutor != null) {
+                listExecutor.shutdownNow();
+            }
+            server.close();
+        }
+        int[] counts = databaseManager.countLeases();
+        log.info("协调节点已结束, 共完成 {} 个作品, 放弃 {} 个作品.", counts[ArtworkLease.DONE],
+                counts[ArtworkLease.FAILED]);
+    }
+
+    /**
+     * 按分页计划遍历目标的列表页面，登记尚未爬取的作品
+     */
+    private void discover(PaginationPlanner planner, String startUrl) {
+        try {
+            planner.walk(startUrl, this::enqueue);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("处理列表页面时发生错误", e);
+        }
+    }
+
+    private void enqueue(ListPage page) {
+        List<Integer> ids = new ArrayList<>(page.getArtworks().size());
+        for (ArtworkRef ref : page.getArtworks()) {
+            ids.add(ref.getId());
+        }
+        Map<Integer, Integer> crawled = databaseManager.checkArtworks(ids);
+        // 按列表中的顺序登记，worker 按相同顺序领取
+        Map<Integer, String> artworks = new LinkedHashMap<>();
+        for (ArtworkRef ref : page.getArtworks()) {
+            int id = ref.getId();
+            if (!crawled.containsKey(id)) {
+                artworks.put(id, ref.getPageUrl());
+            }
+        }
+        int added = databaseManager.enqueueArtworks(artworks);
+        log.info("列表页面 {} 中登记了 {} 个作品, 跳过 {} 个已爬取的作品.", page.getUrl(), added, crawled.size());
+    }
+}
@@ -0,0 +1,154 @@
+package top.anufether.pixiv.cluster;
+
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONException;
+import com.alibaba.fastjson2.JSONObject;
+import lombok.Getter;
+import top.anufether.pixiv.dao.ArtworkLease;
+import top.anufether.pixiv.http.HttpStatusException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/29 10:20
+ * @Description: worker 访问协调服务的客户端
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+public class CoordinatorClient {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+    private final HttpClient client = HttpClient.newBuilder().connectTimeout(TIMEOUT).build();
+
+    /**
+     * 协调服务地址，如 http://127.0.0.1:9470
+     */
+    @Getter
+    private final String baseUrl;
+
+    /**
+     * worker 名称
+     */
+    @Getter
+    private final String worker;
+
+    public CoordinatorClient(String baseUrl, String worker) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.worker = worker;
+    }
+
+    /**
+     * 领取结果
+     */
+    @Getter
+    public static class LeaseResult {
+        private final List<ArtworkLease> leases;
+
+        /**
+         * 协调服务已没有可分配的作品，worker 可以退出
+         */
+        private final boolean finished;
+
+        LeaseResult(List<ArtworkLease> leases, boolean finished) {
+            this.leases = leases;
+            this.finished = finished;
+        }
+    }
+
+    /**
+     * 领取作品
+     *
+     * @param max 最多领取数
+     * @throws IOException 请求失败
+     */
+    public LeaseResult lease(int max) throws IOException {
+        JSONObject response = post(CoordinatorServer.LEASE, JSONObject.of("worker", worker, "max", max));
+        JSONArray items = response.getJSONArray("leases");
+        List<ArtworkLease> leases = new ArrayList<>(items == null ? 0 : items.size());
+        if (items != null) {
+            for (int i = 0; i < items.size(); i++) {
+                JSONObject item = items.getJSONObject(i);
+                leases.add(new ArtworkLease(item.getIntValue("id"), item.getString("url"), item.getLongValue("token")));
+            }
+        }
+        return new LeaseResult(leases, response.getBooleanValue("finished"));
+    }
+
+    /**
+     * 续约
+     *
+     * @return 已失效的作品 ID
+     * @throws IOException 请求失败
+     */
+    public List<Integer> renew(Collection<ArtworkLease> leases) throws IOException {
+        JSONObject response = post(CoordinatorServer.RENEW, JSONObject.of("worker", worker, "leases", tokens(leases)));
+        JSONArray lost = response.getJSONArray("lost");
+        return lost == null ? new ArrayList<>() : lost.toJavaList(Integer.class);
+    }
+
+    /**
+     * 批量上报结果
+     *
+     * @param done   下载完成的租约 → 图片数量
+     * @param failed 失败的租约
+     * @return 被接受的完成数
+     * @throws IOException 请求失败
+     */
+    public int complete(Map<ArtworkLease, Integer> done, Collection<ArtworkLease> failed) throws IOException {
+        JSONArray items = new JSONArray(done.size());
+        for (Map.Entry<ArtworkLease, Integer> entry : done.entrySet()) {
+            items.add(JSONObject.of("id", entry.getKey().getId(), "token", entry.getKey().getToken(),
+                    "pages", entry.getValue()));
+        }
+        JSONObject response = post(CoordinatorServer.COMPLETE,
+                JSONObject.of("worker", worker, "done", items, "failed", tokens(failed)));
+        return response.getIntValue("accepted");
+    }
+
+    private static JSONArray tokens(Collection<ArtworkLease> leases) {
+        JSONArray items = new JSONArray(leases.size());
+        for (ArtworkLease lease : leases) {
+            items.add(JSONObject.of("id", lease.getId(), "token", lease.getToken()));
+        }
+        return items;
+    }
+
+    private JSONObject post(String path, JSONObject body) throws IOException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .timeout(TIMEOUT)
+                .header("Content-Type", "application/json; charset=utf-8")
+                .POST(HttpRequest.BodyPublishers.ofString(body.toJSONString()))
+                .build();
+        HttpResponse<byte[]> response;
+        try {
+            response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("请求协调服务时被中断: " + path);
+        }
+        if (response.statusCode() != 200) {
+            throw new HttpStatusException(response.statusCode(), baseUrl + path);
+        }
+        try {
+            JSONObject result = JSON.parseObject(response.body());
+            return result == null ? new JSONObject() : result;
+        } catch (JSONException e) {
+            throw new IOException("协调服务返回的内容无法解析: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package top.anufether.pixiv.cluster;
+
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONException;
+import com.alibaba.fastjson2.JSONObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import top.anufether.pixiv.dao.ArtworkLease;
+import top.anufether.pixiv.dao.DatabaseManager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/29 9:30
+ * @Description: 协调服务，使用 JDK 自带的 HttpServer 以租约方式向 worker 分配作品，租约保存在 SQLite 中。
+ * 接口均为 POST，请求与响应为 JSON：/lease 领取作品，/renew 续约，/complete 批量上报结果；GET /status 查看进度。
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Slf4j
+public class CoordinatorServer implements Closeable {
+
+    public static final String LEASE = "/lease";
+    public static final String RENEW = "/renew";
+    public static final String COMPLETE = "/complete";
+    public static final String STATUS = "/status";
+
+    private static final String CONTENT_TYPE = "application/json; charset=utf-8";
+
+    private final DatabaseManager databaseManager;
+
+    /**
+     * 租约时长 (毫秒)
+     */
+    private final long leaseTimeout;
+
+    /**
+     * 作品失败多少次后不再分配
+     */
+    private final int maxAttempts;
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    /**
+     * 作品发现是否已经结束，结束后没有可分配的作品时通知 worker 退出
+     */
+    @Setter
+    private volatile boolean discoveryFinished;
+
+    /**
+     * 启动协调服务
+     *
+     * @param databaseManager 保存租约的数据库
+     * @param host            监听地址
+     * @param port            监听端口，为 0 时随机选择
+     * @param leaseTimeout    租约时长 (毫秒)
+     * @param maxAttempts     作品失败多少次后不再分配
+     * @throws IOException 端口被占用等
+     */
+    public CoordinatorServer(DatabaseManager databaseManager, String host, int port, long leaseTimeout,
+                             int maxAttempts) throws IOException {
+        this.databaseManager = databaseManager;
+        this.leaseTimeout = leaseTimeout;
+        this.maxAttempts = maxAttempts;
+        this.server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        // 写操作在数据库中串行执行，使用单线程即可
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "coordinator-server");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext(LEASE, exchange -> handle(exchange, true, this::lease));
+        server.createContext(RENEW, exchange -> handle(exchange, true, this::renew));
+        server.createContext(COMPLETE, exchange -> handle(exchange, true, this::complete));
+        server.createContext(STATUS, exchange -> handle(exchange, false, request -> status()));
+        server.start();
+        log.info("协调服务已启动: http://{}:{}, 租约时长: {} ms", host, getPort(), leaseTimeout);
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return 是否已没有等待分配或正在处理的作品
+     */
+    public boolean isDrained() {
+        int[] counts = databaseManager.countLeases();
+        return counts[ArtworkLease.PENDING] == 0 && counts[ArtworkLease.LEASED] == 0;
+    }
+
+    /**
+     * 请求：{"worker": 名称, "max": 最多领取数}
+     * 响应：{"leases": [{"id", "url", "token"}], "finished": 是否已全部分配完毕}
+     */
+    private JSONObject lease(JSONObject request) {
+        String worker = request.getString("worker");
+        int max = Math.max(1, request.getIntValue("max", 1));
+        // 先读取结束标记，避免在分配与判断之间发现新的作品
+        boolean finished = discoveryFinished;
+        List<ArtworkLease> leases = databaseManager.leaseArtworks(worker, max, leaseTimeout);
+        JSONArray items = new JSONArray(leases.size());
+        for (ArtworkLease lease : leases) {
+            items.add(JSONObject.of("id", lease.getId(), "url", lease.getUrl(), "token", lease.getToken()));
+        }
+        if (!leases.isEmpty()) {
+            log.info("已向 {} 分配 {} 个作品", worker, leases.size());
+        }
+        return JSONObject.of("leases", items, "finished", finished && leases.isEmpty() && isDrained());
+    }
+
+    /**
+     * 请求：{"worker": 名称, "leases": [{"id", "token"}]}
+     * 响应：{"lost": [已失效的作品 ID]}
+     */
+    private JSONObject renew(JSONObject request) {
+        List<Integer> lost = databaseManager.renewLeases(leases(request.getJSONArray("leases")), leaseTimeout);
+        if (!lost.isEmpty()) {
+            log.warn("{} 的 {} 个租约已失效: {}", request.getString("worker"), lost.size(), lost);
+        }
+        return JSONObject.of("lost", lost);
+    }
+
+    /**
+     * 请求：{"worker": 名称, "done": [{"id", "token", "pages"}], "failed": [{"id", "token"}]}
+     * 响应：{"accepted": 被接受的完成数}
+     */
+    private JSONObject complete(JSONObject request) {
+        Map<ArtworkLease, Integer> done = new LinkedHashMap<>();
+        JSONArray items = request.getJSONArray("done");
+        if (items != null) {
+            for (int i = 0; i < items.size(); i++) {
+                JSONObject item = items.getJSONObject(i);
+                done.put(new ArtworkLease(item.getIntValue("id"), null, item.getLongValue("token")),
+                        item.getIntValue("pages"));
+            }
+        }
+        List<ArtworkLease> failed = leases(request.getJSONArray("failed"));
+        int accepted = databaseManager.completeLeases(done, failed, maxAttempts);
+        log.info("{} 上报完成 {} 个 (接受 {} 个), 失败 {} 个", request.getString("worker"), done.size(), accepted,
+                failed.size());
+        return JSONObject.of("accepted", accepted);
+    }
+
+    private JSONObject status() {
+        int[] counts = databaseManager.countLeases();
+        return JSONObject.of("pending", counts[ArtworkLease.PENDING], "leased", counts[ArtworkLease.LEASED],
+                "done", counts[ArtworkLease.DONE], "failed", counts[ArtworkLease.FAILED],
+                "discoveryFinished", discoveryFinished);
+    }
+
+    private static List<ArtworkLease> leases(JSONArray items) {
+        List<ArtworkLease> leases = new ArrayList<>();
+        if (items != null) {
+            for (int i = 0; i < items.size(); i++) {
+                JSONObject item = items.getJSONObject(i);
+                leases.add(new ArtworkLease(item.getIntValue("id"), null, item.getLongValue("token")));
+            }
+        }
+        return leases;
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        JSONObject handle(JSONObject request);
+    }
+
+    private void handle(HttpExchange exchange, boolean post, Handler handler) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String allowed = post ? "POST" : "GET";
+            if (!allowed.equals(method)) {
+                exchange.getResponseHeaders().set("Allow", allowed);
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            JSONObject request;
+            try (InputStream in = exchange.getRequestBody()) {
+                byte[] body = in.readAllBytes();
+                request = body.length == 0 ? new JSONObject() : JSON.parseObject(body);
+            } catch (JSONException e) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            if (request == null) {
+                request = new JSONObject();
+            }
+            byte[] body = handler.handle(request).toJSONString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (RuntimeException e) {
+            log.error("处理协调请求 {} 时发生错误", exchange.getRequestURI(), e);
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
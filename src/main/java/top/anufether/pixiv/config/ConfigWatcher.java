@@ -0,0 +1,109 @@
+package top.anufether.pixiv.config;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/26 10:10
+ * @Description: 监听配置文件的修改，文件写入完成后通知重新加载
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Slf4j
+public class ConfigWatcher implements Closeable {
+
+    /**
+     * 编辑器保存文件时通常会产生多个事件，最后一个事件之后等待这么久再重新加载 (毫秒)
+     */
+    private static final long SETTLE_DELAY = 500;
+
+    private final Path file;
+
+    private final Runnable onChange;
+
+    private final WatchService watchService;
+
+    private final Thread thread;
+
+    /**
+     * 开始监听配置文件
+     *
+     * @param file     配置文件
+     * @param onChange 文件修改后在监听线程中调用
+     * @throws IOException 无法监听配置文件所在的文件夹
+     */
+    public ConfigWatcher(File file, Runnable onChange) throws IOException {
+        this.file = file.toPath().toAbsolutePath();
+        this.onChange = onChange;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        // 监听所在文件夹，编辑器以重命名方式保存时同样能收到事件
+        this.file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_CREATE);
+        this.thread = new Thread(this::watch, "config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        log.info("正在监听配置文件的修改: {}", this.file);
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                if (!isChanged(watchService.take())) {
+                    continue;
+                }
+                // 合并短时间内的连续事件
+                WatchKey key;
+                while ((key = watchService.poll(SETTLE_DELAY, TimeUnit.MILLISECONDS)) != null) {
+                    isChanged(key);
+                }
+                try {
+                    onChange.run();
+                } catch (RuntimeException e) {
+                    log.error("重新加载配置文件失败", e);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // 关闭时退出
+        }
+    }
+
+    /**
+     * @return 事件中是否包含配置文件
+     */
+    private boolean isChanged(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || context instanceof Path && file.getFileName().equals(context)) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            log.warn("关闭配置文件监听失败: {}", e.getMessage());
+        }
+        thread.interrupt();
+    }
+}
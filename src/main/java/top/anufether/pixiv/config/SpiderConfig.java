@@ -0,0 +1,371 @@
+package top.anufether.pixiv.config;
+
+import lombok.Getter;
+import top.anufether.pixiv.cluster.Coordinator;
+import top.anufether.pixiv.constant.Constants;
+import top.anufether.pixiv.spider.DownloadEngine;
+import top.anufether.pixiv.spider.PageResolver;
+import top.anufether.pixiv.store.ImageLayout;
+import top.anufether.pixiv.store.ImageStore;
+import top.anufether.pixiv.util.TransferUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/26 9:20
+ * @Description: 类型化的配置快照，加载时一次性读取并校验所有配置项，之后只读。
+ * 配置文件修改后生成新的快照，不修改已有的快照。
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Getter
+public final class SpiderConfig {
+
+    // 代理，端口为 0 时不使用代理
+    private final String proxyHost;
+    private final int proxyPort;
+
+    // HTTP 客户端
+    private final int connectTimeout;
+    private final int requestTimeout;
+    private final String userAgent;
+
+    private final String cookie;
+
+    /**
+     * 爬取目标的起始页面，未配置 targets 时只有 startPage 一个目标
+     */
+    private final List<String> targets;
+
+    /**
+     * 图片保存文件夹，已替换 %HERE%
+     */
+    private final String imageSavePath;
+
+    // 文件写入
+    private final int bufferSize;
+    private final TransferUtils.FsyncPolicy fsyncPolicy;
+
+    // 图片存储
+    private final boolean dedup;
+    private final ImageStore.DuplicatePolicy duplicatePolicy;
+    private final ImageLayout.Mode imageLayout;
+
+    // 下载引擎，可在运行时修改
+    private final int downloadWorkers;
+    private final int perHostLimit;
+    private final int queueCapacity;
+    private final DownloadEngine.ThreadMode threadMode;
+
+    /**
+     * 图片下载的总带宽上限 (字节/秒)，0 为不限制，可在运行时修改
+     */
+    private final long bandwidth;
+
+    // 爬取流水线
+    private final int resolvers;
+    private final int artworkQueue;
+    private final int resultQueue;
+
+    /**
+     * 每个目标同时请求的列表页面数，1 为依次跟随下一页链接
+     */
+    private final int listFanout;
+
+    /**
+     * 使用虚拟线程时同时处理的作品数
+     */
+    private final int artworkThreads;
+
+    private final PageResolver.ResolverMode resolverMode;
+
+    private final int journalCompactEvery;
+
+    // 页面缓存
+    private final boolean cacheEnabled;
+    private final String cacheDir;
+    private final long cacheMaxBytes;
+
+    /**
+     * 页面与作品信息的最长保留时间 (毫秒)
+     */
+    private final long cacheMaxAge;
+    private final int cacheArtworkEntries;
+
+    // 请求策略，rate 与 burst 可在运行时修改
+    private final double rate;
+    private final int burst;
+    private final int maxAttempts;
+    private final int baseDelay;
+    private final int maxDelay;
+    private final int breakerThreshold;
+    private final int breakerCooldown;
+
+    // 数据库，batchSize 可在运行时修改
+    private final boolean writeBehind;
+    private final int batchSize;
+    private final int flushInterval;
+    private final int readers;
+    private final boolean memoryIndex;
+
+    // 指标服务
+    private final boolean metricsEnabled;
+    private final String metricsHost;
+    private final int metricsPort;
+
+    // 集群
+    private final Coordinator.Role clusterRole;
+    private final String clusterHost;
+    private final int clusterPort;
+    private final String coordinatorUrl;
+    private final String workerName;
+
+    /**
+     * 租约时长 (毫秒)，worker 超过该时长没有续约时作品重新分配
+     */
+    private final int leaseTimeout;
+    private final int clusterBatchSize;
+    private final int maxInFlight;
+    private final int clusterMaxAttempts;
+
+    // 文件传输
+    private final boolean sshEnabled;
+    private final String remoteDir;
+    private final String userName;
+    private final String remoteHost;
+    private final int remotePort;
+    private final String password;
+    private final String knownHosts;
+    private final int sessions;
+    private final int channels;
+
+    private SpiderConfig(Reader reader, String jarPath) {
+        proxyHost = reader.string("proxy.host", "");
+        proxyPort = reader.integer("proxy.port", 0, 0);
+
+        connectTimeout = reader.integer("http.connectTimeout", 10000, 1);
+        requestTimeout = reader.integer("http.requestTimeout", 30000, 1);
+        userAgent = reader.string("http.userAgent", "");
+
+        cookie = reader.string("cookie", "");
+        List<String> urls = reader.list("targets");
+        if (urls.isEmpty()) {
+            String startPage = reader.string("startPage", "");
+            if (startPage.isEmpty()) {
+                reader.errors.add("startPage 与 targets 不能同时为空");
+            } else {
+                urls.add(startPage);
+            }
+        }
+        targets = Collections.unmodifiableList(urls);
+        String path = reader.string("imgSavePath", "");
+        if (path.isEmpty()) {
+            reader.errors.add("imgSavePath 不能为空");
+        }
+        imageSavePath = replaceHere(path, jarPath);
+
+        bufferSize = reader.integer("io.bufferSize", TransferUtils.DEFAULT_BUFFER_SIZE, (int) Constants.KILOBYTE);
+        fsyncPolicy = TransferUtils.FsyncPolicy.of(reader.getString("io.fsync"));
+
+        dedup = reader.bool("store.dedup", true);
+        duplicatePolicy = ImageStore.DuplicatePolicy.of(reader.getString("store.duplicate"));
+        imageLayout = ImageLayout.Mode.of(reader.getString("store.layout"));
+
+        downloadWorkers = reader.integer("download.workers", 8, 1);
+        perHostLimit = reader.integer("download.perHostLimit", 4, 1);
+        queueCapacity = reader.integer("download.queueCapacity", 64, 0);
+        threadMode = DownloadEngine.ThreadMode.of(reader.getString("download.threads"));
+        bandwidth = reader.integer("download.bandwidth", 0, 0) * Constants.KILOBYTE;
+
+        resolvers = reader.integer("pipeline.resolvers", 2, 1);
+        artworkQueue = reader.integer("pipeline.artworkQueue", 100, 1);
+        resultQueue = reader.integer("pipeline.resultQueue", 256, 1);
+        listFanout = reader.integer("pipeline.listFanout", 4, 1);
+        artworkThreads = reader.integer("pipeline.artworkThreads", 256, 1);
+
+        resolverMode = PageResolver.ResolverMode.of(reader.getString("resolver.mode"));
+
+        journalCompactEvery = reader.integer("journal.compactEvery", 1000, 0);
+
+        cacheEnabled = reader.bool("cache.enabled", true);
+        cacheDir = replaceHere(reader.string("cache.dir", "%HERE%/cache"), jarPath);
+        cacheMaxBytes = reader.integer("cache.maxSize", 256, 1) * Constants.MEGABYTE;
+        cacheMaxAge = reader.integer("cache.maxAge", 168, 1) * 3600_000L;
+        cacheArtworkEntries = reader.integer("cache.artworkEntries", 200000, 0);
+
+        rate = reader.decimal("policy.rate", 5, 0);
+        burst = reader.integer("policy.burst", 10, 1);
+        maxAttempts = reader.integer("policy.maxAttempts", 8, 1);
+        baseDelay = reader.integer("policy.baseDelay", 500, 1);
+        maxDelay = reader.integer("policy.maxDelay", 60000, baseDelay);
+        breakerThreshold = reader.integer("policy.breakerThreshold", 5, 0);
+        breakerCooldown = reader.integer("policy.breakerCooldown", 30000, 0);
+
+        writeBehind = reader.bool("database.writeBehind", true);
+        batchSize = reader.integer("database.batchSize", 200, 1);
+        flushInterval = reader.integer("database.flushInterval", 1000, 1);
+        readers = reader.integer("database.readers", 4, 1);
+        memoryIndex = reader.bool("database.memoryIndex", true);
+
+        metricsEnabled = reader.bool("metrics.enabled", false);
+        metricsHost = reader.string("metrics.host", "127.0.0.1");
+        metricsPort = reader.integer("metrics.port", 9464, 0);
+
+        clusterRole = Coordinator.Role.of(reader.getString("cluster.role"));
+        clusterHost = reader.string("cluster.host", "127.0.0.1");
+        clusterPort = reader.integer("cluster.port", 9470, 0);
+        coordinatorUrl = reader.string("cluster.coordinator", "http://127.0.0.1:9470");
+        workerName = reader.string("cluster.workerName", "");
+        leaseTimeout = reader.integer("cluster.leaseTimeout", 120000, 1000);
+        clusterBatchSize = reader.integer("cluster.batchSize", 20, 1);
+        maxInFlight = reader.integer("cluster.maxInFlight", 64, 1);
+        clusterMaxAttempts = reader.integer("cluster.maxAttempts", 3, 1);
+
+        sshEnabled = reader.bool("ssh.enabled", false);
+        remoteDir = reader.string("ssh.remoteDir", "");
+        userName = reader.string("ssh.userName", "");
+        remoteHost = reader.string("ssh.remoteHost", "");
+        remotePort = reader.integer("ssh.remotePort", 22, 1);
+        password = reader.string("ssh.password", "");
+        knownHosts = reader.string("ssh.knownHosts", "");
+        sessions = reader.integer("ssh.sessions", 2, 1);
+        channels = reader.integer("ssh.channels", 4, 1);
+    }
+
+    /**
+     * 将路径中的 %HERE% 替换为 jar 包所在文件夹
+     */
+    private static String replaceHere(String path, String jarPath) {
+        // 这里要去掉 jarPath 末尾的 "/"
+        return jarPath == null ? path : path.replace("%HERE%", jarPath.substring(0, jarPath.length() - 1));
+    }
+
+    /**
+     * 从配置文件内容生成快照
+     *
+     * @param yaml    已加载的配置文件
+     * @param jarPath jar 包路径，用于替换 imgSavePath 中的 %HERE%
+     * @return 配置快照
+     * @throws IllegalArgumentException 存在无效的配置项，消息中列出所有错误
+     */
+    public static SpiderConfig of(YamlConfig yaml, String jarPath) {
+        Reader reader = new Reader(yaml);
+        SpiderConfig config = new SpiderConfig(reader, jarPath);
+        if (!reader.errors.isEmpty()) {
+            throw new IllegalArgumentException("配置无效: " + String.join("; ", reader.errors));
+        }
+        return config;
+    }
+
+    /**
+     * 读取并校验配置项，发现的错误在全部读取完后一起报告
+     */
+    private static class Reader {
+        private final YamlConfig yaml;
+        private final List<String> errors = new ArrayList<>();
+
+        Reader(YamlConfig yaml) {
+            this.yaml = yaml;
+        }
+
+        String getString(String path) {
+            return yaml.getString(path);
+        }
+
+        String string(String path, String defaultValue) {
+            String value = yaml.getString(path);
+            return value == null ? defaultValue : value.trim();
+        }
+
+        int integer(String path, int defaultValue, int min) {
+            Object value = yaml.getValue(path);
+            int result;
+            if (value == null || value.toString().trim().isEmpty()) {
+                result = defaultValue;
+            } else if (value instanceof Number) {
+                result = ((Number) value).intValue();
+            } else {
+                try {
+                    result = Integer.parseInt(value.toString().trim());
+                } catch (NumberFormatException e) {
+                    errors.add(path + " 的值 " + value + " 不是有效的整数");
+                    return defaultValue;
+                }
+            }
+            if (result < min) {
+                errors.add(path + " 的值 " + result + " 不能小于 " + min);
+                return defaultValue;
+            }
+            return result;
+        }
+
+        /**
+         * 读取字符串列表，去掉空值与重复值
+         */
+        List<String> list(String path) {
+            Object value = yaml.getValue(path);
+            List<String> result = new ArrayList<>();
+            if (value == null) {
+                return result;
+            }
+            if (!(value instanceof List)) {
+                errors.add(path + " 应为列表");
+                return result;
+            }
+            for (Object item : (List<?>) value) {
+                String text = item == null ? "" : item.toString().trim();
+                if (!text.isEmpty() && !result.contains(text)) {
+                    result.add(text);
+                }
+            }
+            return result;
+        }
+
+        double decimal(String path, double defaultValue, double min) {
+            Object value = yaml.getValue(path);
+            double result;
+            if (value == null || value.toString().trim().isEmpty()) {
+                result = defaultValue;
+            } else if (value instanceof Number) {
+                result = ((Number) value).doubleValue();
+            } else {
+                try {
+                    result = Double.parseDouble(value.toString().trim());
+                } catch (NumberFormatException e) {
+                    errors.add(path + " 的值 " + value + " 不是有效的数字");
+                    return defaultValue;
+                }
+            }
+            if (Double.isNaN(result) || Double.isInfinite(result)) {
+                errors.add(path + " 的值 " + value + " 不是有效的数字");
+                return defaultValue;
+            }
+            if (result < min) {
+                errors.add(path + " 的值 " + result + " 不能小于 " + min);
+                return defaultValue;
+            }
+            return result;
+        }
+
+        boolean bool(String path, boolean defaultValue) {
+            Object value = yaml.getValue(path);
+            if (value == null || value.toString().trim().isEmpty()) {
+                return defaultValue;
+            }
+            String text = value.toString().trim();
+            if ("true".equalsIgnoreCase(text)) {
+                return true;
+            }
+            if ("false".equalsIgnoreCase(text)) {
+                return false;
+            }
+            errors.add(path + " 的值 " + value + " 应为 true 或 false");
+            return defaultValue;
+        }
+    }
+}
@@ -7,6 +7,7 @@ import org.yaml.snakeyaml.DumperOptions;
 import org.yaml.snakeyaml.Yaml;
 import top.anufether.pixiv.constant.Constants;
 import top.anufether.pixiv.util.FileUtils;
+import top.anufether.pixiv.util.TransferUtils;
 
 import java.io.*;
 import java.util.LinkedHashMap;
@@ -182,19 +183,14 @@ public class YamlConfig {
             log.info("文件已存在: {}", getJarPath() + path);
         } else {
             // 从 jar 包中获取配置文件
-            try (InputStream in = YamlConfig.class.getClassLoader().getResourceAsStream("config.yaml");
-                 FileOutputStream out = new FileOutputStream(cfgFile)) {
+            try (InputStream in = YamlConfig.class.getClassLoader().getResourceAsStream("config.yaml")) {
 
                 if (in == null) {
                     log.warn("配置文件路径无效，无法找到文件: {}", path);
                     return;
                 }
 
-                byte[] bytes = new byte[1024];
-                int count;
-                while ((count = in.read(bytes)) != Constants.END_OF_STREAM) {
-                    out.write(bytes, Constants.BUFFER_START_INDEX, count); // 将数据写入插件文件
-                }
+                TransferUtils.transfer(in, cfgFile.toPath(), false); // 将数据写入配置文件
                 log.warn("未找到配置文件，已自动为您生成，请将其配置好后重新运行此程序.");
                 System.exit(Constants.EXIT_ERROR);
             } catch (IOException e) {
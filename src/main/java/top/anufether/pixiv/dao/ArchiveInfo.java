@@ -0,0 +1,33 @@
+package top.anufether.pixiv.dao;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/21 9:30
+ * @Description: 已打包的压缩文件信息
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Getter
+@AllArgsConstructor
+public class ArchiveInfo {
+
+    /**
+     * 压缩文件编号
+     */
+    private final int archive;
+
+    /**
+     * 图片数量
+     */
+    private final int count;
+
+    /**
+     * 图片总大小 (字节)
+     */
+    private final long bytes;
+}
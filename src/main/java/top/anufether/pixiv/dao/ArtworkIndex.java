@@ -0,0 +1,296 @@
+package top.anufether.pixiv.dao;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import top.anufether.pixiv.util.FileUtils;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/19 10:15
+ * @Description: 已爬取作品的内存索引，int → short 开放寻址哈希表，查询无需装箱，并支持紧凑的磁盘快照
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Slf4j
+public class ArtworkIndex {
+
+    /**
+     * 快照文件标识 "PXID"
+     */
+    private static final int MAGIC = 0x50584944;
+
+    private static final int VERSION = 2;
+
+    /**
+     * 空槽位标记，作品 ID 均为正数
+     */
+    private static final int EMPTY = 0;
+
+    /**
+     * 最大装载因子的倒数，保证表中始终至少有一半空槽位
+     */
+    private static final int LOAD_FACTOR_INVERSE = 2;
+
+    private int[] keys;
+
+    private short[] values;
+
+    private int mask;
+
+    /**
+     * 已保存的作品数量
+     */
+    @Getter
+    private volatile int size;
+
+    /**
+     * 快照对应的数据库最大 rowid，加载快照后只需读取比它大的记录
+     */
+    @Getter
+    private long snapshotRowId;
+
+    /**
+     * 快照时数据库中的记录数与最大作品 ID，用于确认 rowid 没有因删除或 VACUUM 重新编号
+     */
+    @Getter
+    private long snapshotRowCount;
+
+    @Getter
+    private int snapshotMaxId;
+
+    private final StampedLock lock = new StampedLock();
+
+    public ArtworkIndex(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, expectedSize * LOAD_FACTOR_INVERSE) - 1) << 1;
+        this.keys = new int[capacity];
+        this.values = new short[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * 查询作品数量
+     *
+     * @param id 作品ID
+     * @return 作品数量，如果作品不存在则返回0
+     */
+    public int get(int id) {
+        if (id == EMPTY) {
+            return 0;
+        }
+        // 乐观读：写入很少，绝大多数查询不需要加锁
+        long stamp = lock.tryOptimisticRead();
+        int[] k = keys;
+        short[] v = values;
+        int m = mask;
+        if (k.length == v.length && m == k.length - 1) {
+            int amount = probe(k, v, m, id);
+            if (lock.validate(stamp)) {
+                return amount;
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            return probe(keys, values, mask, id);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * 添加或更新作品数量
+     *
+     * @param id     作品ID
+     * @param amount 作品数量
+     */
+    public void put(int id, int amount) {
+        if (id == EMPTY) {
+            return;
+        }
+        short value = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, amount));
+        long stamp = lock.writeLock();
+        try {
+            if ((size + 1) * LOAD_FACTOR_INVERSE > keys.length) {
+                resize(keys.length << 1);
+            }
+            int slot = mix(id) & mask;
+            while (keys[slot] != EMPTY && keys[slot] != id) {
+                slot = (slot + 1) & mask;
+            }
+            if (keys[slot] == EMPTY) {
+                keys[slot] = id;
+                size++;
+            }
+            values[slot] = value;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private static int probe(int[] k, short[] v, int m, int id) {
+        int slot = mix(id) & m;
+        while (true) {
+            int key = k[slot];
+            if (key == id) {
+                return v[slot];
+            }
+            if (key == EMPTY) {
+                return 0;
+            }
+            slot = (slot + 1) & m;
+        }
+    }
+
+    private static int mix(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        short[] oldValues = values;
+        int[] newKeys = new int[capacity];
+        short[] newValues = new short[capacity];
+        int newMask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            int key = oldKeys[i];
+            if (key != EMPTY) {
+                int slot = mix(key) & newMask;
+                while (newKeys[slot] != EMPTY) {
+                    slot = (slot + 1) & newMask;
+                }
+                newKeys[slot] = key;
+                newValues[slot] = oldValues[i];
+            }
+        }
+        keys = newKeys;
+        values = newValues;
+        mask = newMask;
+    }
+
+    /**
+     * 保存快照。作品ID排序后按差值以变长整数写入，并附带 CRC32 校验，先写临时文件再原子重命名。
+     *
+     * @param file     快照文件
+     * @param rowId    快照对应的数据库最大 rowid
+     * @param rowCount 快照时数据库中的记录数
+     * @param maxId    快照时数据库中的最大作品 ID
+     * @throws IOException 写入文件失败
+     */
+    public void saveSnapshot(File file, long rowId, long rowCount, int maxId) throws IOException {
+        int[] ids;
+        int[] amounts;
+        long stamp = lock.readLock();
+        try {
+            ids = new int[size];
+            int n = 0;
+            for (int key : keys) {
+                if (key != EMPTY) {
+                    ids[n++] = key;
+                }
+            }
+            Arrays.sort(ids);
+            amounts = new int[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                amounts[i] = probe(keys, values, mask, ids[i]);
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)), crc))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(rowId);
+            out.writeLong(rowCount);
+            out.writeInt(maxId);
+            out.writeInt(ids.length);
+            int previous = 0;
+            for (int i = 0; i < ids.length; i++) {
+                writeVarInt(out, ids[i] - previous);
+                writeVarInt(out, amounts[i]);
+                previous = ids[i];
+            }
+            out.writeLong(crc.getValue());
+        }
+        FileUtils.moveAtomically(tmp, file);
+        this.snapshotRowId = rowId;
+        this.snapshotRowCount = rowCount;
+        this.snapshotMaxId = maxId;
+        log.info("已保存作品索引快照, 共 {} 个作品, {} 字节", ids.length, file.length());
+    }
+
+    /**
+     * 加载快照
+     *
+     * @param file 快照文件
+     * @return 快照中的索引，文件不存在或已损坏时返回 null
+     */
+    public static ArtworkIndex loadSnapshot(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(file)), crc))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log.warn("作品索引快照格式不匹配: {}", file.getAbsolutePath());
+                return null;
+            }
+            long rowId = in.readLong();
+            long rowCount = in.readLong();
+            int maxId = in.readInt();
+            int count = in.readInt();
+            ArtworkIndex index = new ArtworkIndex(count);
+            int id = 0;
+            for (int i = 0; i < count; i++) {
+                id += readVarInt(in);
+                index.put(id, readVarInt(in));
+            }
+            long expected = crc.getValue();
+            if (in.readLong() != expected) {
+                log.warn("作品索引快照校验失败: {}", file.getAbsolutePath());
+                return null;
+            }
+            index.snapshotRowId = rowId;
+            index.snapshotRowCount = rowCount;
+            index.snapshotMaxId = maxId;
+            return index;
+        } catch (IOException | RuntimeException e) {
+            log.warn("读取作品索引快照失败: {}", file.getAbsolutePath(), e);
+            return null;
+        }
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("变长整数格式错误");
+    }
+}
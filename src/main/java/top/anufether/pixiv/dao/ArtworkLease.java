@@ -0,0 +1,41 @@
+package top.anufether.pixiv.dao;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/29 9:10
+ * @Description: 分配给 worker 的作品租约。每次分配时令牌加一，只有持有最新令牌的 worker 可以续约与上报结果
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Getter
+@AllArgsConstructor
+public class ArtworkLease {
+
+    /**
+     * 租约状态：等待分配 / 已分配 / 已完成 / 多次失败后放弃
+     */
+    public static final int PENDING = 0;
+    public static final int LEASED = 1;
+    public static final int DONE = 2;
+    public static final int FAILED = 3;
+
+    /**
+     * 作品 ID
+     */
+    private final int id;
+
+    /**
+     * 作品页面 URL
+     */
+    private final String url;
+
+    /**
+     * 租约令牌
+     */
+    private final long token;
+}
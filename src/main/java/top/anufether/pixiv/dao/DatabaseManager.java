@@ -3,7 +3,9 @@ package top.anufether.pixiv.dao;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import org.sqlite.SQLiteConfig;
 import top.anufether.pixiv.constant.Constants;
+import top.anufether.pixiv.metrics.Metrics;
 
 import java.io.File;
 import java.io.IOException;
@@ -11,6 +13,11 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * @Project: pixiv-spider
@@ -26,16 +33,137 @@ import java.sql.*;
 @Setter
 public class DatabaseManager {
 
+    private static final String CHECK_SQL = "SELECT `amount` FROM `crawled_artworks` WHERE `id`=?;";
+
+    /**
+     * 单次 IN 查询的最大参数数量
+     */
+    private static final int MAX_IN_PARAMS = 500;
+
+    /**
+     * 作品索引快照文件名
+     */
+    private static final String INDEX_FILE = "pixiv-spider.idx";
+
+    private static final String INSERT_SQL = "INSERT OR IGNORE INTO `crawled_artworks` (`id`, `amount`) VALUES (?, ?);";
+
     /**
      * jar 包路径
      */
     private String jarPath;
 
     /**
-     * 链接对象
+     * 链接对象，所有写操作都通过该连接完成
      */
     private Connection conn;
 
+    /**
+     * 是否启用批量延迟写入
+     */
+    private boolean writeBehind = true;
+
+    /**
+     * 批量写入的最大条数，达到后立即写入，可在运行时修改
+     */
+    private volatile int batchSize = 200;
+
+    /**
+     * 批量写入的间隔 (毫秒)
+     */
+    private long flushInterval = 1000;
+
+    /**
+     * 只读连接数量，WAL 模式下读写可以并发进行
+     */
+    private int readers = 4;
+
+    /**
+     * 是否在内存中维护已爬取作品的索引
+     */
+    private boolean memoryIndex = true;
+
+    /**
+     * 已爬取作品的内存索引，未启用时为 null
+     */
+    private ArtworkIndex index;
+
+    /**
+     * 写连接上缓存的插入语句
+     */
+    private PreparedStatement insertStmt;
+
+    /**
+     * 写连接上缓存的其他语句，第一次使用时创建，只在持有写连接锁时使用
+     */
+    private final Map<String, PreparedStatement> writeStatements = new HashMap<>();
+
+    /**
+     * 只读连接池
+     */
+    private BlockingQueue<ReadConnection> readPool;
+
+    /**
+     * 等待写入数据库的作品，查询时同样可见
+     */
+    private final Map<Integer, Integer> pending = new ConcurrentHashMap<>();
+
+    /**
+     * 写连接锁
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * 定时写入线程
+     */
+    private ScheduledExecutorService flusher;
+
+    /**
+     * 是否已提交一次尚未开始的写入，缓冲区已满时只提交一次，开始写入时清除
+     */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private volatile boolean closed = false;
+
+    /**
+     * 放入缓冲区时持有读锁，关闭时持有写锁，保证关闭后不再有作品放入缓冲区
+     */
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+
+    /**
+     * 只读连接及其上缓存的查询语句
+     */
+    private static class ReadConnection {
+        private final Connection conn;
+        private final PreparedStatement checkStmt;
+
+        /**
+         * 其他查询语句，第一次使用时创建
+         */
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        ReadConnection(Connection conn) throws SQLException {
+            this.conn = conn;
+            this.checkStmt = conn.prepareStatement(CHECK_SQL);
+        }
+
+        PreparedStatement statement(String sql) throws SQLException {
+            PreparedStatement stmt = statements.get(sql);
+            if (stmt == null) {
+                stmt = conn.prepareStatement(sql);
+                statements.put(sql, stmt);
+            }
+            return stmt;
+        }
+
+        void close() throws SQLException {
+            for (PreparedStatement stmt : statements.values()) {
+                stmt.close();
+            }
+            checkStmt.close();
+            conn.close();
+        }
+    }
+
     /**
      * 加载 SQLite 数据库驱动并连接到数据库。如果数据库不存在，则创建一个新的数据库文件。
      */
@@ -46,8 +174,8 @@ public class DatabaseManager {
         try {
             // 加载 SQLite 驱动
             Class.forName(driver);
-            // 连接到数据库
-            this.conn = DriverManager.getConnection(url);
+            // 连接到数据库，启用 WAL 模式使读写可以并发进行
+            this.conn = DriverManager.getConnection(url, createConfig(false).toProperties());
             log.info("数据库连接成功");
         } catch (ClassNotFoundException | SQLException e) {
             // 连接数据库失败时，记录错误信息并退出程序
@@ -61,16 +189,120 @@ public class DatabaseManager {
                 "`amount` SMALLINT NOT NULL, " +
                 "PRIMARY KEY(`id`)" +
                 ");";
-        try {
+        // 图片内容摘要 → 第一次保存该内容的文件路径
+        String hashSql = "CREATE TABLE IF NOT EXISTS `image_hashes` (" +
+                "`hash` TEXT NOT NULL, " +
+                "`path` TEXT NOT NULL, " +
+                "`size` INTEGER NOT NULL, " +
+                "PRIMARY KEY(`hash`)" +
+                ");";
+        // 每张已下载图片的摘要，重复图片同样记录
+        String imageSql = "CREATE TABLE IF NOT EXISTS `images` (" +
+                "`name` TEXT NOT NULL, " +
+                "`hash` TEXT NOT NULL, " +
+                "`size` INTEGER NOT NULL, " +
+                "PRIMARY KEY(`name`)" +
+                ");";
+        // 已打包的图片及其所在的压缩文件编号
+        String archivedSql = "CREATE TABLE IF NOT EXISTS `archived_images` (" +
+                "`name` TEXT NOT NULL, " +
+                "`archive` INT NOT NULL, " +
+                "`size` INTEGER NOT NULL, " +
+                "PRIMARY KEY(`name`)" +
+                ");";
+        // 已上传到远程服务器的图片
+        String uploadedSql = "CREATE TABLE IF NOT EXISTS `uploaded_files` (" +
+                "`name` TEXT NOT NULL, " +
+                "`size` INTEGER NOT NULL, " +
+                "`remote_path` TEXT NOT NULL, " +
+                "PRIMARY KEY(`name`)" +
+                ");";
+        // 图片文件索引，记录每张图片相对于保存文件夹的路径，打包与上传时不再遍历文件夹
+        String imageFileSql = "CREATE TABLE IF NOT EXISTS `image_files` (" +
+                "`name` TEXT NOT NULL, " +
+                "`path` TEXT NOT NULL, " +
+                "`size` INTEGER NOT NULL, " +
+                "PRIMARY KEY(`name`)" +
+                ");";
+        // 作品信息缓存，已解析过的作品不再请求作品页面
+        String artworkMetaSql = "CREATE TABLE IF NOT EXISTS `artwork_meta` (" +
+                "`id` INT NOT NULL, " +
+                "`amount` SMALLINT NOT NULL, " +
+                "`urls` TEXT NOT NULL, " +
+                "`updated` INTEGER NOT NULL, " +
+                "PRIMARY KEY(`id`)" +
+                ");";
+        // 集群模式下分配给 worker 的作品，按发现顺序 (rowid) 分配
+        String leaseSql = "CREATE TABLE IF NOT EXISTS `artwork_leases` (" +
+                "`id` INT NOT NULL, " +
+                "`url` TEXT NOT NULL, " +
+                "`state` SMALLINT NOT NULL, " +
+                "`worker` TEXT, " +
+                "`token` INTEGER NOT NULL, " +
+                "`expires` INTEGER NOT NULL, " +
+                "`attempts` SMALLINT NOT NULL, " +
+                "PRIMARY KEY(`id`)" +
+                ");";
+        String leaseIndexSql = "CREATE INDEX IF NOT EXISTS `artwork_leases_state` ON `artwork_leases` (`state`, `expires`);";
+        try (Statement stmt = conn.createStatement()) {
             // 执行创建表的 SQL 语句
-            Statement stmt = conn.createStatement();
             stmt.execute(sql);
+            stmt.execute(hashSql);
+            stmt.execute(imageSql);
+            stmt.execute(archivedSql);
+            stmt.execute(uploadedSql);
+            stmt.execute(imageFileSql);
+            stmt.execute(artworkMetaSql);
+            stmt.execute(leaseSql);
+            stmt.execute(leaseIndexSql);
             log.info("数据表创建成功");
         } catch (SQLException e) {
             // 创建表失败时，记录错误信息并退出程序
             log.error("创建数据表时失败: {}", e.getMessage());
             System.exit(Constants.EXIT_ERROR);
         }
+
+        try {
+            this.insertStmt = conn.prepareStatement(INSERT_SQL);
+            this.readPool = new ArrayBlockingQueue<>(Math.max(1, readers));
+            for (int i = 0; i < Math.max(1, readers); i++) {
+                readPool.add(new ReadConnection(DriverManager.getConnection(url, createConfig(true).toProperties())));
+            }
+        } catch (SQLException e) {
+            log.error("创建数据库只读连接时失败: {}", e.getMessage());
+            System.exit(Constants.EXIT_ERROR);
+        }
+
+        if (memoryIndex) {
+            loadIndex();
+        }
+
+        if (writeBehind) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "database-flusher");
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+            log.info("已启用批量写入, 批量大小: {}, 写入间隔: {} ms", batchSize, flushInterval);
+            Metrics.queueDepth("db_pending", pending::size);
+        }
+    }
+
+    /**
+     * 创建连接配置：WAL 日志、NORMAL 同步级别 (WAL 下仍保证一致性)、内存临时表以及忙等待超时
+     *
+     * @param readOnly 是否为只读连接
+     */
+    private SQLiteConfig createConfig(boolean readOnly) {
+        SQLiteConfig config = new SQLiteConfig();
+        config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        config.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+        config.setTempStore(SQLiteConfig.TempStore.MEMORY);
+        config.setCacheSize(-16000); // 约 16 MB 页缓存
+        config.setBusyTimeout(5000);
+        config.setReadOnly(readOnly);
+        return config;
     }
 
     /**
@@ -80,44 +312,1023 @@ public class DatabaseManager {
      * @return 作品数量，如果作品不存在则返回0
      */
     public int checkArtworks(int id) {
-        String sql = "SELECT `amount` FROM `crawled_artworks` WHERE `id`=?;";
+        long start = System.nanoTime();
+        try {
+            return queryArtwork(id);
+        } finally {
+            Metrics.DB_CHECK.observeSince(start);
+        }
+    }
+
+    private int queryArtwork(int id) {
+        if (index != null) {
+            return index.get(id);
+        }
+
+        Integer buffered = pending.get(id);
+        if (buffered != null) {
+            return buffered;
+        }
+
         int amount = 0;
+        ReadConnection reader = null;
         try {
-            // 准备 SQL 查询语句
-            PreparedStatement pstmt = conn.prepareStatement(sql);
-            pstmt.setInt(1, id);
+            reader = readPool.take();
+            reader.checkStmt.setInt(1, id);
             // 执行查询并获取结果集
-            ResultSet rs = pstmt.executeQuery();
-            // 检查结果集是否为空
-            if (rs.next()) {
-                amount = rs.getInt("amount");
+            try (ResultSet rs = reader.checkStmt.executeQuery()) {
+                // 检查结果集是否为空
+                if (rs.next()) {
+                    amount = rs.getInt("amount");
+                }
             }
         } catch (SQLException e) {
             // 查询失败时，记录错误信息
             log.error("查询作品时失败: {}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (reader != null) {
+                readPool.add(reader);
+            }
         }
         return amount;
     }
 
     /**
-     * 向数据库中添加作品信息。
+     * 批量检查作品是否已爬取，未启用内存索引时只发出一次查询。
+     *
+     * @param ids 作品ID
+     * @return 已爬取的作品ID及其数量，未爬取的作品不包含在内
+     */
+    public Map<Integer, Integer> checkArtworks(Collection<Integer> ids) {
+        long start = System.nanoTime();
+        try {
+            return queryArtworks(ids);
+        } finally {
+            Metrics.DB_CHECK_BATCH.observeSince(start);
+        }
+    }
+
+    private Map<Integer, Integer> queryArtworks(Collection<Integer> ids) {
+        Map<Integer, Integer> crawled = new HashMap<>();
+        if (ids.isEmpty()) {
+            return crawled;
+        }
+        if (index != null) {
+            for (int id : ids) {
+                int amount = index.get(id);
+                if (amount != 0) {
+                    crawled.put(id, amount);
+                }
+            }
+            return crawled;
+        }
+
+        List<Integer> query = new ArrayList<>(ids.size());
+        for (int id : ids) {
+            Integer buffered = pending.get(id);
+            if (buffered != null) {
+                crawled.put(id, buffered);
+            } else {
+                query.add(id);
+            }
+        }
+
+        ReadConnection reader = null;
+        try {
+            reader = readPool.take();
+            // SQLite 单条语句的参数数量有限，列表页面通常只有 50 个作品，超出时分段查询
+            for (int from = 0; from < query.size(); from += MAX_IN_PARAMS) {
+                List<Integer> chunk = query.subList(from, Math.min(query.size(), from + MAX_IN_PARAMS));
+                String sql = "SELECT `id`, `amount` FROM `crawled_artworks` WHERE `id` IN ("
+                        + String.join(",", Collections.nCopies(chunk.size(), "?")) + ");";
+                PreparedStatement pstmt = reader.statement(sql);
+                for (int i = 0; i < chunk.size(); i++) {
+                    pstmt.setInt(i + 1, chunk.get(i));
+                }
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        crawled.put(rs.getInt(1), rs.getInt(2));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            log.error("批量查询作品时失败: {}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (reader != null) {
+                readPool.add(reader);
+            }
+        }
+        return crawled;
+    }
+
+    /**
+     * 向数据库中添加作品信息。启用批量写入时，先放入缓冲区，由后台线程定期在一个事务中写入。
      *
      * @param id     作品ID
      * @param amount 作品数量
      */
     public void addArtworks(int id, int amount) {
-        String sql = "INSERT INTO `crawled_artworks` (`id`, `amount`) VALUES (?, ?);";
+        long start = System.nanoTime();
+        try {
+            insertArtwork(id, amount);
+        } finally {
+            Metrics.DB_INSERT.observeSince(start);
+        }
+    }
+
+    private void insertArtwork(int id, int amount) {
+        if (index != null) {
+            index.put(id, amount);
+        }
+
+        if (writeBehind) {
+            // 检查与放入缓冲区在同一把锁内完成，关闭时最后一次写入之后不会再有作品进入缓冲区
+            closeLock.readLock().lock();
+            try {
+                if (!closed) {
+                    pending.put(id, amount);
+                    if (pending.size() >= batchSize && flushScheduled.compareAndSet(false, true)) {
+                        flusher.execute(this::flush);
+                    }
+                    return;
+                }
+            } finally {
+                closeLock.readLock().unlock();
+            }
+        }
+
+        synchronized (writeLock) {
+            try {
+                insertStmt.setInt(1, id);
+                insertStmt.setInt(2, amount);
+                // 执行插入操作
+                insertStmt.executeUpdate();
+                log.info("作品添加成功");
+            } catch (SQLException e) {
+                // 插入失败时，记录错误信息
+                log.error("添加作品时失败: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 将缓冲区中的作品在一个事务中批量写入数据库
+     */
+    public void flush() {
+        synchronized (writeLock) {
+            // 写入期间放入的作品超过批量大小时会再提交一次
+            flushScheduled.set(false);
+            if (pending.isEmpty()) {
+                return;
+            }
+            long start = System.nanoTime();
+            Map<Integer, Integer> batch = new HashMap<>(pending);
+            try {
+                conn.setAutoCommit(false);
+                for (Map.Entry<Integer, Integer> entry : batch.entrySet()) {
+                    insertStmt.setInt(1, entry.getKey());
+                    insertStmt.setInt(2, entry.getValue());
+                    insertStmt.addBatch();
+                }
+                insertStmt.executeBatch();
+                conn.commit();
+                // 只移除已写入的值，写入期间新加入的作品留到下一批
+                batch.forEach(pending::remove);
+                Metrics.DB_FLUSH.observeSince(start);
+                log.info("已批量写入 {} 个作品", batch.size());
+            } catch (SQLException e) {
+                log.error("批量添加作品时失败: {}", e.getMessage());
+                try {
+                    insertStmt.clearBatch();
+                    conn.rollback();
+                } catch (SQLException ex) {
+                    log.error("回滚事务时失败: {}", ex.getMessage());
+                }
+            } finally {
+                try {
+                    conn.setAutoCommit(true);
+                } catch (SQLException e) {
+                    log.error("恢复自动提交时失败: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * 查询相同内容的图片此前保存在哪里。登记的文件已被移走时视为没有保存过。
+     *
+     * @param hash 内容摘要
+     * @param size 文件大小
+     * @return 已保存相同内容的文件路径，没有时返回 null
+     */
+    public String findImage(String hash, long size) {
+        String existing = null;
+        synchronized (writeLock) {
+            try {
+                PreparedStatement select = statement("SELECT `path` FROM `image_hashes` WHERE `hash`=? AND `size`=?;");
+                select.setString(1, hash);
+                select.setLong(2, size);
+                try (ResultSet rs = select.executeQuery()) {
+                    if (rs.next()) {
+                        existing = rs.getString(1);
+                    }
+                }
+            } catch (SQLException e) {
+                log.error("查询图片摘要时失败: {}", e.getMessage());
+            }
+        }
+        return existing != null && new File(existing).exists() ? existing : null;
+    }
+
+    /**
+     * 登记一张已经保存到最终位置的图片，在同一个事务中写入内容摘要与图片记录。
+     * 调用方需保证文件已经就位，登记后 {@link #hasImage(String)} 才会返回 true。
+     *
+     * @param name          图片文件名
+     * @param hash          内容摘要
+     * @param size          文件大小
+     * @param canonicalPath 该内容新的存储位置，重复内容沿用已有位置时为 null
+     * @return 登记成功时返回 true
+     */
+    public boolean registerImage(String name, String hash, long size, String canonicalPath) {
+        synchronized (writeLock) {
+            try {
+                conn.setAutoCommit(false);
+                if (canonicalPath != null) {
+                    PreparedStatement insertHash = statement(
+                            "INSERT OR REPLACE INTO `image_hashes` (`hash`, `path`, `size`) VALUES (?, ?, ?);");
+                    insertHash.setString(1, hash);
+                    insertHash.setString(2, canonicalPath);
+                    insertHash.setLong(3, size);
+                    insertHash.executeUpdate();
+                }
+                PreparedStatement insertImage = statement(
+                        "INSERT OR REPLACE INTO `images` (`name`, `hash`, `size`) VALUES (?, ?, ?);");
+                insertImage.setString(1, name);
+                insertImage.setString(2, hash);
+                insertImage.setLong(3, size);
+                insertImage.executeUpdate();
+                conn.commit();
+                return true;
+            } catch (SQLException e) {
+                log.error("登记图片摘要时失败: {}", e.getMessage());
+                try {
+                    conn.rollback();
+                } catch (SQLException ex) {
+                    log.error("回滚事务时失败: {}", ex.getMessage());
+                }
+                return false;
+            } finally {
+                try {
+                    conn.setAutoCommit(true);
+                } catch (SQLException e) {
+                    log.error("恢复自动提交时失败: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * 检查图片是否已经下载过 (包括作为重复内容被跳过的图片)
+     *
+     * @param name 图片文件名
+     * @return 已下载过时返回 true
+     */
+    public boolean hasImage(String name) {
+        ReadConnection reader = null;
         try {
-            // 准备 SQL 插入语句
-            PreparedStatement pstmt = conn.prepareStatement(sql);
+            reader = readPool.take();
+            PreparedStatement pstmt = reader.statement("SELECT 1 FROM `images` WHERE `name`=?;");
+            pstmt.setString(1, name);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next();
+            }
+        } catch (SQLException e) {
+            log.error("查询图片时失败: {}", e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            if (reader != null) {
+                readPool.add(reader);
+            }
+        }
+    }
+
+    /**
+     * 查询所有已打包的图片文件名
+     *
+     * @return 已打包的图片文件名
+     */
+    public Set<String> queryArchivedImages() {
+        Set<String> names = new HashSet<>();
+        ReadConnection reader = null;
+        try {
+            reader = readPool.take();
+            try (ResultSet rs = reader.statement("SELECT `name` FROM `archived_images`;").executeQuery()) {
+                while (rs.next()) {
+                    names.add(rs.getString(1));
+                }
+            }
+        } catch (SQLException e) {
+            log.error("查询已打包图片时失败: {}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (reader != null) {
+                readPool.add(reader);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * 查询编号最大的压缩文件
+     *
+     * @return 压缩文件的编号、图片数量和总大小，还没有打包过时返回 null
+     */
+    public ArchiveInfo queryLastArchive() {
+        ReadConnection reader = null;
+        try {
+            reader = readPool.take();
+            try (ResultSet rs = reader.statement("SELECT `archive`, COUNT(*), SUM(`size`) FROM `archived_images` " +
+                    "WHERE `archive`=(SELECT MAX(`archive`) FROM `archived_images`) GROUP BY `archive`;").executeQuery()) {
+                if (rs.next()) {
+                    return new ArchiveInfo(rs.getInt(1), rs.getInt(2), rs.getLong(3));
+                }
+            }
+        } catch (SQLException e) {
+            log.error("查询压缩文件时失败: {}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (reader != null) {
+                readPool.add(reader);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 在一个事务中登记写入同一个压缩文件的图片，应在压缩文件写入完成后调用
+     *
+     * @param archive 压缩文件编号
+     * @param files   写入的图片文件
+     * @return 登记成功时返回 true
+     */
+    public boolean addArchivedImages(int archive, List<File> files) {
+        synchronized (writeLock) {
+            try {
+                PreparedStatement pstmt = statement(
+                        "INSERT OR REPLACE INTO `archived_images` (`name`, `archive`, `size`) VALUES (?, ?, ?);");
+                conn.setAutoCommit(false);
+                for (File file : files) {
+                    pstmt.setString(1, file.getName());
+                    pstmt.setInt(2, archive);
+                    pstmt.setLong(3, file.length());
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+                conn.commit();
+                return true;
+            } catch (SQLException e) {
+                log.error("登记已打包图片时失败: {}", e.getMessage());
+                try {
+                    conn.rollback();
+                } catch (SQLException ex) {
+                    log.error("回滚事务时失败: {}", ex.getMessage());
+                }
+                return false;
+            } finally {
+                try {
+                    conn.setAutoCommit(true);
+                } catch (SQLException e) {
+                    log.error("恢复自动提交时失败: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * 检查图片是否已经上传过
+     *
+     * @param name 图片文件名
+     * @param size 文件大小，大小不同时视为未上传
+     * @return 已上传过时返回 true
+     */
+    public boolean isUploaded(String name, long size) {
+        ReadConnection reader = null;
+        try {
+            reader = readPool.take();
+            PreparedStatement pstmt = reader.statement(
+                    "SELECT 1 FROM `uploaded_files` WHERE `name`=? AND `size`=?;");
+            pstmt.setString(1, name);
+            pstmt.setLong(2, size);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next();
+            }
+        } catch (SQLException e) {
+            log.error("查询已上传图片时失败: {}", e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            if (reader != null) {
+                readPool.add(reader);
+            }
+        }
+    }
+
+    /**
+     * 登记已上传的图片
+     *
+     * @param name       图片文件名
+     * @param size       文件大小
+     * @param remotePath 远程文件路径
+     */
+    public void addUploadedFile(String name, long size, String remotePath) {
+        synchronized (writeLock) {
+            try {
+                PreparedStatement pstmt = statement(
+                        "INSERT OR REPLACE INTO `uploaded_files` (`name`, `size`, `remote_path`) VALUES (?, ?, ?);");
+                pstmt.setString(1, name);
+                pstmt.setLong(2, size);
+                pstmt.setString(3, remotePath);
+                pstmt.executeUpdate();
+            } catch (SQLException e) {
+                log.error("登记已上传图片时失败: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 在一个事务中登记图片文件，已登记的文件更新路径与大小
+     *
+     * @param files 图片文件
+     * @return 登记成功时返回 true
+     */
+    public boolean addImageFiles(Collection<ImageFile> files) {
+        if (files.isEmpty()) {
+            return true;
+        }
+        synchronized (writeLock) {
+            try {
+                PreparedStatement pstmt = statement(
+                        "INSERT OR REPLACE INTO `image_files` (`name`, `path`, `size`) VALUES (?, ?, ?);");
+                conn.setAutoCommit(false);
+                for (ImageFile file : files) {
+                    pstmt.setString(1, file.getName());
+                    pstmt.setString(2, file.getPath());
+                    pstmt.setLong(3, file.getSize());
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+                conn.commit();
+                return true;
+            } catch (SQLException e) {
+                log.error("登记图片文件时失败: {}", e.getMessage());
+                rollback();
+                return false;
+            } finally {
+                restoreAutoCommit();
+            }
+        }
+    }
+
+    /**
+     * 检查图片文件索引中是否已有记录
+     *
+     * @return 有记录或查询失败时返回 true
+     */
+    public boolean hasImageFiles() {
+        ReadConnection reader = null;
+        try {
+            reader = readPool.take();
+            try (ResultSet rs = reader.statement("SELECT 1 FROM `image_files` LIMIT 1;").executeQuery()) {
+                return rs.next();
+            }
+        } catch (SQLException e) {
+            log.error("查询图片文件时失败: {}", e.getMessage());
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        } finally {
+            if (reader != null) {
+                readPool.add(reader);
+            }
+        }
+    }
+
+    /**
+     * 按文件名顺序查询所有图片文件
+     *
+     * @return 索引中的图片文件
+     */
+    public List<ImageFile> queryImageFiles() {
+        return queryImageFiles("SELECT `name`, `path`, `size` FROM `image_files` ORDER BY `name`;");
+    }
+
+    /**
+     * 按文件名顺序查询尚未上传或上传后大小有变化的图片文件
+     *
+     * @return 需要上传的图片文件
+     */
+    public List<ImageFile> queryNotUploadedImageFiles() {
+        return queryImageFiles("SELECT f.`name`, f.`path`, f.`size` FROM `image_files` f " +
+                "LEFT JOIN `uploaded_files` u ON u.`name`=f.`name` " +
+                "WHERE u.`name` IS NULL OR u.`size`!=f.`size` ORDER BY f.`name`;");
+    }
+
+    private List<ImageFile> queryImageFiles(String sql) {
+        List<ImageFile> files = new ArrayList<>();
+        ReadConnection reader = null;
+        try {
+            reader = readPool.take();
+            try (ResultSet rs = reader.statement(sql).executeQuery()) {
+                while (rs.next()) {
+                    files.add(new ImageFile(rs.getString(1), rs.getString(2), rs.getLong(3)));
+                }
+            }
+        } catch (SQLException e) {
+            log.error("查询图片文件时失败: {}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (reader != null) {
+                readPool.add(reader);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * 图片移动位置后更新内容摘要记录的存储位置，重复图片以此创建硬链接
+     *
+     * @param paths 原路径 → 新路径
+     */
+    public void updateImagePaths(Map<String, String> paths) {
+        if (paths.isEmpty()) {
+            return;
+        }
+        synchronized (writeLock) {
+            try {
+                PreparedStatement pstmt = statement(
+                        "UPDATE `image_hashes` SET `path`=? WHERE `path`=?;");
+                conn.setAutoCommit(false);
+                for (Map.Entry<String, String> entry : paths.entrySet()) {
+                    pstmt.setString(1, entry.getValue());
+                    pstmt.setString(2, entry.getKey());
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+                conn.commit();
+            } catch (SQLException e) {
+                log.error("更新图片摘要的存储位置时失败: {}", e.getMessage());
+                rollback();
+            } finally {
+                restoreAutoCommit();
+            }
+        }
+    }
+
+    /**
+     * 查询缓存的作品信息
+     *
+     * @param id         作品 ID
+     * @param minUpdated 早于该时间 (毫秒) 保存的信息视为过期
+     * @return 每一页原图的 URL，没有或已过期时返回 null
+     */
+    public List<String> queryArtworkMeta(int id, long minUpdated) {
+        ReadConnection reader = null;
+        try {
+            reader = readPool.take();
+            PreparedStatement pstmt = reader.statement(
+                    "SELECT `urls` FROM `artwork_meta` WHERE `id`=? AND `updated`>=?;");
             pstmt.setInt(1, id);
-            pstmt.setInt(2, amount);
-            // 执行插入操作
-            pstmt.executeUpdate();
-            log.info("作品添加成功");
+            pstmt.setLong(2, minUpdated);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? Arrays.asList(rs.getString(1).split("\n")) : null;
+            }
         } catch (SQLException e) {
-            // 插入失败时，记录错误信息
-            log.error("添加作品时失败: {}", e.getMessage());
+            log.error("查询作品信息时失败: {}", e.getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            if (reader != null) {
+                readPool.add(reader);
+            }
+        }
+    }
+
+    /**
+     * 保存作品信息，已有时替换
+     *
+     * @param id   作品 ID
+     * @param urls 每一页原图的 URL
+     */
+    public void saveArtworkMeta(int id, List<String> urls) {
+        synchronized (writeLock) {
+            try {
+                PreparedStatement pstmt = statement(
+                        "INSERT OR REPLACE INTO `artwork_meta` (`id`, `amount`, `urls`, `updated`) VALUES (?, ?, ?, ?);");
+                pstmt.setInt(1, id);
+                pstmt.setInt(2, urls.size());
+                pstmt.setString(3, String.join("\n", urls));
+                pstmt.setLong(4, System.currentTimeMillis());
+                pstmt.executeUpdate();
+            } catch (SQLException e) {
+                log.error("保存作品信息时失败: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 删除作品信息，如原图地址已失效
+     *
+     * @param id 作品 ID
+     */
+    public void deleteArtworkMeta(int id) {
+        synchronized (writeLock) {
+            try {
+                PreparedStatement pstmt = statement("DELETE FROM `artwork_meta` WHERE `id`=?;");
+                pstmt.setInt(1, id);
+                pstmt.executeUpdate();
+            } catch (SQLException e) {
+                log.error("删除作品信息时失败: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 删除过期的作品信息，并只保留最近保存的 maxEntries 个
+     *
+     * @param minUpdated 早于该时间 (毫秒) 保存的信息视为过期
+     * @param maxEntries 最多保留的作品数
+     * @return 删除的作品数
+     */
+    public int pruneArtworkMeta(long minUpdated, int maxEntries) {
+        synchronized (writeLock) {
+            try {
+                PreparedStatement expired = statement("DELETE FROM `artwork_meta` WHERE `updated`<?;");
+                PreparedStatement overflow = statement(
+                        "DELETE FROM `artwork_meta` WHERE `id` IN (SELECT `id` FROM `artwork_meta` " +
+                                "ORDER BY `updated` DESC LIMIT -1 OFFSET ?);");
+                expired.setLong(1, minUpdated);
+                int deleted = expired.executeUpdate();
+                overflow.setInt(1, maxEntries);
+                return deleted + overflow.executeUpdate();
+            } catch (SQLException e) {
+                log.error("清理作品信息时失败: {}", e.getMessage());
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * 登记等待分配的作品，已登记过的作品不会重复分配；
+     * 多次失败后放弃的作品再次被发现时重新等待分配，失败次数从零开始计算
+     *
+     * @param artworks 作品 ID → 作品页面 URL，按发现顺序排列
+     * @return 新登记与重新等待分配的作品数
+     */
+    public int enqueueArtworks(Map<Integer, String> artworks) {
+        if (artworks.isEmpty()) {
+            return 0;
+        }
+        synchronized (writeLock) {
+            try {
+                PreparedStatement pstmt = statement(
+                        "INSERT INTO `artwork_leases` (`id`, `url`, `state`, `token`, `expires`, `attempts`) " +
+                                "VALUES (?, ?, " + ArtworkLease.PENDING + ", 0, 0, 0) " +
+                                "ON CONFLICT(`id`) DO UPDATE SET `url`=excluded.`url`, `state`=" + ArtworkLease.PENDING +
+                                ", `worker`=NULL, `expires`=0, `attempts`=0 WHERE `state`=" + ArtworkLease.FAILED + ";");
+                conn.setAutoCommit(false);
+                for (Map.Entry<Integer, String> entry : artworks.entrySet()) {
+                    pstmt.setInt(1, entry.getKey());
+                    pstmt.setString(2, entry.getValue());
+                    pstmt.addBatch();
+                }
+                int added = 0;
+                for (int count : pstmt.executeBatch()) {
+                    added += Math.max(0, count);
+                }
+                conn.commit();
+                return added;
+            } catch (SQLException e) {
+                log.error("登记等待分配的作品时失败: {}", e.getMessage());
+                rollback();
+                return 0;
+            } finally {
+                restoreAutoCommit();
+            }
+        }
+    }
+
+    /**
+     * 为 worker 分配等待中的作品以及租约已过期的作品
+     *
+     * @param worker 领取作品的 worker
+     * @param max    最多分配的作品数
+     * @param ttl    租约时长 (毫秒)
+     * @return 分配的租约，令牌已更新
+     */
+    public List<ArtworkLease> leaseArtworks(String worker, int max, long ttl) {
+        List<ArtworkLease> leases = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized (writeLock) {
+            try {
+                conn.setAutoCommit(false);
+                PreparedStatement select = statement(
+                        "SELECT `id`, `url`, `token`, `state` FROM `artwork_leases` WHERE `state`=" + ArtworkLease.PENDING +
+                                " OR (`state`=" + ArtworkLease.LEASED + " AND `expires`<?) ORDER BY `rowid` LIMIT ?;");
+                select.setLong(1, now);
+                select.setInt(2, max);
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        if (rs.getInt(4) == ArtworkLease.LEASED) {
+                            log.info("作品 {} 的租约已过期, 重新分配给 {}", rs.getInt(1), worker);
+                        }
+                        leases.add(new ArtworkLease(rs.getInt(1), rs.getString(2), rs.getLong(3) + 1));
+                    }
+                }
+                PreparedStatement update = statement(
+                        "UPDATE `artwork_leases` SET `state`=" + ArtworkLease.LEASED +
+                                ", `worker`=?, `token`=?, `expires`=? WHERE `id`=?;");
+                for (ArtworkLease lease : leases) {
+                    update.setString(1, worker);
+                    update.setLong(2, lease.getToken());
+                    update.setLong(3, now + ttl);
+                    update.setInt(4, lease.getId());
+                    update.addBatch();
+                }
+                update.executeBatch();
+                conn.commit();
+                return leases;
+            } catch (SQLException e) {
+                log.error("分配作品时失败: {}", e.getMessage());
+                rollback();
+                return Collections.emptyList();
+            } finally {
+                restoreAutoCommit();
+            }
+        }
+    }
+
+    /**
+     * 延长租约
+     *
+     * @param leases 要续约的租约
+     * @param ttl    租约时长 (毫秒)
+     * @return 已失效 (被重新分配或已上报) 的作品 ID
+     */
+    public List<Integer> renewLeases(Collection<ArtworkLease> leases, long ttl) {
+        List<Integer> lost = new ArrayList<>();
+        long expires = System.currentTimeMillis() + ttl;
+        synchronized (writeLock) {
+            try {
+                PreparedStatement pstmt = statement(
+                        "UPDATE `artwork_leases` SET `expires`=? WHERE `id`=? AND `token`=? AND `state`=" +
+                                ArtworkLease.LEASED + ";");
+                for (ArtworkLease lease : leases) {
+                    pstmt.setLong(1, expires);
+                    pstmt.setInt(2, lease.getId());
+                    pstmt.setLong(3, lease.getToken());
+                    if (pstmt.executeUpdate() == 0) {
+                        lost.add(lease.getId());
+                    }
+                }
+            } catch (SQLException e) {
+                log.error("续约时失败: {}", e.getMessage());
+            }
+        }
+        return lost;
+    }
+
+    /**
+     * 登记 worker 上报的结果。令牌不是最新的上报会被忽略，完成的作品同时写入 crawled_artworks。
+     *
+     * @param done        下载完成的租约 → 图片数量
+     * @param failed      失败的租约
+     * @param maxAttempts 失败多少次后不再分配
+     * @return 被接受的完成数
+     */
+    public int completeLeases(Map<ArtworkLease, Integer> done, Collection<ArtworkLease> failed, int maxAttempts) {
+        Map<Integer, Integer> accepted = new LinkedHashMap<>();
+        synchronized (writeLock) {
+            try {
+                PreparedStatement complete = statement(
+                        "UPDATE `artwork_leases` SET `state`=" + ArtworkLease.DONE +
+                                " WHERE `id`=? AND `token`=? AND `state`=" + ArtworkLease.LEASED + ";");
+                PreparedStatement fail = statement(
+                        "UPDATE `artwork_leases` SET `attempts`=`attempts`+1, `state`=CASE WHEN `attempts`+1>=? THEN " +
+                                ArtworkLease.FAILED + " ELSE " + ArtworkLease.PENDING + " END " +
+                                "WHERE `id`=? AND `token`=? AND `state`=" + ArtworkLease.LEASED + ";");
+                conn.setAutoCommit(false);
+                for (Map.Entry<ArtworkLease, Integer> entry : done.entrySet()) {
+                    complete.setInt(1, entry.getKey().getId());
+                    complete.setLong(2, entry.getKey().getToken());
+                    if (complete.executeUpdate() > 0) {
+                        accepted.put(entry.getKey().getId(), entry.getValue());
+                    }
+                }
+                for (ArtworkLease lease : failed) {
+                    fail.setInt(1, maxAttempts);
+                    fail.setInt(2, lease.getId());
+                    fail.setLong(3, lease.getToken());
+                    fail.executeUpdate();
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                log.error("登记分配结果时失败: {}", e.getMessage());
+                rollback();
+                return 0;
+            } finally {
+                restoreAutoCommit();
+            }
+        }
+        accepted.forEach(this::addArtworks);
+        return accepted.size();
+    }
+
+    /**
+     * 统计各状态的作品数
+     *
+     * @return 以状态为下标的作品数
+     */
+    public int[] countLeases() {
+        int[] counts = new int[ArtworkLease.FAILED + 1];
+        ReadConnection reader = null;
+        try {
+            reader = readPool.take();
+            try (ResultSet rs = reader.statement("SELECT `state`, COUNT(*) FROM `artwork_leases` GROUP BY `state`;").executeQuery()) {
+                while (rs.next()) {
+                    counts[rs.getInt(1)] = rs.getInt(2);
+                }
+            }
+        } catch (SQLException e) {
+            log.error("统计分配情况时失败: {}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (reader != null) {
+                readPool.add(reader);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * 取出写连接上缓存的语句，第一次使用时创建，并清除上次失败时遗留的批量参数。调用方需持有写连接锁
+     */
+    private PreparedStatement statement(String sql) throws SQLException {
+        PreparedStatement stmt = writeStatements.get(sql);
+        if (stmt == null) {
+            stmt = conn.prepareStatement(sql);
+            writeStatements.put(sql, stmt);
+        } else {
+            stmt.clearBatch();
+        }
+        return stmt;
+    }
+
+    private void rollback() {
+        try {
+            conn.rollback();
+        } catch (SQLException ex) {
+            log.error("回滚事务时失败: {}", ex.getMessage());
+        }
+    }
+
+    private void restoreAutoCommit() {
+        try {
+            conn.setAutoCommit(true);
+        } catch (SQLException e) {
+            log.error("恢复自动提交时失败: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 写入缓冲区中剩余的作品并关闭所有连接
+     */
+    public void close() {
+        closeLock.writeLock().lock();
+        try {
+            if (closed || conn == null) {
+                return;
+            }
+            closed = true;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+        saveIndex();
+
+        synchronized (writeLock) {
+            try {
+                insertStmt.close();
+                for (PreparedStatement stmt : writeStatements.values()) {
+                    stmt.close();
+                }
+                for (ReadConnection reader : readPool) {
+                    reader.close();
+                }
+                conn.close();
+                log.info("数据库连接已关闭");
+            } catch (SQLException e) {
+                log.error("关闭数据库连接时失败: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 加载作品索引：优先读取快照，再从数据库读取快照之后新增的记录；没有可用快照时全表读取。
+     * 作品 ID 不是 rowid 的别名，VACUUM 可能重新编号 rowid，快照范围内的记录数或最大作品 ID 与快照不一致时同样全表读取
+     */
+    private void loadIndex() {
+        long start = System.currentTimeMillis();
+        File snapshot = new File(getJarPath() + INDEX_FILE);
+        ArtworkIndex loaded = ArtworkIndex.loadSnapshot(snapshot);
+        synchronized (writeLock) {
+            try {
+                if (loaded != null && !matchesSnapshot(loaded)) {
+                    log.warn("作品索引快照与数据库不一致, 将重新从数据库读取");
+                    loaded = null;
+                }
+                long fromRowId = loaded != null ? loaded.getSnapshotRowId() : 0;
+                ArtworkIndex target = loaded != null ? loaded : new ArtworkIndex(1024);
+
+                String sql = "SELECT `id`, `amount` FROM `crawled_artworks` WHERE rowid > ?;";
+                int added = 0;
+                try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                    pstmt.setLong(1, fromRowId);
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            target.put(rs.getInt(1), rs.getInt(2));
+                            added++;
+                        }
+                    }
+                }
+                this.index = target;
+                log.info("作品索引加载完成, 共 {} 个作品 (快照: {}, 数据库读取: {}), 耗时 {} ms", target.getSize(),
+                        loaded != null ? "是" : "否", added, System.currentTimeMillis() - start);
+            } catch (SQLException e) {
+                log.error("加载作品索引时失败, 将直接查询数据库: {}", e.getMessage());
+                this.index = null;
+            }
+        }
+    }
+
+    /**
+     * 保存作品索引快照，下次启动时无需全表读取
+     */
+    private void saveIndex() {
+        if (index == null) {
+            return;
+        }
+        synchronized (writeLock) {
+            try {
+                try (Statement stmt = conn.createStatement();
+                     ResultSet rs = stmt.executeQuery(
+                             "SELECT MAX(rowid), COUNT(*), MAX(`id`) FROM `crawled_artworks`;")) {
+                    if (rs.next()) {
+                        index.saveSnapshot(new File(getJarPath() + INDEX_FILE), rs.getLong(1), rs.getLong(2),
+                                rs.getInt(3));
+                    }
+                }
+            } catch (SQLException | IOException e) {
+                log.error("保存作品索引快照时失败: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 检查快照范围内的记录是否与保存快照时一致
+     */
+    private boolean matchesSnapshot(ArtworkIndex snapshot) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(
+                "SELECT COUNT(*), MAX(`id`) FROM `crawled_artworks` WHERE rowid <= ?;")) {
+            pstmt.setLong(1, snapshot.getSnapshotRowId());
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() && rs.getLong(1) == snapshot.getSnapshotRowCount()
+                        && rs.getInt(2) == snapshot.getSnapshotMaxId();
+            }
         }
     }
 
@@ -0,0 +1,33 @@
+package top.anufether.pixiv.dao;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/30 9:40
+ * @Description: 图片文件索引中的一条记录
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Getter
+@AllArgsConstructor
+public class ImageFile {
+
+    /**
+     * 图片文件名
+     */
+    private final String name;
+
+    /**
+     * 相对于图片保存文件夹的路径
+     */
+    private final String path;
+
+    /**
+     * 文件大小
+     */
+    private final long size;
+}
@@ -0,0 +1,103 @@
+package top.anufether.pixiv.http;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import top.anufether.pixiv.constant.Constants;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/26 10:40
+ * @Description: 下载带宽限制，所有下载线程共用一个按字节计算的令牌桶，上限可在运行时修改
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Slf4j
+public class BandwidthLimiter {
+
+    /**
+     * 每秒允许的字节数，不大于 0 时不限制
+     */
+    @Getter
+    private volatile long bytesPerSecond;
+
+    /**
+     * 下一个字节可以被读取的时间，令牌不足时各线程按预约顺序等待
+     */
+    private long nextFree = System.nanoTime();
+
+    public BandwidthLimiter(long bytesPerSecond) {
+        setBytesPerSecond(bytesPerSecond);
+    }
+
+    public synchronized void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        this.nextFree = System.nanoTime();
+        if (bytesPerSecond > 0) {
+            log.info("下载带宽上限: {} KB/s", bytesPerSecond / Constants.KILOBYTE);
+        } else {
+            log.info("下载带宽不限制");
+        }
+    }
+
+    /**
+     * 为读取的字节预约带宽，超出上限时等待
+     *
+     * @param bytes 已读取的字节数
+     * @throws InterruptedIOException 等待时被中断
+     */
+    public void acquire(int bytes) throws InterruptedIOException {
+        if (bytesPerSecond <= 0 || bytes <= 0) {
+            return;
+        }
+        long wait;
+        synchronized (this) {
+            long rate = bytesPerSecond;
+            if (rate <= 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            nextFree = Math.max(nextFree, now) + bytes * TimeUnit.SECONDS.toNanos(1) / rate;
+            // 允许最多一秒的突发流量
+            wait = nextFree - now - TimeUnit.SECONDS.toNanos(1);
+        }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("等待下载带宽时被中断");
+            }
+        }
+    }
+
+    /**
+     * 包装输入流，读取时按带宽上限等待
+     */
+    public InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != Constants.END_OF_STREAM) {
+                    acquire(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int count = super.read(b, off, len);
+                acquire(count);
+                return count;
+            }
+        };
+    }
+}
@@ -0,0 +1,349 @@
+package top.anufether.pixiv.http;
+
+import lombok.extern.slf4j.Slf4j;
+import top.anufether.pixiv.metrics.Metrics;
+import top.anufether.pixiv.util.FileUtils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/31 9:30
+ * @Description: 带磁盘缓存的 HTTP 请求，包装其他实现。标记为可缓存的请求 (列表页面) 的响应带有 ETag 或 Last-Modified 时保存到磁盘，
+ * 之后的请求带上 If-None-Match / If-Modified-Since，服务器返回 304 时直接使用缓存的响应体。
+ * 保存时需要读取完整的响应体，作品页面只需读取开头的预加载数据，因此不经过缓存，由数据库中的作品信息缓存避免重复请求。
+ * 缓存总大小与保留时间有上限，超出时优先淘汰最久未使用的条目。图片请求与 Range 请求不经过缓存。
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Slf4j
+public class CachingHttpFetcher implements HttpFetcher {
+
+    private static final String BODY_SUFFIX = ".body";
+    private static final String META_SUFFIX = ".meta";
+
+    /**
+     * HTTP 状态码：内容未修改
+     */
+    private static final int NOT_MODIFIED = 304;
+
+    private static final int OK = 200;
+
+    private final HttpFetcher delegate;
+
+    /**
+     * 缓存文件夹
+     */
+    private final File dir;
+
+    /**
+     * 缓存总大小上限 (字节)
+     */
+    private final long maxBytes;
+
+    /**
+     * 条目最长保留时间 (毫秒)，从最后一次确认内容未修改时算起
+     */
+    private final long maxAge;
+
+    /**
+     * 缓存条目 → 响应体大小，按访问顺序排列，用于淘汰最久未使用的条目
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long totalBytes;
+
+    /**
+     * 创建缓存并载入已有的条目，过期的条目直接删除
+     *
+     * @param delegate 实际发出请求的实现
+     * @param dir      缓存文件夹
+     * @param maxBytes 缓存总大小上限 (字节)
+     * @param maxAge   条目最长保留时间 (毫秒)
+     */
+    public CachingHttpFetcher(HttpFetcher delegate, File dir, long maxBytes, long maxAge) {
+        this.delegate = delegate;
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.maxAge = maxAge;
+        FileUtils.createFolder(dir.getPath());
+        load();
+    }
+
+    @Override
+    public FetchResponse fetch(FetchRequest request) throws IOException {
+        if (!request.isCacheable() || !request.isCompressed() || request.getHeaders().containsKey("Range")) {
+            return delegate.fetch(request);
+        }
+        String key = key(request.getUrl());
+        Properties meta = lookup(key);
+        if (meta != null) {
+            String etag = meta.getProperty("etag");
+            String lastModified = meta.getProperty("lastModified");
+            if (etag != null) {
+                request.header("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                request.header("If-Modified-Since", lastModified);
+            }
+        }
+
+        FetchResponse response = delegate.fetch(request);
+        if (response.getStatusCode() == NOT_MODIFIED) {
+            response.close();
+            FetchResponse cached = meta == null ? null : cached(key, meta);
+            if (cached != null) {
+                Metrics.HTTP_CACHE_HITS.inc();
+                return cached;
+            }
+            // 缓存在请求期间被淘汰，去掉条件重新请求
+            request.getHeaders().remove("If-None-Match");
+            request.getHeaders().remove("If-Modified-Since");
+            return delegate.fetch(request);
+        }
+        Metrics.HTTP_CACHE_MISSES.inc();
+        if (response.getStatusCode() != OK
+                || response.header("ETag") == null && response.header("Last-Modified") == null) {
+            return response;
+        }
+        return store(key, response);
+    }
+
+    /**
+     * 读取完整响应体并保存，返回内容相同的新响应
+     */
+    private FetchResponse store(String key, FetchResponse response) throws IOException {
+        byte[] body;
+        try {
+            body = response.getBody().readAllBytes();
+        } finally {
+            response.close();
+        }
+        if (body.length <= maxBytes) {
+            Properties meta = new Properties();
+            meta.setProperty("url", response.getUrl());
+            setIfPresent(meta, "etag", response.header("ETag"));
+            setIfPresent(meta, "lastModified", response.header("Last-Modified"));
+            setIfPresent(meta, "contentType", response.header("Content-Type"));
+            meta.setProperty("validated", Long.toString(System.currentTimeMillis()));
+            try {
+                write(key, body, meta);
+            } catch (IOException e) {
+                log.warn("写入页面缓存失败: {}", e.getMessage());
+            }
+        }
+        return new FetchResponse(response.getUrl(), response.getStatusCode(), cachedHeaders(response.header("Content-Type")),
+                new ByteArrayInputStream(body));
+    }
+
+    /**
+     * 读取缓存的响应体，并将确认时间更新为当前时间
+     *
+     * @return 缓存的响应，条目已损坏时为 null
+     */
+    private FetchResponse cached(String key, Properties meta) {
+        byte[] body;
+        try {
+            body = Files.readAllBytes(new File(dir, key + BODY_SUFFIX).toPath());
+            meta.setProperty("validated", Long.toString(System.currentTimeMillis()));
+            writeMeta(key, meta);
+        } catch (IOException e) {
+            log.warn("读取页面缓存失败: {}", e.getMessage());
+            remove(key);
+            return null;
+        }
+        return new FetchResponse(meta.getProperty("url"), OK, cachedHeaders(meta.getProperty("contentType")),
+                new ByteArrayInputStream(body));
+    }
+
+    /**
+     * @return 未过期条目的元数据，没有或已过期时为 null
+     */
+    private Properties lookup(String key) {
+        synchronized (entries) {
+            if (entries.get(key) == null) {
+                return null;
+            }
+        }
+        Properties meta = readMeta(key);
+        if (meta == null || isExpired(meta)) {
+            remove(key);
+            return null;
+        }
+        return meta;
+    }
+
+    private void write(String key, byte[] body, Properties meta) throws IOException {
+        File bodyFile = new File(dir, key + BODY_SUFFIX);
+        // 同一页面可能同时被多个线程写入，临时文件各不相同
+        File tmp = Files.createTempFile(dir.toPath(), key, ".tmp").toFile();
+        Files.write(tmp.toPath(), body);
+        FileUtils.moveAtomically(tmp, bodyFile);
+        writeMeta(key, meta);
+        List<String> evicted = new ArrayList<>();
+        synchronized (entries) {
+            Long previous = entries.put(key, (long) body.length);
+            totalBytes += body.length - (previous == null ? 0 : previous);
+            Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+            while (totalBytes > maxBytes && it.hasNext()) {
+                Map.Entry<String, Long> eldest = it.next();
+                if (eldest.getKey().equals(key)) {
+                    continue;
+                }
+                totalBytes -= eldest.getValue();
+                evicted.add(eldest.getKey());
+                it.remove();
+            }
+        }
+        for (String name : evicted) {
+            deleteFiles(name);
+        }
+    }
+
+    private void writeMeta(String key, Properties meta) throws IOException {
+        File metaFile = new File(dir, key + META_SUFFIX);
+        File tmp = Files.createTempFile(dir.toPath(), key, ".tmp").toFile();
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            meta.store(out, null);
+        }
+        FileUtils.moveAtomically(tmp, metaFile);
+    }
+
+    private Properties readMeta(String key) {
+        File metaFile = new File(dir, key + META_SUFFIX);
+        Properties meta = new Properties();
+        try (InputStream in = new FileInputStream(metaFile)) {
+            meta.load(in);
+            return meta;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void remove(String key) {
+        synchronized (entries) {
+            Long size = entries.remove(key);
+            if (size != null) {
+                totalBytes -= size;
+            }
+        }
+        deleteFiles(key);
+    }
+
+    private void deleteFiles(String key) {
+        new File(dir, key + BODY_SUFFIX).delete();
+        new File(dir, key + META_SUFFIX).delete();
+    }
+
+    /**
+     * 载入缓存文件夹中的条目，按最后确认时间排列，删除过期、损坏的条目与遗留的临时文件
+     */
+    private void load() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Map<String, Long> validated = new HashMap<>();
+        Map<String, Long> sizes = new HashMap<>();
+        int expired = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(".tmp")) {
+                file.delete();
+                continue;
+            }
+            if (!name.endsWith(META_SUFFIX)) {
+                continue;
+            }
+            String key = name.substring(0, name.length() - META_SUFFIX.length());
+            Properties meta = readMeta(key);
+            File bodyFile = new File(dir, key + BODY_SUFFIX);
+            if (meta == null || !bodyFile.isFile() || isExpired(meta)) {
+                deleteFiles(key);
+                expired++;
+                continue;
+            }
+            validated.put(key, validated(meta));
+            sizes.put(key, bodyFile.length());
+        }
+        // 最近确认过的条目排在后面，最后被淘汰
+        List<String> keys = new ArrayList<>(validated.keySet());
+        keys.sort(Comparator.comparing(validated::get));
+        synchronized (entries) {
+            for (String key : keys) {
+                entries.put(key, sizes.get(key));
+                totalBytes += sizes.get(key);
+            }
+        }
+        // 上限调小后先淘汰多余的条目
+        List<String> evicted = new ArrayList<>();
+        synchronized (entries) {
+            Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+            while (totalBytes > maxBytes && it.hasNext()) {
+                Map.Entry<String, Long> eldest = it.next();
+                totalBytes -= eldest.getValue();
+                evicted.add(eldest.getKey());
+                it.remove();
+            }
+        }
+        for (String key : evicted) {
+            deleteFiles(key);
+        }
+        log.info("页面缓存: {} 个条目, {} KB, 删除 {} 个过期条目.", entries.size(), totalBytes / 1024,
+                expired + evicted.size());
+    }
+
+    private boolean isExpired(Properties meta) {
+        return System.currentTimeMillis() - validated(meta) > maxAge;
+    }
+
+    private static long validated(Properties meta) {
+        try {
+            return Long.parseLong(meta.getProperty("validated", "0"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static Map<String, List<String>> cachedHeaders(String contentType) {
+        Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        if (contentType != null) {
+            headers.put("Content-Type", Collections.singletonList(contentType));
+        }
+        return headers;
+    }
+
+    private static void setIfPresent(Properties meta, String name, String value) {
+        if (value != null) {
+            meta.setProperty(name, value);
+        }
+    }
+
+    /**
+     * 以 URL 的 SHA-256 作为文件名
+     */
+    private static String key(String url) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("不支持的摘要算法: SHA-256", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+}
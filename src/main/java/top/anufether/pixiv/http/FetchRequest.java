@@ -0,0 +1,80 @@
+package top.anufether.pixiv.http;
+
+import lombok.Getter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/14 9:20
+ * @Description: HTTP GET 请求参数
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Getter
+public class FetchRequest {
+
+    /**
+     * 请求 URL
+     */
+    private final String url;
+
+    /**
+     * 请求头
+     */
+    private final Map<String, String> headers = new LinkedHashMap<>();
+
+    /**
+     * 是否接受 gzip 压缩的响应体，图片等二进制内容无需压缩
+     */
+    private boolean compressed = true;
+
+    /**
+     * 响应是否可以保存到页面缓存，只有列表页面需要缓存
+     */
+    private boolean cacheable;
+
+    private FetchRequest(String url) {
+        this.url = url;
+    }
+
+    public static FetchRequest get(String url) {
+        return new FetchRequest(url);
+    }
+
+    public FetchRequest header(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    public FetchRequest referrer(String referrer) {
+        return header("Referer", referrer);
+    }
+
+    public FetchRequest cookies(Map<String, String> cookies) {
+        if (cookies.isEmpty()) {
+            return this;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> cookie : cookies.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append("; ");
+            }
+            sb.append(cookie.getKey()).append('=').append(cookie.getValue());
+        }
+        return header("Cookie", sb.toString());
+    }
+
+    public FetchRequest compressed(boolean compressed) {
+        this.compressed = compressed;
+        return this;
+    }
+
+    public FetchRequest cacheable(boolean cacheable) {
+        this.cacheable = cacheable;
+        return this;
+    }
+}
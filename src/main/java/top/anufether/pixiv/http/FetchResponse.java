@@ -0,0 +1,115 @@
+package top.anufether.pixiv.http;
+
+import lombok.Getter;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/14 9:20
+ * @Description: HTTP 响应，响应体以流的形式提供，使用完毕后需要关闭
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Getter
+public class FetchResponse implements Closeable {
+
+    /**
+     * 最终响应的 URL (跟随重定向后)
+     */
+    private final String url;
+
+    /**
+     * HTTP 状态码
+     */
+    private final int statusCode;
+
+    /**
+     * 响应头，名称不区分大小写
+     */
+    private final Map<String, List<String>> headers;
+
+    /**
+     * 响应体
+     */
+    private final InputStream body;
+
+    public FetchResponse(String url, int statusCode, Map<String, List<String>> headers, InputStream body) {
+        this.url = url;
+        this.statusCode = statusCode;
+        this.headers = headers;
+        this.body = body;
+    }
+
+    /**
+     * 获取响应头的第一个值
+     *
+     * @param name 响应头名称，不区分大小写
+     * @return 响应头的值，不存在时返回 null
+     */
+    public String header(String name) {
+        List<String> values = headers.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * 获取 Content-Length，未知时返回 -1
+     */
+    public long contentLength() {
+        String value = header("Content-Length");
+        try {
+            return value == null ? -1 : Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 从 Content-Type 中获取字符集
+     *
+     * @return 字符集名称，未声明时返回 null
+     */
+    public String charset() {
+        String contentType = header("Content-Type");
+        if (contentType == null) {
+            return null;
+        }
+        for (String part : contentType.split(";")) {
+            String param = part.trim();
+            if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+                return param.substring(8).replace("\"", "").trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 读取完整响应体并解析为 HTML 文档
+     */
+    public Document parse() throws IOException {
+        return Jsoup.parse(body, charset(), url);
+    }
+
+    /**
+     * 读取完整响应体为字符串
+     */
+    public String bodyString() throws IOException {
+        String charset = charset();
+        byte[] bytes = body.readAllBytes();
+        return charset == null ? new String(bytes, StandardCharsets.UTF_8) : new String(bytes, charset);
+    }
+
+    @Override
+    public void close() throws IOException {
+        body.close();
+    }
+}
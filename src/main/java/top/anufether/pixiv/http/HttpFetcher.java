@@ -0,0 +1,29 @@
+package top.anufether.pixiv.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/14 9:20
+ * @Description: HTTP 请求抽象，列表页面、作品页面和图片请求均通过它发出，便于替换实现或连接本地测试服务器
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+public interface HttpFetcher extends Closeable {
+
+    /**
+     * 发送 GET 请求。状态码为 4xx/5xx 时抛出 {@link HttpStatusException}。
+     *
+     * @param request 请求
+     * @return 响应，调用方负责关闭
+     * @throws IOException 网络错误或 HTTP 状态错误
+     */
+    FetchResponse fetch(FetchRequest request) throws IOException;
+
+    @Override
+    default void close() {
+    }
+}
@@ -0,0 +1,46 @@
+package top.anufether.pixiv.http;
+
+import lombok.Getter;
+
+import java.io.IOException;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/14 9:20
+ * @Description: 服务器返回 4xx/5xx 状态码时抛出的异常
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Getter
+public class HttpStatusException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * HTTP 状态码
+     */
+    private final int statusCode;
+
+    /**
+     * 请求 URL
+     */
+    private final String url;
+
+    /**
+     * 响应头 Retry-After 要求的等待时间 (毫秒)，没有时为 -1
+     */
+    private final long retryAfterMillis;
+
+    public HttpStatusException(int statusCode, String url) {
+        this(statusCode, url, -1);
+    }
+
+    public HttpStatusException(int statusCode, String url, long retryAfterMillis) {
+        super("HTTP error fetching URL. Status=" + statusCode + ", URL=" + url);
+        this.statusCode = statusCode;
+        this.url = url;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+}
@@ -0,0 +1,187 @@
+package top.anufether.pixiv.http;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import top.anufether.pixiv.config.SpiderConfig;
+
+import javax.net.ssl.SSLException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.*;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/14 9:45
+ * @Description: 基于 JDK HttpClient 的默认实现，全局共享一个支持 HTTP/2 与长连接的客户端，代理在客户端上配置
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Slf4j
+@Getter
+public class JdkHttpFetcher implements HttpFetcher {
+
+    /**
+     * 默认 User-Agent
+     */
+    public static final String DEFAULT_USER_AGENT = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 "
+            + "(KHTML, like Gecko) Chrome/127.0.0.0 Safari/537.36";
+
+    /**
+     * 共享的 HTTP 客户端，复用连接与 TLS 会话
+     */
+    private final HttpClient client;
+
+    /**
+     * 单次请求等待响应头的超时时间
+     */
+    private final Duration requestTimeout;
+
+    /**
+     * User-Agent
+     */
+    private final String userAgent;
+
+    public JdkHttpFetcher(SpiderConfig config) {
+        this.requestTimeout = Duration.ofMillis(config.getRequestTimeout());
+        String ua = config.getUserAgent();
+        this.userAgent = ua.isEmpty() ? DEFAULT_USER_AGENT : ua;
+
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofMillis(config.getConnectTimeout()));
+
+        // 设置代理
+        String proxyHost = config.getProxyHost();
+        int proxyPort = config.getProxyPort();
+        if (!proxyHost.isEmpty() && proxyPort > 0) {
+            builder.proxy(ProxySelector.of(new InetSocketAddress(proxyHost, proxyPort)));
+            log.info("检测到代理服务器，HTTP 客户端已配置代理: {}:{}", proxyHost, proxyPort);
+        }
+
+        this.client = builder.build();
+    }
+
+    @Override
+    public FetchResponse fetch(FetchRequest request) throws IOException {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(request.getUrl()))
+                .timeout(requestTimeout)
+                .header("User-Agent", userAgent)
+                .GET();
+        if (request.isCompressed()) {
+            builder.header("Accept-Encoding", "gzip");
+        }
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            builder.header(header.getKey(), header.getValue());
+        }
+
+        HttpResponse<InputStream> response;
+        try {
+            response = client.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("请求被中断: " + request.getUrl());
+        } catch (HttpTimeoutException e) {
+            throw (SocketTimeoutException) new SocketTimeoutException(e.getMessage()).initCause(e);
+        } catch (SSLException | SocketException e) {
+            throw e;
+        } catch (IOException e) {
+            throw transportError(e);
+        }
+
+        // 响应头名称不区分大小写
+        Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        headers.putAll(response.headers().map());
+        int status = response.statusCode();
+        String url = response.uri().toString();
+        if (status >= 400) {
+            response.body().close();
+            throw new HttpStatusException(status, url, retryAfterMillis(headers));
+        }
+
+        InputStream body = new TransportInputStream(response.body());
+        List<String> encoding = headers.get("content-encoding");
+        if (encoding != null && encoding.contains("gzip")) {
+            body = new GZIPInputStream(body);
+        }
+        return new FetchResponse(url, status, headers, body);
+    }
+
+    /**
+     * 解析 Retry-After 响应头，支持秒数与 HTTP 日期两种格式
+     *
+     * @return 需要等待的毫秒数，没有或无法解析时返回 -1
+     */
+    private static long retryAfterMillis(Map<String, List<String>> headers) {
+        List<String> values = headers.get("retry-after");
+        if (values == null || values.isEmpty()) {
+            return -1;
+        }
+        String value = values.get(0).trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+            } catch (DateTimeParseException ex) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * 将 HttpClient 抛出的通用 IOException (如连接被重置) 转换为 SocketException，便于上层统一重试
+     */
+    private static SocketException transportError(IOException e) {
+        return (SocketException) new SocketException(e.getMessage()).initCause(e);
+    }
+
+    /**
+     * 读取响应体时同样转换网络异常
+     */
+    private static class TransportInputStream extends FilterInputStream {
+
+        TransportInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (SSLException | SocketException e) {
+                throw e;
+            } catch (IOException e) {
+                throw transportError(e);
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                return super.read(b, off, len);
+            } catch (SSLException | SocketException e) {
+                throw e;
+            } catch (IOException e) {
+                throw transportError(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package top.anufether.pixiv.http;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import top.anufether.pixiv.config.SpiderConfig;
+import top.anufether.pixiv.metrics.Metrics;
+
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/22 10:30
+ * @Description: 请求策略，按主机限制请求速率，失败时指数退避重试，遵守 Retry-After，并在连续失败时熔断
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Slf4j
+@Getter
+public class RequestPolicy {
+
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private static final int SERVICE_UNAVAILABLE = 503;
+
+    /**
+     * 被限流时速率最多降低到配置速率的几分之一
+     */
+    private static final int MIN_RATE_DIVISOR = 20;
+
+    /**
+     * 请求调用
+     */
+    @FunctionalInterface
+    public interface Call<T> {
+        T call() throws IOException;
+    }
+
+    /**
+     * 每个主机每秒的请求数，不大于 0 时不限制，可在运行时修改
+     */
+    private volatile double rate;
+
+    /**
+     * 令牌桶容量，即允许的突发请求数，可在运行时修改
+     */
+    private volatile int burst;
+
+    /**
+     * 单个请求的最大尝试次数
+     */
+    private final int maxAttempts;
+
+    /**
+     * 第一次重试前的等待时间 (毫秒)，之后每次翻倍
+     */
+    private final long baseDelay;
+
+    /**
+     * 重试等待时间上限 (毫秒)
+     */
+    private final long maxDelay;
+
+    /**
+     * 连续失败多少次后熔断，不大于 0 时不熔断
+     */
+    private final int breakerThreshold;
+
+    /**
+     * 熔断后暂停请求的时间 (毫秒)
+     */
+    private final long breakerCooldown;
+
+    private final Map<String, HostState> hosts = new ConcurrentHashMap<>();
+
+    public RequestPolicy(SpiderConfig config) {
+        this(config.getRate(), config.getBurst(), config.getMaxAttempts(), config.getBaseDelay(),
+                config.getMaxDelay(), config.getBreakerThreshold(), config.getBreakerCooldown());
+    }
+
+    public RequestPolicy(double rate, int burst, int maxAttempts, long baseDelay, long maxDelay,
+                         int breakerThreshold, long breakerCooldown) {
+        this.rate = rate;
+        this.burst = Math.max(1, burst);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelay = Math.max(1, baseDelay);
+        this.maxDelay = Math.max(this.baseDelay, maxDelay);
+        this.breakerThreshold = breakerThreshold;
+        this.breakerCooldown = breakerCooldown;
+        log.info("请求策略: 每主机 {} 次/秒, 突发 {} 次, 最多尝试 {} 次, 连续失败 {} 次后暂停 {} ms",
+                rate > 0 ? rate : "不限", this.burst, this.maxAttempts, breakerThreshold, breakerCooldown);
+    }
+
+    /**
+     * 修改请求速率与突发请求数，各主机被限流后的当前速率按比例调整
+     *
+     * @param rate  每个主机每秒的请求数，不大于 0 时不限制
+     * @param burst 令牌桶容量
+     */
+    public void setLimits(double rate, int burst) {
+        double oldRate = this.rate;
+        this.rate = rate;
+        this.burst = Math.max(1, burst);
+        for (HostState state : hosts.values()) {
+            state.rescale(oldRate);
+        }
+        log.info("请求策略已修改: 每主机 {} 次/秒, 突发 {} 次", rate > 0 ? rate : "不限", this.burst);
+    }
+
+    /**
+     * 按策略执行请求，可重试的错误在退避后重试，其他错误直接抛出
+     *
+     * @param url  请求 URL，用于区分主机
+     * @param call 请求调用
+     * @return 请求结果
+     * @throws IOException 不可重试的错误，或达到最大尝试次数时的最后一次错误
+     */
+    public <T> T execute(String url, Call<T> call) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            acquire(url);
+            T result;
+            try {
+                result = call.call();
+            } catch (IOException e) {
+                onFailure(url, e, attempt);
+                continue;
+            }
+            onSuccess(url);
+            return result;
+        }
+    }
+
+    /**
+     * 发送请求前调用：主机被暂停时等待，之后按令牌桶速率放行
+     *
+     * @param url 请求 URL
+     * @throws InterruptedIOException 等待时被中断
+     */
+    public void acquire(String url) throws InterruptedIOException {
+        HostState state = state(url);
+        long wait;
+        while ((wait = state.blockedWait(System.nanoTime())) > 0) {
+            sleep(wait);
+        }
+        sleep(state.reserve(System.nanoTime()));
+    }
+
+    /**
+     * 请求成功后调用，重置失败计数并逐步恢复速率
+     *
+     * @param url 请求 URL
+     */
+    public void onSuccess(String url) {
+        state(url).success();
+    }
+
+    /**
+     * 请求失败后调用。可重试时记录失败并等待退避时间后返回，否则抛出原错误。
+     *
+     * @param url     请求 URL
+     * @param e       请求错误
+     * @param attempt 当前是第几次尝试，从 1 开始
+     * @throws IOException 不可重试或已达到最大尝试次数
+     */
+    public void onFailure(String url, IOException e, int attempt) throws IOException {
+        if (!isRetryable(e)) {
+            if (e instanceof HttpStatusException) {
+                // 服务器能正常响应，只是请求本身有问题
+                state(url).success();
+            } else {
+                state(url).abandonProbe();
+            }
+            Metrics.failure(e);
+            throw e;
+        }
+        long retryAfter = -1;
+        boolean throttled = false;
+        if (e instanceof HttpStatusException) {
+            HttpStatusException status = (HttpStatusException) e;
+            retryAfter = status.getRetryAfterMillis();
+            throttled = status.getStatusCode() == TOO_MANY_REQUESTS || status.getStatusCode() == SERVICE_UNAVAILABLE;
+        }
+        long blocked = state(url).failure(throttled, retryAfter, System.nanoTime());
+
+        if (attempt >= maxAttempts) {
+            log.warn("请求 {} 已失败 {} 次, 不再重试: {}", url, attempt, e.getMessage());
+            Metrics.failure(e);
+            throw e;
+        }
+        Metrics.retry(e);
+        long delay = backoff(attempt);
+        // 这里只等待退避时间，主机剩余的暂停时间在下次请求前的 acquire 中等待
+        log.warn("请求 {} 失败 ({}/{}): {}, {} ms 后重试.", url, attempt, maxAttempts, e.getMessage(),
+                Math.max(delay, TimeUnit.NANOSECONDS.toMillis(blocked)));
+        sleep(TimeUnit.MILLISECONDS.toNanos(delay));
+    }
+
+    /**
+     * 超时、连接错误以及限流和服务器错误可以重试，其余错误 (如 404、403、文件读写错误) 重试也不会成功
+     */
+    public static boolean isRetryable(IOException e) {
+        if (e instanceof HttpStatusException) {
+            int status = ((HttpStatusException) e).getStatusCode();
+            return status == TOO_MANY_REQUESTS || status == 500 || status == 502
+                    || status == SERVICE_UNAVAILABLE || status == 504;
+        }
+        if (e instanceof SocketTimeoutException) {
+            return true;
+        }
+        if (e instanceof InterruptedIOException) {
+            return false;
+        }
+        return e instanceof SocketException || e instanceof SSLException;
+    }
+
+    /**
+     * 指数退避，在上限的一半到上限之间随机取值，避免多个线程同时重试
+     */
+    private long backoff(int attempt) {
+        long cap = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 30));
+        return ThreadLocalRandom.current().nextLong(cap / 2, cap + 1);
+    }
+
+    private HostState state(String url) {
+        String host;
+        try {
+            host = URI.create(url).getHost();
+        } catch (IllegalArgumentException e) {
+            host = null;
+        }
+        return hosts.computeIfAbsent(host == null ? url : host, HostState::new);
+    }
+
+    private static void sleep(long nanos) throws InterruptedIOException {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("等待重试时被中断");
+        }
+    }
+
+    /**
+     * 单个主机的令牌桶与熔断状态
+     */
+    private class HostState {
+
+        private final String host;
+
+        /**
+         * 当前速率，被限流时减半，成功后逐步恢复到配置速率
+         */
+        private double currentRate = rate;
+
+        private double tokens = burst;
+
+        private long lastRefill = System.nanoTime();
+
+        private int failures;
+
+        /**
+         * 熔断或 Retry-After 要求暂停到的时间
+         */
+        private long blockedUntil;
+
+        private boolean open;
+
+        /**
+         * 熔断后是否已有一个请求在试探
+         */
+        private boolean probing;
+
+        HostState(String host) {
+            this.host = host;
+        }
+
+        /**
+         * @return 需要等待的纳秒数，为 0 时可以发送请求
+         */
+        synchronized long blockedWait(long now) {
+            if (now < blockedUntil) {
+                return blockedUntil - now;
+            }
+            if (open) {
+                if (probing) {
+                    // 等待试探请求的结果
+                    return TimeUnit.MILLISECONDS.toNanos(Math.max(100, breakerCooldown / 10));
+                }
+                probing = true;
+            }
+            return 0;
+        }
+
+        /**
+         * 预约一个令牌，令牌不足时返回需要等待的纳秒数，等待后即可发送请求
+         */
+        synchronized long reserve(long now) {
+            if (currentRate <= 0) {
+                return 0;
+            }
+            tokens = Math.min(burst, tokens + (now - lastRefill) * currentRate / 1e9);
+            lastRefill = now;
+            tokens -= 1;
+            return tokens >= 0 ? 0 : (long) (-tokens / currentRate * 1e9);
+        }
+
+        synchronized void success() {
+            failures = 0;
+            if (open) {
+                open = false;
+                probing = false;
+                log.info("主机 {} 已恢复, 继续请求.", host);
+            }
+            if (rate > 0 && currentRate < rate) {
+                currentRate = Math.min(rate, currentRate + rate / MIN_RATE_DIVISOR);
+            }
+        }
+
+        /**
+         * 配置速率修改后，保持当前速率与配置速率的比例，令牌数不超过新的容量
+         */
+        synchronized void rescale(double oldRate) {
+            currentRate = oldRate > 0 && rate > 0 ? currentRate / oldRate * rate : rate;
+            tokens = Math.min(burst, tokens);
+        }
+
+        /**
+         * 试探请求因与主机无关的原因失败时，交给下一个请求试探
+         */
+        synchronized void abandonProbe() {
+            probing = false;
+        }
+
+        /**
+         * @return 主机还需暂停的纳秒数，没有暂停时为 0
+         */
+        synchronized long failure(boolean throttled, long retryAfterMillis, long now) {
+            failures++;
+            if (throttled && rate > 0) {
+                currentRate = Math.max(rate / MIN_RATE_DIVISOR, currentRate / 2);
+                log.warn("主机 {} 要求限流, 请求速率降低到 {} 次/秒.", host, String.format("%.2f", currentRate));
+            }
+            if (retryAfterMillis > 0) {
+                blockedUntil = Math.max(blockedUntil, now + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis));
+            }
+            if (probing) {
+                // 试探失败，继续暂停
+                probing = false;
+                blockedUntil = Math.max(blockedUntil, now + TimeUnit.MILLISECONDS.toNanos(breakerCooldown));
+            } else if (!open && breakerThreshold > 0 && failures >= breakerThreshold) {
+                open = true;
+                Metrics.BREAKER_OPENS.inc();
+                blockedUntil = Math.max(blockedUntil, now + TimeUnit.MILLISECONDS.toNanos(breakerCooldown));
+                log.warn("主机 {} 连续失败 {} 次, 暂停请求 {} ms.", host, failures, breakerCooldown);
+            }
+            return Math.max(0, blockedUntil - now);
+        }
+    }
+}
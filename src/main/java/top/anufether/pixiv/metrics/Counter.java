@@ -0,0 +1,29 @@
+package top.anufether.pixiv.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/24 10:15
+ * @Description: 只增不减的计数器，多线程累加时不会互相竞争
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+public class Counter {
+
+    private final LongAdder value = new LongAdder();
+
+    public void inc() {
+        value.increment();
+    }
+
+    public void add(long amount) {
+        value.add(amount);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+}
@@ -0,0 +1,95 @@
+package top.anufether.pixiv.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/24 10:20
+ * @Description: 耗时直方图，按固定的区间上限 (秒) 统计次数，记录时只做一次累加，不保存样本
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+public class Histogram {
+
+    /**
+     * 默认区间上限 (秒)，覆盖数据库查询到大文件下载的耗时
+     */
+    public static final double[] DEFAULT_BUCKETS = {
+            0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    private final double[] bounds;
+
+    /**
+     * 以纳秒表示的区间上限，记录时不需要换算
+     */
+    private final long[] boundNanos;
+
+    /**
+     * 每个区间的次数，最后一个为超出所有上限的次数
+     */
+    private final LongAdder[] buckets;
+
+    private final LongAdder sumNanos = new LongAdder();
+
+    public Histogram(double[] bounds) {
+        this.bounds = bounds.clone();
+        this.boundNanos = new long[bounds.length];
+        this.buckets = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < bounds.length; i++) {
+            if (i > 0 && bounds[i] <= bounds[i - 1]) {
+                throw new IllegalArgumentException("直方图区间上限必须递增");
+            }
+            boundNanos[i] = (long) (bounds[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * 记录一次耗时
+     *
+     * @param nanos 耗时 (纳秒)
+     */
+    public void observeNanos(long nanos) {
+        int i = 0;
+        while (i < boundNanos.length && nanos > boundNanos[i]) {
+            i++;
+        }
+        buckets[i].increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * 记录从指定时间到现在的耗时
+     *
+     * @param startNanos 开始时的 {@link System#nanoTime()}
+     */
+    public void observeSince(long startNanos) {
+        observeNanos(System.nanoTime() - startNanos);
+    }
+
+    double[] bounds() {
+        return bounds;
+    }
+
+    /**
+     * @return 每个区间的累计次数 (小于等于该上限的次数)，最后一个为总次数
+     */
+    long[] cumulativeCounts() {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            total += buckets[i].sum();
+            counts[i] = total;
+        }
+        return counts;
+    }
+
+    double sumSeconds() {
+        return sumNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+}
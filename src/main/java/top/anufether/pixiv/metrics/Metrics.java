@@ -0,0 +1,122 @@
+package top.anufether.pixiv.metrics;
+
+import top.anufether.pixiv.http.HttpStatusException;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/24 10:45
+ * @Description: 爬虫的全部指标，各模块直接记录到这里，由指标服务统一输出
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+public final class Metrics {
+
+    /**
+     * 全局指标注册表
+     */
+    public static final MetricsRegistry REGISTRY = new MetricsRegistry();
+
+    private static final String REQUEST_DURATION = "pixiv_request_duration_seconds";
+    private static final String REQUEST_DURATION_HELP = "单次 HTTP 请求的耗时，图片包括写入文件的时间";
+
+    private static final String RETRIES = "pixiv_request_retries_total";
+    private static final String RETRIES_HELP = "请求失败后重试的次数，按失败原因区分";
+
+    private static final String FAILURES = "pixiv_request_failures_total";
+    private static final String FAILURES_HELP = "请求失败且不再重试的次数，按失败原因区分";
+
+    private static final String QUEUE_DEPTH = "pixiv_queue_depth";
+    private static final String QUEUE_DEPTH_HELP = "等待处理的任务数，按所在阶段区分";
+
+    private static final String DB_DURATION = "pixiv_db_duration_seconds";
+    private static final String DB_DURATION_HELP = "数据库操作的耗时，启用批量写入时 insert 只是放入缓冲区";
+
+    /**
+     * 列表页面、作品页面与图片请求的耗时
+     */
+    public static final Histogram LIST_REQUEST = REGISTRY.histogram(REQUEST_DURATION, REQUEST_DURATION_HELP,
+            "kind", "list");
+    public static final Histogram DETAIL_REQUEST = REGISTRY.histogram(REQUEST_DURATION, REQUEST_DURATION_HELP,
+            "kind", "detail");
+    public static final Histogram IMAGE_REQUEST = REGISTRY.histogram(REQUEST_DURATION, REQUEST_DURATION_HELP,
+            "kind", "image");
+
+    /**
+     * 熔断次数
+     */
+    public static final Counter BREAKER_OPENS = REGISTRY.counter("pixiv_breaker_opens_total",
+            "主机连续失败后暂停请求的次数");
+
+    /**
+     * 页面缓存：服务器返回 304 后使用缓存 / 没有可用缓存 / 使用缓存的作品信息而不请求作品页面
+     */
+    public static final Counter HTTP_CACHE_HITS = REGISTRY.counter("pixiv_http_cache_total",
+            "页面缓存的使用情况", "result", "hit");
+    public static final Counter HTTP_CACHE_MISSES = REGISTRY.counter("pixiv_http_cache_total",
+            "页面缓存的使用情况", "result", "miss");
+    public static final Counter ARTWORK_META_HITS = REGISTRY.counter("pixiv_http_cache_total",
+            "页面缓存的使用情况", "result", "artwork_meta");
+
+    /**
+     * 数据库查询与写入的耗时
+     */
+    public static final Histogram DB_CHECK = REGISTRY.histogram(DB_DURATION, DB_DURATION_HELP, "op", "check");
+    public static final Histogram DB_CHECK_BATCH = REGISTRY.histogram(DB_DURATION, DB_DURATION_HELP, "op", "check_batch");
+    public static final Histogram DB_INSERT = REGISTRY.histogram(DB_DURATION, DB_DURATION_HELP, "op", "insert");
+    public static final Histogram DB_FLUSH = REGISTRY.histogram(DB_DURATION, DB_DURATION_HELP, "op", "flush");
+
+    /**
+     * 打包统计
+     */
+    public static final Histogram ARCHIVE_DURATION = REGISTRY.histogram("pixiv_archive_duration_seconds",
+            "写入单个压缩文件的耗时");
+    public static final Counter ARCHIVED_FILES = REGISTRY.counter("pixiv_archived_files_total", "已打包的图片数");
+    public static final Counter ARCHIVED_BYTES = REGISTRY.counter("pixiv_archived_bytes_total", "已打包的图片字节数");
+
+    /**
+     * 单个文件上传的耗时
+     */
+    public static final Histogram UPLOAD_DURATION = REGISTRY.histogram("pixiv_upload_duration_seconds",
+            "单个文件上传的耗时");
+
+    private Metrics() {
+    }
+
+    /**
+     * 注册一个阶段的队列长度，读取指标时计算
+     *
+     * @param queue 阶段名称
+     * @param depth 当前队列长度
+     */
+    public static void queueDepth(String queue, DoubleSupplier depth) {
+        REGISTRY.gauge(QUEUE_DEPTH, QUEUE_DEPTH_HELP, depth, "queue", queue);
+    }
+
+    /**
+     * 记录一次重试
+     */
+    public static void retry(Exception e) {
+        REGISTRY.counter(RETRIES, RETRIES_HELP, "reason", reason(e)).inc();
+    }
+
+    /**
+     * 记录一次放弃重试的失败
+     */
+    public static void failure(Exception e) {
+        REGISTRY.counter(FAILURES, FAILURES_HELP, "reason", reason(e)).inc();
+    }
+
+    /**
+     * HTTP 状态错误按状态码区分，其他错误按异常类型区分
+     */
+    private static String reason(Exception e) {
+        if (e instanceof HttpStatusException) {
+            return "http_" + ((HttpStatusException) e).getStatusCode();
+        }
+        return e.getClass().getSimpleName();
+    }
+}
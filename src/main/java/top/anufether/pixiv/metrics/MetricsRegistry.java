@@ -0,0 +1,184 @@
+package top.anufether.pixiv.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/24 10:30
+ * @Description: 指标注册表，按名称与标签管理计数器、直方图及读取时计算的指标，并输出 Prometheus 文本格式
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+public class MetricsRegistry {
+
+    private enum Type {
+        COUNTER, GAUGE, HISTOGRAM;
+
+        String text() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * 同名指标的集合，每组标签对应一个值
+     */
+    private static class Family {
+        private final String name;
+        private final String help;
+        private final Type type;
+        private final Map<String, Object> children = new ConcurrentSkipListMap<>();
+
+        Family(String name, String help, Type type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    /**
+     * 按名称排序，每次输出的顺序一致
+     */
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    /**
+     * 注册或获取计数器
+     *
+     * @param labels 标签名与标签值交替排列，如 "kind", "list"
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, Type.COUNTER).children
+                .computeIfAbsent(labelKey(labels), k -> new Counter());
+    }
+
+    /**
+     * 注册或获取耗时直方图，区间上限以第一次注册时为准
+     */
+    public Histogram histogram(String name, String help, double[] buckets, String... labels) {
+        return (Histogram) family(name, help, Type.HISTOGRAM).children
+                .computeIfAbsent(labelKey(labels), k -> new Histogram(buckets));
+    }
+
+    public Histogram histogram(String name, String help, String... labels) {
+        return histogram(name, help, Histogram.DEFAULT_BUCKETS, labels);
+    }
+
+    /**
+     * 注册读取时计算的计数器，用于已有的统计值，同名同标签时替换原来的值
+     */
+    public void counter(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, Type.COUNTER).children.put(labelKey(labels), value);
+    }
+
+    /**
+     * 注册读取时计算的当前值，如队列长度，同名同标签时替换原来的值
+     */
+    public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, Type.GAUGE).children.put(labelKey(labels), value);
+    }
+
+    private Family family(String name, String help, Type type) {
+        Family family = families.computeIfAbsent(name, k -> new Family(name, help, type));
+        if (family.type != type) {
+            throw new IllegalArgumentException("指标 " + name + " 已注册为 " + family.type.text());
+        }
+        return family;
+    }
+
+    /**
+     * 以 Prometheus 文本格式输出所有指标
+     */
+    public String scrape() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Family family : families.values()) {
+            sb.append("# HELP ").append(family.name).append(' ').append(escapeHelp(family.help)).append('\n');
+            sb.append("# TYPE ").append(family.name).append(' ').append(family.type.text()).append('\n');
+            for (Map.Entry<String, Object> child : family.children.entrySet()) {
+                String labels = child.getKey();
+                Object value = child.getValue();
+                if (value instanceof Histogram) {
+                    writeHistogram(sb, family.name, labels, (Histogram) value);
+                } else if (value instanceof Counter) {
+                    sample(sb, family.name, labels).append(((Counter) value).get()).append('\n');
+                } else if (value instanceof LongSupplier) {
+                    sample(sb, family.name, labels).append(((LongSupplier) value).getAsLong()).append('\n');
+                } else {
+                    sample(sb, family.name, labels).append(format(((DoubleSupplier) value).getAsDouble())).append('\n');
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void writeHistogram(StringBuilder sb, String name, String labels, Histogram histogram) {
+        double[] bounds = histogram.bounds();
+        long[] counts = histogram.cumulativeCounts();
+        // 标签中追加 le，如 {kind="list"} → {kind="list",le="0.5"}
+        String prefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+        for (int i = 0; i < bounds.length; i++) {
+            sb.append(name).append("_bucket").append(prefix).append("le=\"").append(format(bounds[i])).append("\"} ")
+                    .append(counts[i]).append('\n');
+        }
+        long total = counts[counts.length - 1];
+        sb.append(name).append("_bucket").append(prefix).append("le=\"+Inf\"} ").append(total).append('\n');
+        sample(sb, name + "_sum", labels).append(format(histogram.sumSeconds())).append('\n');
+        sample(sb, name + "_count", labels).append(total).append('\n');
+    }
+
+    private static StringBuilder sample(StringBuilder sb, String name, String labels) {
+        return sb.append(name).append(labels).append(' ');
+    }
+
+    /**
+     * 将标签格式化为 {name="value",...}，同时作为区分同名指标的键
+     */
+    private static String labelKey(String... labels) {
+        if (labels.length == 0) {
+            return "";
+        }
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("标签名与标签值必须成对出现");
+        }
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"");
+            String value = labels[i + 1] == null ? "" : labels[i + 1];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == '\\' || c == '"') {
+                    sb.append('\\').append(c);
+                } else if (c == '\n') {
+                    sb.append("\\n");
+                } else {
+                    sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    private static String escapeHelp(String help) {
+        return help.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+
+    private static String format(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+}
@@ -0,0 +1,35 @@
+package top.anufether.pixiv.spider;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/13 10:05
+ * @Description: 作品页面解析结果，包含每一页原图的 URL
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Getter
+@AllArgsConstructor
+public class Artwork {
+
+    /**
+     * 作品 ID
+     */
+    private final String dataId;
+
+    /**
+     * 图片数量
+     */
+    private final int pageCount;
+
+    /**
+     * 每一页原图的 URL
+     */
+    private final List<String> imageUrls;
+}
@@ -0,0 +1,40 @@
+package top.anufether.pixiv.spider;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/13 10:05
+ * @Description: 列表页面中发现的作品
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Getter
+@AllArgsConstructor
+public class ArtworkRef {
+
+    /**
+     * 作品 ID，创建时已校验为正整数
+     */
+    private final int id;
+
+    /**
+     * 作品页面 URL
+     */
+    private final String pageUrl;
+
+    /**
+     * 所属的列表页面
+     */
+    private final ListPage listPage;
+
+    /**
+     * @return 字符串形式的作品 ID，用于文件名、爬取日志与页面地址
+     */
+    public String getDataId() {
+        return Integer.toString(id);
+    }
+}
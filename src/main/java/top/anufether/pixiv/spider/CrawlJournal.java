@@ -0,0 +1,347 @@
+package top.anufether.pixiv.spider;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import top.anufether.pixiv.util.FileUtils;
+import top.anufether.pixiv.util.TransferUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/25 9:30
+ * @Description: 爬取日志，以追加方式记录列表页面、作品与图片的完成情况，定期压缩。
+ * 重启后从第一个未完成的列表页面继续，并跳过其中已完成的作品和图片。
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Slf4j
+public class CrawlJournal implements Closeable {
+
+    /**
+     * 记录类型，每行一条记录，字段以制表符分隔：
+     * S 起始页面 / P 序号 页面 下一页 / A 序号 作品 / I 序号 作品 图片序号 / D 序号
+     */
+    private static final String START = "S";
+    private static final String PAGE = "P";
+    private static final String ARTWORK = "A";
+    private static final String IMAGE = "I";
+    private static final String DONE = "D";
+
+    /**
+     * 没有下一页时记录的占位符
+     */
+    private static final String NONE = "-";
+
+    /**
+     * 未完成的列表页面
+     */
+    private static class PageState {
+        private final String url;
+        private final String nextUrl;
+        private final Set<String> artworks = new HashSet<>();
+        /**
+         * 未完成作品中已下载的图片
+         */
+        private final Map<String, BitSet> images = new HashMap<>();
+
+        PageState(String url, String nextUrl) {
+            this.url = url;
+            this.nextUrl = nextUrl;
+        }
+    }
+
+    private final File file;
+
+    /**
+     * 追加多少条记录后压缩一次，不大于 0 时只在关闭时压缩
+     */
+    private final int compactEvery;
+
+    /**
+     * 日志对应的起始页面，与配置中的起始页面不同时丢弃日志重新开始
+     */
+    @Getter
+    private String startUrl;
+
+    /**
+     * 按发现顺序排列的未完成列表页面
+     */
+    private final Map<Integer, PageState> pending = new LinkedHashMap<>();
+
+    /**
+     * 最后一个完成的列表页面
+     */
+    private PageState lastDone;
+
+    private int nextSequence = 1;
+
+    private FileChannel channel;
+
+    private int appended;
+
+    public CrawlJournal(File file, int compactEvery) {
+        this.file = file;
+        this.compactEvery = compactEvery;
+    }
+
+    /**
+     * 读取已有的日志并压缩，之后的记录追加到日志末尾
+     *
+     * @param startUrl 配置中的起始页面
+     * @throws IOException 读写日志失败
+     */
+    public synchronized void open(String startUrl) throws IOException {
+        if (file.exists()) {
+            replay();
+            if (this.startUrl != null && !this.startUrl.equals(startUrl)) {
+                log.info("起始页面已修改, 丢弃原有的爬取日志: {}", this.startUrl);
+                pending.clear();
+                lastDone = null;
+            }
+        }
+        this.startUrl = startUrl;
+        compact();
+    }
+
+    /**
+     * 计算继续爬取的页面：第一个未完成的列表页面，全部完成时为最后完成页面的下一页
+     *
+     * @return 继续爬取的页面，日志中没有进度时为起始页面
+     */
+    public synchronized String resumeUrl() {
+        if (!pending.isEmpty()) {
+            return pending.values().iterator().next().url;
+        }
+        if (lastDone != null) {
+            return lastDone.nextUrl != null ? lastDone.nextUrl : lastDone.url;
+        }
+        return startUrl;
+    }
+
+    /**
+     * 记录获取到的列表页面。页面已在日志中且未完成时沿用原来的序号，保留其中已完成的作品。
+     */
+    public synchronized void pageDiscovered(ListPage page) {
+        for (Map.Entry<Integer, PageState> entry : pending.entrySet()) {
+            if (entry.getValue().url.equals(page.getUrl())) {
+                page.setSequence(entry.getKey());
+                return;
+            }
+        }
+        int sequence = nextSequence++;
+        page.setSequence(sequence);
+        pending.put(sequence, new PageState(page.getUrl(), page.getNextUrl()));
+        append(PAGE, Integer.toString(sequence), page.getUrl(), page.getNextUrl() == null ? NONE : page.getNextUrl());
+    }
+
+    /**
+     * @return 作品在未完成的列表页面中是否已经完成
+     */
+    public synchronized boolean isArtworkDone(String dataId) {
+        for (PageState state : pending.values()) {
+            if (state.artworks.contains(dataId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized void artworkDone(ArtworkRef ref) {
+        PageState state = pending.get(ref.getListPage().getSequence());
+        if (state == null) {
+            return;
+        }
+        state.artworks.add(ref.getDataId());
+        state.images.remove(ref.getDataId());
+        append(ARTWORK, Integer.toString(ref.getListPage().getSequence()), ref.getDataId());
+    }
+
+    /**
+     * @return 作品的第 index 张图片是否已经下载完成
+     */
+    public synchronized boolean isImageDone(ArtworkRef ref, int index) {
+        PageState state = pending.get(ref.getListPage().getSequence());
+        BitSet done = state == null ? null : state.images.get(ref.getDataId());
+        return done != null && done.get(index);
+    }
+
+    public synchronized void imageDone(ArtworkRef ref, int index) {
+        PageState state = pending.get(ref.getListPage().getSequence());
+        if (state == null) {
+            return;
+        }
+        state.images.computeIfAbsent(ref.getDataId(), k -> new BitSet()).set(index);
+        append(IMAGE, Integer.toString(ref.getListPage().getSequence()), ref.getDataId(), Integer.toString(index));
+    }
+
+    /**
+     * 记录列表页面的所有作品均已完成
+     */
+    public synchronized void pageDone(ListPage page) {
+        PageState state = pending.remove(page.getSequence());
+        if (state == null) {
+            return;
+        }
+        lastDone = state;
+        append(DONE, Integer.toString(page.getSequence()));
+    }
+
+    /**
+     * 压缩日志并关闭
+     */
+    @Override
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            compact();
+            channel.close();
+        } catch (IOException e) {
+            log.error("保存爬取日志失败: {}", e.getMessage());
+        }
+        channel = null;
+    }
+
+    private void replay() throws IOException {
+        String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        // 写入时中断会留下没有换行符的最后一行，其内容可能不完整，直接忽略
+        String[] lines = content.split("\n", -1);
+        for (int i = 0; i < lines.length - 1; i++) {
+            try {
+                apply(lines[i].split("\t"));
+            } catch (RuntimeException e) {
+                log.warn("忽略爬取日志中无法解析的第 {} 行: {}", i + 1, lines[i]);
+            }
+        }
+        log.info("已读取爬取日志 {} 条记录, 未完成的列表页面 {} 个.", lines.length - 1, pending.size());
+    }
+
+    private void apply(String[] fields) {
+        switch (fields[0]) {
+            case START:
+                startUrl = fields[1];
+                break;
+            case PAGE: {
+                int sequence = Integer.parseInt(fields[1]);
+                pending.put(sequence, new PageState(fields[2], NONE.equals(fields[3]) ? null : fields[3]));
+                nextSequence = Math.max(nextSequence, sequence + 1);
+                break;
+            }
+            case ARTWORK: {
+                PageState state = pending.get(Integer.parseInt(fields[1]));
+                if (state != null) {
+                    state.artworks.add(fields[2]);
+                    state.images.remove(fields[2]);
+                }
+                break;
+            }
+            case IMAGE: {
+                PageState state = pending.get(Integer.parseInt(fields[1]));
+                if (state != null) {
+                    state.images.computeIfAbsent(fields[2], k -> new BitSet()).set(Integer.parseInt(fields[3]));
+                }
+                break;
+            }
+            case DONE: {
+                PageState state = pending.remove(Integer.parseInt(fields[1]));
+                if (state != null) {
+                    lastDone = state;
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("未知的记录类型: " + fields[0]);
+        }
+    }
+
+    /**
+     * 只保留继续爬取所需的记录，写入临时文件后原子替换原日志
+     */
+    private void compact() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        line(sb, START, startUrl);
+        if (lastDone != null) {
+            // 最后完成的页面只用于计算下一页，使用序号 0
+            line(sb, PAGE, "0", lastDone.url, lastDone.nextUrl == null ? NONE : lastDone.nextUrl);
+            line(sb, DONE, "0");
+        }
+        for (Map.Entry<Integer, PageState> entry : pending.entrySet()) {
+            PageState state = entry.getValue();
+            line(sb, PAGE, entry.getKey().toString(), state.url, state.nextUrl == null ? NONE : state.nextUrl);
+            for (String dataId : state.artworks) {
+                line(sb, ARTWORK, entry.getKey().toString(), dataId);
+            }
+            for (Map.Entry<String, BitSet> image : state.images.entrySet()) {
+                BitSet done = image.getValue();
+                for (int i = done.nextSetBit(0); i >= 0; i = done.nextSetBit(i + 1)) {
+                    line(sb, IMAGE, entry.getKey().toString(), image.getKey(), Integer.toString(i));
+                }
+            }
+        }
+
+        if (channel != null) {
+            channel.close();
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            // 替换前必须落盘，否则崩溃后可能只剩下空文件
+            out.force(true);
+        }
+        FileUtils.moveAtomically(tmp, file);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        appended = 0;
+    }
+
+    /**
+     * 追加一条记录，每条记录只有一次写入
+     */
+    private void append(String type, String... fields) {
+        if (channel == null) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder(64);
+        line(sb, type, fields);
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            TransferUtils.sync(channel);
+            if (compactEvery > 0 && ++appended >= compactEvery) {
+                compact();
+            }
+        } catch (IOException e) {
+            log.error("写入爬取日志失败: {}", e.getMessage());
+        }
+    }
+
+    private static void line(StringBuilder sb, String type, String... fields) {
+        sb.append(type);
+        for (String field : fields) {
+            sb.append('\t').append(field);
+        }
+        sb.append('\n');
+    }
+}
@@ -0,0 +1,605 @@
+package top.anufether.pixiv.spider;
+
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import top.anufether.pixiv.config.SpiderConfig;
+import top.anufether.pixiv.dao.DatabaseManager;
+import top.anufether.pixiv.metrics.Metrics;
+import top.anufether.pixiv.store.ImageLayout;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/13 10:40
+ * @Description: 爬取流水线，将列表发现、作品解析、图片下载、结果持久化拆分为独立阶段，阶段之间使用有界队列连接
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Slf4j
+public class CrawlPipeline {
+
+    /**
+     * 通知作品解析线程退出的标记
+     */
+    private static final ArtworkRef POISON = new ArtworkRef(0, null, null);
+
+    /**
+     * 停止时等待单个列表发现线程结束的时间 (毫秒)
+     */
+    private static final long STOP_TIMEOUT = 10000;
+
+    private final PageResolver resolver;
+    private final DownloadEngine downloadEngine;
+    private final DatabaseManager databaseManager;
+
+    /**
+     * 爬取目标，每个目标有独立的列表发现线程与爬取日志，共用之后的各个阶段
+     */
+    private final List<Target> targets = new ArrayList<>();
+
+    /**
+     * 作品解析线程数，使用虚拟线程时只有一个分发线程
+     */
+    private final int resolverThreads;
+
+    /**
+     * 使用虚拟线程时每个作品一个线程，在其中解析作品并等待所有图片下载完成，使用平台线程时为 null
+     */
+    private final ExecutorService artworkExecutor;
+
+    /**
+     * 使用虚拟线程时同时处理的作品数
+     */
+    private final Semaphore artworkPermits;
+
+    /**
+     * 列表发现 → 作品解析
+     */
+    private final BlockingQueue<ArtworkRef> artworkQueue;
+
+    /**
+     * 图片下载 → 结果持久化
+     */
+    private final BlockingQueue<ArtworkResult> resultQueue;
+
+    /**
+     * 同时请求列表页面的线程池，每个目标最多同时请求 listFanout 个页面，不按页码请求时为 null
+     */
+    private final ExecutorService listExecutor;
+
+    private final PaginationPlanner planner;
+
+    /**
+     * 本次运行中已交给解析阶段的作品，多个目标同时发现同一作品时只处理一次
+     */
+    private final Map<Integer, Claim> claimed = new ConcurrentHashMap<>();
+
+    private final AtomicLong discovered = new AtomicLong();
+
+    /**
+     * 尚未结束的列表发现线程数
+     */
+    private final AtomicInteger activeWalkers = new AtomicInteger();
+
+    /**
+     * 列表发现线程，停止时中断
+     */
+    private final List<Thread> walkers = new CopyOnWriteArrayList<>();
+
+    /**
+     * 是否已停止发现与解析新的作品
+     */
+    private volatile boolean stopping = false;
+
+    /**
+     * 流水线结束时计数归零
+     */
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    /**
+     * 爬取目标
+     */
+    private static class Target {
+        /**
+         * 目标序号，从 0 开始，记录在列表页面中
+         */
+        private final int index;
+        private final CrawlJournal journal;
+        /**
+         * 已发现但尚未全部完成的列表页面，按发现顺序排列
+         */
+        private final Deque<ListPage> pendingPages = new ArrayDeque<>();
+
+        Target(int index, CrawlJournal journal) {
+            this.index = index;
+            this.journal = journal;
+        }
+    }
+
+    /**
+     * 作品的处理权。其他目标发现同一作品时登记为等待者，作品处理结束后与发现它的页面一起完成
+     */
+    private static class Claim {
+        private final ArtworkRef owner;
+        private List<ArtworkRef> waiters = new ArrayList<>();
+        /**
+         * 处理结果，尚未结束时为 null
+         */
+        private Boolean success;
+
+        Claim(ArtworkRef owner) {
+            this.owner = owner;
+        }
+
+        /**
+         * 登记为等待者
+         *
+         * @return 作品已处理结束时返回结果，此时不会登记；尚未结束时返回 null
+         */
+        synchronized Boolean await(ArtworkRef ref) {
+            if (success == null) {
+                waiters.add(ref);
+            }
+            return success;
+        }
+
+        /**
+         * 记录处理结果
+         *
+         * @return 登记过的等待者
+         */
+        synchronized List<ArtworkRef> settle(boolean success) {
+            this.success = success;
+            List<ArtworkRef> settled = waiters;
+            waiters = Collections.emptyList();
+            return settled;
+        }
+    }
+
+    /**
+     * 作品处理结果
+     */
+    @AllArgsConstructor
+    private static class ArtworkResult {
+        private final ArtworkRef ref;
+        private final int pageCount;
+        private final boolean success;
+    }
+
+    public CrawlPipeline(PageResolver resolver, DownloadEngine downloadEngine, DatabaseManager databaseManager,
+                         List<CrawlJournal> journals, SpiderConfig config) {
+        this.resolver = resolver;
+        this.downloadEngine = downloadEngine;
+        this.databaseManager = databaseManager;
+        for (CrawlJournal journal : journals) {
+            targets.add(new Target(targets.size(), journal));
+        }
+        if (downloadEngine.getThreadMode() == DownloadEngine.ThreadMode.VIRTUAL) {
+            this.resolverThreads = 1;
+            this.artworkExecutor = VirtualThreads.newThreadPerTaskExecutor("pipeline-artwork-");
+            this.artworkPermits = new Semaphore(config.getArtworkThreads());
+        } else {
+            this.resolverThreads = config.getResolvers();
+            this.artworkExecutor = null;
+            this.artworkPermits = null;
+        }
+        if (config.getListFanout() > 1) {
+            AtomicInteger threadIndex = new AtomicInteger();
+            this.listExecutor = Executors.newFixedThreadPool(config.getListFanout() * targets.size(), r -> {
+                Thread t = new Thread(r, "pipeline-list-" + threadIndex.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        } else {
+            this.listExecutor = null;
+        }
+        this.planner = new PaginationPlanner(resolver::fetchListPage, listExecutor, config.getListFanout());
+        this.artworkQueue = new ArrayBlockingQueue<>(config.getArtworkQueue());
+        this.resultQueue = new ArrayBlockingQueue<>(config.getResultQueue());
+        Metrics.queueDepth("artwork", artworkQueue::size);
+        Metrics.queueDepth("result", resultQueue::size);
+        Metrics.queueDepth("list_page", () -> {
+            int pages = 0;
+            for (Target target : targets) {
+                synchronized (target.pendingPages) {
+                    pages += target.pendingPages.size();
+                }
+            }
+            return pages;
+        });
+    }
+
+    /**
+     * 从各个目标爬取日志记录的位置开始运行流水线，直到所有目标都没有下一页且所有作品处理完毕
+     */
+    public void run() {
+        try {
+            runStages();
+        } finally {
+            finished.countDown();
+        }
+    }
+
+    private void runStages() {
+        log.info("开始进行图片爬取🦎, 共 {} 个爬取目标.", targets.size());
+        // 分片布局下未完成的下载分散在各个子文件夹中，不逐个遍历统计
+        if (resolver.getImageLayout().getMode() == ImageLayout.Mode.FLAT) {
+            int partFiles = ImageDownloader.countPartFiles(resolver.getImageSavePath());
+            if (partFiles > 0) {
+                log.info("发现 {} 个未完成的下载, 将在爬取到对应作品时断点续传.", partFiles);
+            }
+        }
+        activeWalkers.set(targets.size());
+        for (Target target : targets) {
+            String startUrl = target.journal.resumeUrl();
+            if (!startUrl.equals(target.journal.getStartUrl())) {
+                log.info("根据爬取日志从 {} 继续爬取.", startUrl);
+            }
+            Thread t = new Thread(() -> discover(target, startUrl), "pipeline-discovery-" + (target.index + 1));
+            t.start();
+            walkers.add(t);
+        }
+
+        List<Thread> resolvers = new ArrayList<>(resolverThreads);
+        for (int i = 0; i < resolverThreads; i++) {
+            Thread t = artworkExecutor != null
+                    ? new Thread(this::dispatch, "pipeline-dispatcher")
+                    : new Thread(this::resolve, "pipeline-resolver-" + (i + 1));
+            t.start();
+            resolvers.add(t);
+        }
+
+        // 持久化阶段在当前线程中执行
+        persist();
+
+        try {
+            for (Thread t : walkers) {
+                t.join();
+            }
+            for (Thread t : resolvers) {
+                t.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (listExecutor != null) {
+            listExecutor.shutdownNow();
+        }
+        if (artworkExecutor != null) {
+            artworkExecutor.shutdown();
+        }
+        downloadEngine.reportThroughput();
+        log.info("爬取流水线已结束, 共处理 {} 个作品.", discovered.get());
+    }
+
+    /**
+     * 停止发现与解析新的作品，已提交的下载继续完成。尚未解析的作品不记录进度，下次运行时重新发现
+     */
+    public void stop() {
+        stopping = true;
+        if (finished.getCount() == 0) {
+            return;
+        }
+        for (Thread t : walkers) {
+            t.interrupt();
+        }
+        try {
+            for (Thread t : walkers) {
+                t.join(STOP_TIMEOUT);
+            }
+            // 被中断的列表发现线程未能通知解析线程退出
+            for (int i = 0; i < resolverThreads; i++) {
+                artworkQueue.offer(POISON, STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 等待持久化阶段写入剩余的结果，应在停止流水线并关闭下载引擎后调用
+     *
+     * @return 流水线在限定时间内结束时返回 true
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return finished.await(timeout, unit);
+    }
+
+    /**
+     * 列表发现阶段：按分页计划获取目标的列表页面，按页码顺序处理
+     */
+    private void discover(Target target, String startUrl) {
+        try {
+            planner.walk(startUrl, page -> accept(target, page));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("处理列表页面时发生错误", e);
+        } finally {
+            // 最后一个结束的列表发现线程通知解析线程退出
+            if (activeWalkers.decrementAndGet() == 0) {
+                for (int i = 0; i < resolverThreads; i++) {
+                    try {
+                        artworkQueue.put(POISON);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 过滤列表页面中已爬取的作品后放入解析队列，队列满时阻塞
+     */
+    private void accept(Target target, ListPage page) throws InterruptedException {
+        if (stopping) {
+            throw new InterruptedException("爬取流水线已停止");
+        }
+        page.setTarget(target.index);
+        target.journal.pageDiscovered(page);
+        synchronized (target.pendingPages) {
+            target.pendingPages.addLast(page);
+        }
+        // 在请求任何作品页面之前，一次性过滤掉整页中已爬取的作品
+        List<Integer> ids = new ArrayList<>(page.getArtworks().size());
+        for (ArtworkRef ref : page.getArtworks()) {
+            ids.add(ref.getId());
+        }
+        Map<Integer, Integer> crawled = databaseManager.checkArtworks(ids);
+        if (crawled.size() == ids.size()) {
+            log.info("列表页面中的 {} 个作品均已爬取, 直接跳到下一页.", ids.size());
+        } else if (!crawled.isEmpty()) {
+            log.info("列表页面中已有 {} 个作品爬取过, 自动跳过.", crawled.size());
+        }
+
+        int shared = 0;
+        for (ArtworkRef ref : page.getArtworks()) {
+            // 数据库尚未写入但日志中已完成的作品同样跳过
+            if (crawled.containsKey(ref.getId())
+                    || target.journal.isArtworkDone(ref.getDataId())) {
+                page.completeArtwork();
+                continue;
+            }
+            // 已由其他目标处理的作品，等待处理结束后再完成，避免处理失败时当前页面已被记录为完成
+            Claim claim = claimed.computeIfAbsent(ref.getId(), id -> new Claim(ref));
+            if (claim.owner != ref) {
+                shared++;
+                Boolean success = claim.await(ref);
+                if (success != null) {
+                    settle(ref, success);
+                }
+                continue;
+            }
+            // 放入队列后再计数，被中断时不会多计
+            artworkQueue.put(ref);
+            discovered.incrementAndGet();
+        }
+        if (shared > 0) {
+            log.info("列表页面中有 {} 个作品已由其他爬取目标处理, 自动跳过.", shared);
+        }
+    }
+
+    /**
+     * 作品解析阶段：解析作品页面后将图片提交到下载引擎
+     */
+    private void resolve() {
+        while (true) {
+            ArtworkRef ref;
+            try {
+                ref = artworkQueue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (ref == POISON) {
+                return;
+            }
+            if (stopping) {
+                drop(ref);
+                continue;
+            }
+            process(ref, false);
+        }
+    }
+
+    /**
+     * 使用虚拟线程时的作品解析阶段：为每个作品启动一个虚拟线程，同时处理的作品数由许可限制
+     */
+    private void dispatch() {
+        while (true) {
+            ArtworkRef ref;
+            try {
+                ref = artworkQueue.take();
+                if (ref == POISON) {
+                    return;
+                }
+                if (stopping) {
+                    drop(ref);
+                    continue;
+                }
+                artworkPermits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                artworkExecutor.execute(() -> {
+                    try {
+                        process(ref, true);
+                    } finally {
+                        artworkPermits.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                artworkPermits.release();
+                log.error("提交作品 {} 失败", ref.getDataId(), e);
+                publish(new ArtworkResult(ref, 0, false));
+            }
+        }
+    }
+
+    /**
+     * 解析作品并下载所有图片，全部完成后将结果交给持久化阶段
+     *
+     * @param ref   作品
+     * @param await 是否在当前线程中等待所有图片下载完成，为 false 时由最后完成的下载线程提交结果
+     */
+    private void process(ArtworkRef ref, boolean await) {
+        CrawlJournal journal = journalOf(ref);
+        try {
+            Artwork artwork = resolver.resolveArtwork(ref);
+            List<CompletableFuture<Long>> pages = new ArrayList<>(artwork.getPageCount());
+            List<String> imageUrls = artwork.getImageUrls();
+            for (int i = 0; i < imageUrls.size(); i++) {
+                int index = i;
+                String imgUrl = imageUrls.get(i);
+                if (journal.isImageDone(ref, index)) {
+                    pages.add(CompletableFuture.completedFuture(0L));
+                    continue;
+                }
+                pages.add(downloadEngine.submit(imgUrl, () -> {
+                    long bytes = resolver.downloadImage(imgUrl, ref.getDataId());
+                    journal.imageDone(ref, index);
+                    return bytes;
+                }));
+            }
+
+            // 只有当所有图片都下载完成后才交给持久化阶段写入数据库
+            CompletableFuture<Void> all = CompletableFuture.allOf(pages.toArray(CompletableFuture<?>[]::new));
+            if (await) {
+                Throwable error = null;
+                try {
+                    all.join();
+                } catch (CompletionException | CancellationException e) {
+                    error = e;
+                }
+                complete(ref, artwork, error);
+            } else {
+                all.whenComplete((v, e) -> complete(ref, artwork, e));
+            }
+        } catch (Exception e) {
+            log.error("处理作品 {} 时发生错误", ref.getDataId(), e);
+            publish(new ArtworkResult(ref, 0, false));
+        }
+    }
+
+    /**
+     * 停止后丢弃尚未解析的作品，所在的列表页面不会记录为已完成
+     */
+    private void drop(ArtworkRef ref) {
+        claimed.remove(ref.getId());
+        discovered.decrementAndGet();
+    }
+
+    private void complete(ArtworkRef ref, Artwork artwork, Throwable e) {
+        if (e != null) {
+            log.error("作品 {} 存在下载失败的图片, 不写入数据库.", ref.getDataId(), e);
+            // 原图地址可能已经变化
+            resolver.invalidateArtwork(ref.getId());
+        }
+        publish(new ArtworkResult(ref, artwork.getPageCount(), e == null));
+    }
+
+    private void publish(ArtworkResult result) {
+        try {
+            resultQueue.put(result);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("提交作品 {} 的处理结果时被中断", result.ref.getDataId());
+        }
+    }
+
+    /**
+     * 持久化阶段：写入数据库，并在列表页面的所有作品完成后记录爬取进度
+     */
+    private void persist() {
+        long processed = 0;
+        while (!(activeWalkers.get() == 0 && processed >= discovered.get())) {
+            ArtworkResult result;
+            try {
+                result = resultQueue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (result != null) {
+                processed++;
+                if (result.success) {
+                    databaseManager.addArtworks(result.ref.getId(), result.pageCount);
+                }
+                settle(result.ref, result.success);
+                Claim claim = claimed.get(result.ref.getId());
+                if (claim != null) {
+                    if (!result.success) {
+                        // 失败的作品可以由之后发现它的目标重试
+                        claimed.remove(result.ref.getId(), claim);
+                    }
+                    for (ArtworkRef waiter : claim.settle(result.success)) {
+                        settle(waiter, result.success);
+                    }
+                }
+            }
+            checkpoint();
+        }
+        checkpoint();
+    }
+
+    /**
+     * 按处理结果完成作品所在的列表页面，成功时记录到所在目标的爬取日志中
+     */
+    private void settle(ArtworkRef ref, boolean success) {
+        if (success) {
+            journalOf(ref).artworkDone(ref);
+            ref.getListPage().completeArtwork();
+        } else {
+            ref.getListPage().failArtwork();
+        }
+    }
+
+    /**
+     * 按顺序移除各个目标已结束的列表页面，并记录到对应的爬取日志中。
+     * 有失败作品的页面不记录为已完成，仍留在日志中，重启后从该页面继续并重试失败的作品。
+     */
+    private void checkpoint() {
+        boolean progressed = false;
+        for (Target target : targets) {
+            ListPage last = null;
+            synchronized (target.pendingPages) {
+                while (!target.pendingPages.isEmpty() && target.pendingPages.peekFirst().isCompleted()) {
+                    ListPage page = target.pendingPages.pollFirst();
+                    if (page.hasFailures()) {
+                        log.warn("列表页面 {} 中有 {} 个作品处理失败, 下次运行时从该页面重试.",
+                                page.getUrl(), page.getFailed().get());
+                        continue;
+                    }
+                    last = page;
+                    target.journal.pageDone(last);
+                }
+            }
+            if (last != null) {
+                log.info("已完成列表页面: {}, 继续爬取页面: {}", last.getUrl(), target.journal.resumeUrl());
+                progressed = true;
+            }
+        }
+        if (progressed) {
+            downloadEngine.reportThroughput();
+        }
+    }
+
+    private CrawlJournal journalOf(ArtworkRef ref) {
+        return targets.get(ref.getListPage().getTarget()).journal;
+    }
+}
@@ -0,0 +1,319 @@
+package top.anufether.pixiv.spider;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import top.anufether.pixiv.constant.Constants;
+import top.anufether.pixiv.metrics.Metrics;
+
+import java.io.Closeable;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/12 14:30
+ * @Description: 图片下载引擎，使用有界线程池并发下载，并限制单个主机的并发连接数
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Slf4j
+@Getter
+public class DownloadEngine implements Closeable {
+
+    /**
+     * 下载线程数，可在运行时修改
+     */
+    private volatile int workers;
+
+    /**
+     * 单个主机的最大并发连接数，可在运行时修改
+     */
+    private volatile int perHostLimit;
+
+    /**
+     * 等待队列长度
+     */
+    private final int queueCapacity;
+
+    /**
+     * 实际使用的线程类型
+     */
+    private final ThreadMode threadMode;
+
+    /**
+     * 执行下载任务的线程池，使用虚拟线程时每个任务一个线程
+     */
+    private final ExecutorService executor;
+
+    /**
+     * 平台线程池，用于调整线程数，使用虚拟线程时为 null
+     */
+    private final ThreadPoolExecutor pool;
+
+    /**
+     * 使用虚拟线程时限制同时下载数的许可，数量为下载线程数，使用平台线程时为 null
+     */
+    private final ResizableSemaphore running;
+
+    /**
+     * 排队与执行中任务的总许可，提交方在队列满时阻塞，总数为下载线程数加上等待队列长度
+     */
+    private final ResizableSemaphore slots;
+
+    /**
+     * 每个主机对应的并发许可
+     */
+    private final Map<String, ResizableSemaphore> hostPermits = new ConcurrentHashMap<>();
+
+    /**
+     * 下载统计
+     */
+    private final LongAdder downloadedBytes = new LongAdder();
+    private final LongAdder downloadedFiles = new LongAdder();
+    private final LongAdder failedFiles = new LongAdder();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * 下载线程类型
+     */
+    public enum ThreadMode {
+        /**
+         * 固定数量的平台线程
+         */
+        PLATFORM,
+        /**
+         * 每个下载任务一个虚拟线程，需要 Java 21
+         */
+        VIRTUAL;
+
+        public static ThreadMode of(String value) {
+            if (value == null || value.isEmpty()) {
+                return PLATFORM;
+            }
+            try {
+                return valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                log.warn("未知的线程类型: {}, 使用 PLATFORM", value);
+                return PLATFORM;
+            }
+        }
+    }
+
+    /**
+     * 下载任务，返回本次写入的字节数
+     */
+    @FunctionalInterface
+    public interface DownloadTask {
+        long download() throws Exception;
+    }
+
+    /**
+     * 许可总数可以调整的信号量，减少许可时不等待已借出的许可归还
+     */
+    private static class ResizableSemaphore extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        private int limit;
+
+        ResizableSemaphore(int limit) {
+            super(limit);
+            this.limit = limit;
+        }
+
+        synchronized void resize(int newLimit) {
+            if (newLimit > limit) {
+                release(newLimit - limit);
+            } else if (newLimit < limit) {
+                reducePermits(limit - newLimit);
+            }
+            limit = newLimit;
+        }
+
+        synchronized int getLimit() {
+            return limit;
+        }
+    }
+
+    public DownloadEngine(int workers, int perHostLimit, int queueCapacity) {
+        this(workers, perHostLimit, queueCapacity, ThreadMode.PLATFORM);
+    }
+
+    /**
+     * @param threadMode 线程类型，使用虚拟线程时每个下载任务一个线程，由信号量代替固定线程池限制并发数。
+     *                   运行时不支持虚拟线程时使用平台线程
+     */
+    public DownloadEngine(int workers, int perHostLimit, int queueCapacity, ThreadMode threadMode) {
+        this.workers = Math.max(1, workers);
+        this.perHostLimit = Math.max(1, perHostLimit);
+        this.queueCapacity = Math.max(0, queueCapacity);
+        this.slots = new ResizableSemaphore(this.workers + this.queueCapacity);
+
+        if (threadMode == ThreadMode.VIRTUAL && !VirtualThreads.isAvailable()) {
+            log.warn("当前 Java 版本 {} 不支持虚拟线程, 使用平台线程.", System.getProperty("java.version"));
+            threadMode = ThreadMode.PLATFORM;
+        }
+        this.threadMode = threadMode;
+        if (threadMode == ThreadMode.VIRTUAL) {
+            this.pool = null;
+            this.running = new ResizableSemaphore(this.workers);
+            this.executor = VirtualThreads.newThreadPerTaskExecutor("download-");
+        } else {
+            AtomicInteger threadIndex = new AtomicInteger();
+            this.pool = new ThreadPoolExecutor(this.workers, this.workers, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "download-" + threadIndex.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            this.running = null;
+            this.executor = pool;
+        }
+
+        Metrics.REGISTRY.counter("pixiv_downloaded_bytes_total", "已下载的字节数", downloadedBytes::sum);
+        Metrics.REGISTRY.counter("pixiv_downloaded_files_total", "已下载的图片数", downloadedFiles::sum);
+        Metrics.REGISTRY.counter("pixiv_download_failures_total", "下载失败的图片数", failedFiles::sum);
+        Metrics.REGISTRY.gauge("pixiv_downloads_in_flight", "正在下载的图片数", inFlight::get);
+        Metrics.queueDepth("download",
+                () -> Math.max(0, slots.getLimit() - slots.availablePermits() - inFlight.get()));
+        log.info("下载引擎已启动, {}数: {}, 单主机并发上限: {}, 队列长度: {}",
+                threadMode == ThreadMode.VIRTUAL ? "虚拟线程" : "线程",
+                this.workers, this.perHostLimit, queueCapacity);
+    }
+
+    /**
+     * 提交一个下载任务。若等待队列已满，调用方会被阻塞直到有空闲位置。
+     *
+     * @param url  下载地址，用于确定所属主机
+     * @param task 下载任务
+     * @return 任务完成时返回写入字节数的 Future
+     */
+    public CompletableFuture<Long> submit(String url, DownloadTask task) {
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            CompletableFuture<Long> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        Semaphore hostPermit = hostPermits.computeIfAbsent(hostOf(url), h -> new ResizableSemaphore(perHostLimit));
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    if (running != null) {
+                        running.acquire();
+                    }
+                    inFlight.incrementAndGet();
+                    try {
+                        hostPermit.acquire();
+                        try {
+                            long bytes = task.download();
+                            downloadedBytes.add(bytes);
+                            downloadedFiles.increment();
+                            future.complete(bytes);
+                        } finally {
+                            hostPermit.release();
+                        }
+                    } finally {
+                        inFlight.decrementAndGet();
+                        if (running != null) {
+                            running.release();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failedFiles.increment();
+                    future.completeExceptionally(e);
+                } catch (Throwable e) {
+                    failedFiles.increment();
+                    future.completeExceptionally(e);
+                } finally {
+                    slots.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            slots.release();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 修改下载线程数与单主机并发上限。减少时不中断进行中的下载，多出的线程在当前任务完成后退出。
+     *
+     * @param workers      下载线程数
+     * @param perHostLimit 单个主机的最大并发连接数
+     */
+    public synchronized void resize(int workers, int perHostLimit) {
+        int newWorkers = Math.max(1, workers);
+        int newPerHostLimit = Math.max(1, perHostLimit);
+        if (newWorkers != this.workers) {
+            if (running != null) {
+                running.resize(newWorkers);
+            } else if (newWorkers > pool.getMaximumPoolSize()) {
+                // 核心线程数不能大于最大线程数，按方向决定修改顺序
+                pool.setMaximumPoolSize(newWorkers);
+                pool.setCorePoolSize(newWorkers);
+            } else {
+                pool.setCorePoolSize(newWorkers);
+                pool.setMaximumPoolSize(newWorkers);
+            }
+            slots.resize(newWorkers + queueCapacity);
+            this.workers = newWorkers;
+        }
+        if (newPerHostLimit != this.perHostLimit) {
+            this.perHostLimit = newPerHostLimit;
+            for (ResizableSemaphore permit : hostPermits.values()) {
+                permit.resize(newPerHostLimit);
+            }
+        }
+        log.info("下载引擎已调整, 线程数: {}, 单主机并发上限: {}", this.workers, this.perHostLimit);
+    }
+
+    /**
+     * 输出当前下载吞吐量
+     */
+    public void reportThroughput() {
+        double seconds = Math.max((System.nanoTime() - startNanos) / 1e9, 0.001);
+        double megabytes = downloadedBytes.sum() / (double) Constants.MEGABYTE;
+        log.info("下载统计: 完成 {} 个文件, 失败 {} 个, 共 {} MB, 平均速率 {} MB/s, 进行中 {} 个.",
+                downloadedFiles.sum(), failedFiles.sum(), String.format("%.2f", megabytes),
+                String.format("%.2f", megabytes / seconds), inFlight.get());
+    }
+
+    /**
+     * 等待已提交的任务完成后关闭线程池
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.warn("下载线程池未能在限定时间内结束, 强制关闭.");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        reportThroughput();
+    }
+
+    private static String hostOf(String url) {
+        try {
+            String host = URI.create(url).getHost();
+            return host != null ? host : "";
+        } catch (IllegalArgumentException e) {
+            return "";
+        }
+    }
+}
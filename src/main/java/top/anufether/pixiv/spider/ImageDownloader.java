@@ -0,0 +1,284 @@
+package top.anufether.pixiv.spider;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import top.anufether.pixiv.http.BandwidthLimiter;
+import top.anufether.pixiv.http.FetchRequest;
+import top.anufether.pixiv.http.FetchResponse;
+import top.anufether.pixiv.http.HttpFetcher;
+import top.anufether.pixiv.http.HttpStatusException;
+import top.anufether.pixiv.http.RequestPolicy;
+import top.anufether.pixiv.metrics.Metrics;
+import top.anufether.pixiv.store.ImageStore;
+import top.anufether.pixiv.util.FileUtils;
+import top.anufether.pixiv.util.TransferUtils;
+
+import java.io.*;
+import java.net.SocketException;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Consumer;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/15 11:10
+ * @Description: 图片下载，先写入 .part 临时文件，失败后通过 Range 请求断点续传，完成后原子重命名为最终文件
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Slf4j
+@Getter
+public class ImageDownloader {
+
+    /**
+     * 未完成下载的文件后缀
+     */
+    public static final String PART_SUFFIX = ".part";
+
+    /**
+     * 记录 ETag / Last-Modified 的文件后缀，用于 If-Range 校验
+     */
+    public static final String META_SUFFIX = ".part.meta";
+
+    /**
+     * HTTP 状态码：Range 请求成功
+     */
+    private static final int PARTIAL_CONTENT = 206;
+
+    /**
+     * HTTP 状态码：Range 超出文件范围
+     */
+    private static final int RANGE_NOT_SATISFIABLE = 416;
+
+    /**
+     * HTTP 状态码：资源不存在，通常是图片后缀名不对
+     */
+    private static final int NOT_FOUND = 404;
+
+    private final HttpFetcher httpFetcher;
+
+    private final RequestPolicy requestPolicy;
+
+    private final Map<String, String> cookies;
+
+    /**
+     * 图片存储，启用后下载时同时计算摘要用于识别重复图片，为 null 时直接保存
+     */
+    @Setter
+    private ImageStore imageStore;
+
+    /**
+     * 图片保存完成后的回调，如提交上传任务，为 null 时不处理
+     */
+    @Setter
+    private Consumer<File> savedListener;
+
+    /**
+     * 下载带宽限制，所有下载共用，为 null 时不限制
+     */
+    @Setter
+    private BandwidthLimiter bandwidthLimiter;
+
+    public ImageDownloader(HttpFetcher httpFetcher, RequestPolicy requestPolicy, Map<String, String> cookies) {
+        this.httpFetcher = httpFetcher;
+        this.requestPolicy = requestPolicy;
+        this.cookies = cookies;
+    }
+
+    /**
+     * 下载单张图片。若最终文件已存在则直接跳过；若存在 .part 文件则从已下载的位置继续。
+     *
+     * @param imgUrl   图片 URL
+     * @param referrer 请求来源页面
+     * @param imgFile  最终保存的文件
+     * @return 本次收到的字节数
+     * @throws IOException 文件操作错误
+     */
+    public long download(String imgUrl, String referrer, File imgFile) throws IOException {
+        String filename = imgFile.getName();
+        if (imgFile.exists() || (imageStore != null && imageStore.contains(imgFile))) {
+            log.info("文件 {} 已存在, 跳过下载.", filename);
+            return 0;
+        }
+
+        FileUtils.createFolder(imgFile.getParent());
+        File partFile = new File(imgFile.getParentFile(), filename + PART_SUFFIX);
+        File metaFile = new File(imgFile.getParentFile(), filename + META_SUFFIX);
+        long received = 0;
+        int attempt = 0;
+        // 两种后缀都返回 404 时不再来回尝试
+        boolean suffixSwapped = false;
+
+        while (true) {
+            attempt++;
+            requestPolicy.acquire(imgUrl);
+            long offset = partFile.exists() ? partFile.length() : 0;
+            Properties meta = loadMeta(metaFile);
+            FetchRequest request = FetchRequest.get(imgUrl)
+                    .cookies(cookies)
+                    .referrer(referrer)
+                    .compressed(false);
+            if (offset > 0) {
+                request.header("Range", "bytes=" + offset + "-");
+                String validator = meta.getProperty("etag", meta.getProperty("lastModified"));
+                if (validator != null) {
+                    request.header("If-Range", validator);
+                }
+                log.info("文件 {} 已下载 {} 字节, 尝试断点续传.", filename, offset);
+            }
+
+            long start = System.nanoTime();
+            try (FetchResponse resImg = httpFetcher.fetch(request)) {
+                boolean append = resImg.getStatusCode() == PARTIAL_CONTENT;
+                if (append && contentRangeStart(resImg) != offset) {
+                    log.warn("文件 {} 返回的 Content-Range 与断点不一致, 将重新下载.", filename);
+                    FileUtils.deleteFile(partFile);
+                    FileUtils.deleteFile(metaFile);
+                    continue;
+                }
+                if (!append) {
+                    // 服务器返回完整内容 (或资源已变化)，从头开始写入
+                    offset = 0;
+                }
+                MessageDigest digest = imageStore != null ? ImageStore.newDigest() : null;
+                if (digest != null && append) {
+                    // 续传时先补齐已下载部分的摘要
+                    TransferUtils.digest(partFile.toPath(), offset, digest);
+                }
+                long contentLength = resImg.contentLength();
+                long expected = contentLength < 0 ? -1 : offset + contentLength;
+                saveMeta(metaFile, resImg, expected);
+
+                InputStream body = bandwidthLimiter != null ? bandwidthLimiter.wrap(resImg.getBody()) : resImg.getBody();
+                try {
+                    TransferUtils.transfer(body, partFile.toPath(), append, digest);
+                } finally {
+                    // 中途失败时同样计入已收到的部分，下次从这里续传
+                    received += partFile.length() - offset;
+                }
+
+                if (expected >= 0 && partFile.length() != expected) {
+                    throw new SocketException("文件 " + filename + " 不完整, 已收到 " + partFile.length()
+                            + " 字节, 应为 " + expected + " 字节");
+                }
+                Metrics.IMAGE_REQUEST.observeSince(start);
+                requestPolicy.onSuccess(imgUrl);
+                complete(partFile, metaFile, imgFile, digest);
+                log.info("文件 {} 保存完成, 共收到 {} 字节.", filename, received);
+                return received;
+            } catch (HttpStatusException e) {
+                // 在退避等待之前记录耗时
+                Metrics.IMAGE_REQUEST.observeSince(start);
+                if (e.getStatusCode() == RANGE_NOT_SATISFIABLE && offset > 0) {
+                    requestPolicy.onSuccess(imgUrl);
+                    String length = loadMeta(metaFile).getProperty("length");
+                    if (length != null && Long.parseLong(length) == offset) {
+                        MessageDigest digest = null;
+                        if (imageStore != null) {
+                            digest = ImageStore.newDigest();
+                            TransferUtils.digest(partFile.toPath(), offset, digest);
+                        }
+                        complete(partFile, metaFile, imgFile, digest);
+                        log.info("文件 {} 此前已下载完整, 共 {} 字节.", filename, offset);
+                        return received;
+                    }
+                    log.warn("文件 {} 的断点无效, 将重新下载.", filename);
+                    FileUtils.deleteFile(partFile);
+                    FileUtils.deleteFile(metaFile);
+                    continue;
+                }
+                if (e.getStatusCode() != NOT_FOUND || suffixSwapped) {
+                    // 限流与服务器错误退避后重试，其他状态码直接失败
+                    requestPolicy.onFailure(imgUrl, e, attempt);
+                    continue;
+                }
+                requestPolicy.onSuccess(imgUrl);
+                suffixSwapped = true;
+                if (imgUrl.contains(".jpg")) {
+                    imgUrl = imgUrl.replaceAll(".jpg", ".png");
+                } else if (imgUrl.contains(".png")) {
+                    imgUrl = imgUrl.replaceAll(".png", ".jpg");
+                }
+                log.warn("HTTP 状态错误: {} 将尝试另一后缀名.", e.getStatusCode());
+            } catch (IOException e) {
+                // 超时与连接错误退避后从断点重试，文件读写错误直接失败
+                Metrics.IMAGE_REQUEST.observeSince(start);
+                requestPolicy.onFailure(imgUrl, e, attempt);
+            }
+        }
+    }
+
+    /**
+     * 统计文件夹中遗留的未完成下载，这些文件会在爬取到对应作品时继续下载
+     *
+     * @param folderPath 图片保存文件夹
+     * @return 未完成下载的文件数量
+     */
+    public static int countPartFiles(String folderPath) {
+        File[] parts = new File(folderPath).listFiles((dir, name) -> name.endsWith(PART_SUFFIX));
+        return parts == null ? 0 : parts.length;
+    }
+
+    private void complete(File partFile, File metaFile, File imgFile, MessageDigest digest) throws IOException {
+        if (imageStore != null && digest != null) {
+            imageStore.commit(partFile, imgFile, digest);
+        } else {
+            FileUtils.moveAtomically(partFile, imgFile);
+        }
+        FileUtils.deleteFile(metaFile);
+        // 重复图片按 SKIP 处理时不会生成文件
+        if (savedListener != null && imgFile.exists()) {
+            savedListener.accept(imgFile);
+        }
+    }
+
+    /**
+     * 解析 Content-Range: bytes start-end/total 中的起始位置
+     */
+    private static long contentRangeStart(FetchResponse response) {
+        String range = response.header("Content-Range");
+        if (range == null || !range.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = range.indexOf('-');
+        try {
+            return Long.parseLong(range.substring(6, dash).trim());
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static Properties loadMeta(File metaFile) {
+        Properties meta = new Properties();
+        if (metaFile.exists()) {
+            try (InputStream in = new FileInputStream(metaFile)) {
+                meta.load(in);
+            } catch (IOException e) {
+                log.warn("读取断点信息失败: {}", metaFile.getAbsolutePath(), e);
+            }
+        }
+        return meta;
+    }
+
+    private static void saveMeta(File metaFile, FetchResponse response, long length) throws IOException {
+        Properties meta = new Properties();
+        String etag = response.header("ETag");
+        String lastModified = response.header("Last-Modified");
+        if (etag != null && !etag.startsWith("W/")) { // 弱校验值不能用于 If-Range
+            meta.setProperty("etag", etag);
+        }
+        if (lastModified != null) {
+            meta.setProperty("lastModified", lastModified);
+        }
+        if (length >= 0) {
+            meta.setProperty("length", Long.toString(length));
+        }
+        try (OutputStream out = new FileOutputStream(metaFile)) {
+            meta.store(out, null);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package top.anufether.pixiv.spider;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/13 10:05
+ * @Description: 已解析的列表页面，记录页面中的作品及其完成进度
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Slf4j
+@Getter
+public class ListPage {
+
+    /**
+     * 当前列表页面 URL
+     */
+    private final String url;
+
+    /**
+     * 下一页 URL，没有下一页时为 null
+     */
+    private final String nextUrl;
+
+    /**
+     * 页面中的作品
+     */
+    private final List<ArtworkRef> artworks = new ArrayList<>();
+
+    /**
+     * 尚未处理完成的作品数量
+     */
+    private final AtomicInteger remaining = new AtomicInteger();
+
+    /**
+     * 处理失败的作品数量
+     */
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /**
+     * 在爬取日志中的页面序号
+     */
+    @Setter
+    private int sequence;
+
+    /**
+     * 所属爬取目标的序号
+     */
+    @Setter
+    private int target;
+
+    public ListPage(String url, String nextUrl) {
+        this.url = url;
+        this.nextUrl = nextUrl;
+    }
+
+    /**
+     * 添加页面中的作品，作品 ID 不是正整数时跳过，页面结构变化时不影响同一页的其他作品
+     *
+     * @param dataId  页面中的作品 ID
+     * @param pageUrl 作品页面 URL
+     */
+    public void addArtwork(String dataId, String pageUrl) {
+        int id;
+        try {
+            id = Integer.parseInt(dataId == null ? "" : dataId.trim());
+        } catch (NumberFormatException e) {
+            id = 0;
+        }
+        if (id <= 0) {
+            log.warn("列表页面 {} 中的作品 ID 无效: '{}', 已跳过.", url, dataId);
+            return;
+        }
+        artworks.add(new ArtworkRef(id, pageUrl, this));
+        remaining.incrementAndGet();
+    }
+
+    /**
+     * 标记一个作品处理完成
+     */
+    public void completeArtwork() {
+        remaining.decrementAndGet();
+    }
+
+    /**
+     * 标记一个作品处理失败，页面中的其他作品完成后页面同样结束，但不会记录为已完成
+     */
+    public void failArtwork() {
+        failed.incrementAndGet();
+        remaining.decrementAndGet();
+    }
+
+    /**
+     * @return 页面中是否有处理失败的作品
+     */
+    public boolean hasFailures() {
+        return failed.get() > 0;
+    }
+
+    public boolean isCompleted() {
+        return remaining.get() <= 0;
+    }
+}
@@ -1,28 +1,31 @@
 package top.anufether.pixiv.spider;
 
 import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONArray;
 import com.alibaba.fastjson2.JSONObject;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
-import org.jsoup.Connection;
-import org.jsoup.HttpStatusException;
-import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
-import top.anufether.pixiv.config.YamlConfig;
-import top.anufether.pixiv.constant.Constants;
-import top.anufether.pixiv.dao.DatabaseManager;
-import top.anufether.pixiv.util.FileUtils;
-
-import javax.net.ssl.SSLException;
-import javax.net.ssl.SSLHandshakeException;
-import java.io.*;
-import java.net.ConnectException;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import org.jsoup.select.Evaluator;
+import org.jsoup.select.QueryParser;
+import top.anufether.pixiv.config.SpiderConfig;
+import top.anufether.pixiv.http.FetchRequest;
+import top.anufether.pixiv.http.FetchResponse;
+import top.anufether.pixiv.http.HttpFetcher;
+import top.anufether.pixiv.http.HttpStatusException;
+import top.anufether.pixiv.http.RequestPolicy;
+import top.anufether.pixiv.metrics.Histogram;
+import top.anufether.pixiv.metrics.Metrics;
+import top.anufether.pixiv.store.ArtworkMetaCache;
+import top.anufether.pixiv.store.ImageLayout;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -30,7 +33,7 @@ import java.util.Map;
  * @Package: top.anufether.pixiv
  * @Author: anufether
  * @Create: 2024/8/8 9:56
- * @Description: 处理列表页面的爬取和解析
+ * @Description: 处理列表页面、作品页面的爬取解析以及图片下载
  * @History: modify
  * * 1900-01-01 12:00:00 modified by xxx
  **/
@@ -38,26 +41,96 @@ import java.util.Map;
 @Getter
 @Setter
 public class PageResolver {
+
+    /**
+     * 作品页面 URL 前缀，JSON 模式下作为请求来源页面
+     */
+    private static final String ARTWORK_URL = "https://www.pixiv.net/artworks/";
+
+    /**
+     * 作品所有页面原图地址的接口
+     */
+    private static final String ILLUST_PAGES_URL = "https://www.pixiv.net/ajax/illust/%s/pages";
+
+    /**
+     * 排行榜页面的选择器，只编译一次
+     */
+    private static final Evaluator NEXT_PAGE = QueryParser.parse(
+            "#wrapper div.layout-body div.ui-fixed-container nav:nth-child(2) ul li.after a");
+    private static final Evaluator RANKING_ITEM = QueryParser.parse(
+            "#wrapper div.layout-body div.ranking-items-container div.ranking-items.adjust section.ranking-item");
+    private static final Evaluator RANKING_ITEM_LINK = QueryParser.parse("div.ranking-image-item a");
+
+    /**
+     * 页面解析方式
+     */
+    public enum ResolverMode {
+        /**
+         * 解析排行榜与作品的 HTML 页面
+         */
+        HTML,
+        /**
+         * 使用排行榜的 JSON 格式与作品页面接口，直接获得每一页的原图地址
+         */
+        JSON;
+
+        public static ResolverMode of(String value) {
+            if (value == null || value.isEmpty()) {
+                return HTML;
+            }
+            try {
+                return valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                log.warn("未知的解析方式: {}, 使用 HTML", value);
+                return HTML;
+            }
+        }
+    }
+
     private final Map<String, String> cookies = new HashMap<>();
 
     /**
-     * 配置文件对象
+     * 图片保存文件夹，创建时从配置快照中取得
+     */
+    private String imageSavePath;
+
+    /**
+     * 图片在保存文件夹中的布局
+     */
+    private ImageLayout imageLayout;
+
+    /**
+     * HTTP 请求客户端
      */
-    private YamlConfig yamlConfig;
+    private HttpFetcher httpFetcher;
 
     /**
-     * jar 包路径
+     * 请求策略，列表页面、作品页面与图片共用
      */
-    private String jarPath;
+    private RequestPolicy requestPolicy;
 
     /**
-     * 数据连接对象
+     * 图片下载器
      */
-    private DatabaseManager databaseManager;
+    private ImageDownloader imageDownloader;
 
-    public PageResolver(YamlConfig yamlConfig, DatabaseManager databaseManager) {
-        this.yamlConfig = yamlConfig;
-        this.databaseManager = databaseManager;
+    /**
+     * 页面解析方式
+     */
+    private ResolverMode mode;
+
+    /**
+     * 作品信息缓存，命中时不请求作品页面，为 null 时每次都解析
+     */
+    private ArtworkMetaCache artworkMetaCache;
+
+    public PageResolver(SpiderConfig config, HttpFetcher httpFetcher, RequestPolicy requestPolicy) {
+        this.imageSavePath = config.getImageSavePath();
+        this.imageLayout = new ImageLayout(new File(imageSavePath), config.getImageLayout());
+        this.mode = config.getResolverMode();
+        this.httpFetcher = httpFetcher;
+        this.requestPolicy = requestPolicy;
+        this.imageDownloader = new ImageDownloader(httpFetcher, requestPolicy, cookies);
     }
 
     public void addCookie(String key, String value) {
@@ -65,176 +138,234 @@ public class PageResolver {
     }
 
     /**
-     * 解析列表页面，并获取下一页 URL
+     * 解析列表页面，获取页面中的作品以及下一页 URL
      *
      * @param url 要解析的列表页面 URL
-     * @return 下一页的 URL，如果没有则返回 null
+     * @return 解析后的列表页面，其中下一页 URL 不存在时为 null
+     * @throws IOException 解析页面时发生错误
      */
-    public String resolveListPage(String url) {
-        log.info("开始进行图片爬取🦎");
+    public ListPage fetchListPage(String url) throws IOException {
         log.info("resolve list page url {}", url);
-        String nextpageurl = null;
+        if (mode == ResolverMode.JSON) {
+            return fetchListPageJson(url);
+        }
+        Document doc;
         try {
-            Connection.Response res;
-            while (true) {
-                try {
-                    res = Jsoup.connect(url).cookies(cookies).method(Connection.Method.GET).execute();
-                    break; // 成功获取响应，退出循环
-                } catch (SocketTimeoutException e) {
-                    log.warn("请求图片列表页面超时, 将重试.", e);
-                } catch (SSLHandshakeException e) {
-                    log.warn("请求图片列表页面被拒绝, 将重试.", e);
-                } catch (SSLException e) {
-                    log.warn("请求图片列表页面被关闭, 将重试.", e);
-                } catch (ConnectException e) {
-                    log.warn("连接超时, 请检查 cookie 是否错误或过期.", e);
-                } catch (SocketException e) {
-                    log.warn("意外结束, 将重试.", e);
-                } catch (HttpStatusException e) {
-                    log.warn("HTTP 状态错误 {}，请填写正确的 cookie.", e.getStatusCode(), e);
+            doc = fetchDocument(url);
+        } catch (HttpStatusException e) {
+            log.warn("HTTP 状态错误 {}，请填写正确的 cookie.", e.getStatusCode());
+            throw e;
+        }
+
+        ListPage listPage = parseListPage(doc, url);
+        log.info("列表页面共发现 {} 个作品, 下一页 URL: {}", listPage.getArtworks().size(), listPage.getNextUrl());
+        return listPage;
+    }
+
+    /**
+     * 从排行榜页面中解析作品以及下一页 URL，一次遍历同时找出下一页链接和所有作品
+     *
+     * @param doc 排行榜页面
+     * @param url 排行榜页面 URL
+     * @return 解析后的列表页面
+     */
+    public static ListPage parseListPage(Document doc, String url) {
+        Element[] nextPage = new Element[1];
+        List<Element> images = new ArrayList<>();
+        doc.traverse((node, depth) -> {
+            if (node instanceof Element) {
+                Element element = (Element) node;
+                if (RANKING_ITEM.matches(doc, element)) {
+                    images.add(element);
+                } else if (nextPage[0] == null && NEXT_PAGE.matches(doc, element)) {
+                    nextPage[0] = element;
                 }
             }
+        });
+        String nextPageUrl = null;
+        if (nextPage[0] == null) {
+            log.warn("未找到下一页, 请检查 cookie 是否已经过期 (或者该榜单已被爬取完毕).");
+        } else {
+            nextPageUrl = nextPage[0].absUrl("href");
+        }
 
-            Document doc = res.parse();
-            Elements pages = doc.select("#wrapper").select("div.layout-body").select("div")
-                    .select("div.ui-fixed-container").select("div").select("nav:nth-child(2)").select("ul")
-                    .select("li.after").select("a");
-            Element nextpage = null;
-            try {
-                nextpage = pages.get(0);
-            } catch (IndexOutOfBoundsException e) {
-                log.error("网页格式错误，请检查 cookie 是否已经过期 (或者该榜单已被爬取完毕).", e);
-                System.exit(Constants.EXIT_ERROR);
+        ListPage listPage = new ListPage(url, nextPageUrl);
+        for (Element image : images) {
+            String dataId = image.attr("data-id");
+            Element imagePage = image.selectFirst(RANKING_ITEM_LINK);
+            if (imagePage == null) {
+                log.warn("作品 {} 缺少作品页面链接, 已跳过.", dataId);
+                continue;
+            }
+            listPage.addArtwork(dataId, imagePage.absUrl("href"));
+        }
+        return listPage;
+    }
+
+    /**
+     * 解析作品页面，获取图片数量及每一页原图的 URL，作品信息缓存中已有时直接返回
+     *
+     * @param ref 列表页面中发现的作品
+     * @return 作品解析结果
+     * @throws IOException 解析页面时发生错误
+     */
+    public Artwork resolveArtwork(ArtworkRef ref) throws IOException {
+        String dataId = ref.getDataId();
+        log.info("==============={}===============", dataId);
+        if (artworkMetaCache != null) {
+            Artwork cached = artworkMetaCache.get(ref.getId());
+            if (cached != null) {
+                log.info("使用缓存的作品信息, 共 {} 张图片.", cached.getPageCount());
+                return cached;
             }
+        }
+        log.info("正在爬取: {}", ref.getPageUrl());
+        Artwork artwork = fetchArtwork(ref);
+        if (artworkMetaCache != null) {
+            artworkMetaCache.put(ref.getId(), artwork);
+        }
+        return artwork;
+    }
+
+    /**
+     * 作品的图片下载失败时调用，删除缓存的作品信息，下次重新解析作品页面
+     */
+    public void invalidateArtwork(int id) {
+        if (artworkMetaCache != null) {
+            artworkMetaCache.invalidate(id);
+        }
+    }
 
-            nextpageurl = nextpage.absUrl("href");
-            Elements images = doc.select("#wrapper").select("div.layout-body").select("div")
-                    .select("div.ranking-items-container").select("div.ranking-items.adjust")
-                    .select("section.ranking-item");
-
-            for (Element image : images) {
-                String dataId = image.attr("data-id");
-                Element imagePage = image.select("div.ranking-image-item").select("a").get(0);
-                String imagePageUrl = imagePage.absUrl("href");
-                log.info("==============={}===============", dataId);
-                log.info("正在爬取: {}", imagePageUrl);
-                resolveImagePage(imagePageUrl, dataId);
+    private Artwork fetchArtwork(ArtworkRef ref) throws IOException {
+        String dataId = ref.getDataId();
+        if (mode == ResolverMode.JSON) {
+            return resolveArtworkJson(dataId);
+        }
+        // 只读取到 meta-preload-data 为止，不构建整个页面的 DOM
+        return requestPolicy.execute(ref.getPageUrl(), () -> {
+            long start = System.nanoTime();
+            try (FetchResponse res = httpFetcher.fetch(FetchRequest.get(ref.getPageUrl()).cookies(cookies))) {
+                return PreloadExtractor.extract(res.getBody(), res.charset(), dataId);
+            } finally {
+                Metrics.DETAIL_REQUEST.observeSince(start);
             }
+        });
+    }
 
-            yamlConfig.setValue("startPage", url);
-            yamlConfig.Save();
-        } catch (IOException e) {
-            log.error("处理页面时发生错误", e);
-            return nextpageurl;
+    /**
+     * 通过排行榜的 JSON 格式解析列表页面。记录的页面 URL 不带 format 参数，切换解析方式后仍可继续爬取。
+     */
+    private ListPage fetchListPageJson(String url) throws IOException {
+        JSONObject obj;
+        try {
+            obj = fetchJson(withParam(url, "format", "json"), null, Metrics.LIST_REQUEST, true);
+        } catch (HttpStatusException e) {
+            log.warn("HTTP 状态错误 {}，请填写正确的 cookie.", e.getStatusCode());
+            throw e;
+        }
+
+        // 没有下一页时 next 为 false
+        String nextPageUrl = null;
+        Object next = obj.get("next");
+        if (next instanceof Number) {
+            nextPageUrl = withParam(url, "p", next.toString());
+        } else {
+            log.warn("未找到下一页, 请检查 cookie 是否已经过期 (或者该榜单已被爬取完毕).");
         }
 
-        log.info("下一页 URL: {}", nextpageurl);
-        return nextpageurl;
+        ListPage listPage = new ListPage(url, nextPageUrl);
+        JSONArray contents = obj.getJSONArray("contents");
+        if (contents != null) {
+            for (int i = 0; i < contents.size(); i++) {
+                String dataId = contents.getJSONObject(i).getString("illust_id");
+                listPage.addArtwork(dataId, ARTWORK_URL + dataId);
+            }
+        }
+        log.info("列表页面共发现 {} 个作品, 下一页 URL: {}", listPage.getArtworks().size(), nextPageUrl);
+        return listPage;
     }
 
-    private void resolveImagePage(String imagePageUrl, String dataId) {
-        int amount = databaseManager.checkArtworks(Integer.parseInt(dataId)); // 尝试获取一个值
-        if (amount == 0) { // 如果为 0 说明数据库中没有这个数据
-            log.info("数据库中未查到此图片页面的信息, 继续下载操作.");
-        } else { // 如果不是 0 说明这些图片已经下载过了
-            log.info("数据库中已查到此图片页面的信息, 图片数量为 {} , 自动跳过.", amount);
-            return;
+    /**
+     * 通过作品页面接口获取每一页的原图地址，不需要下载作品页面，也不需要猜测页面地址与后缀名
+     */
+    private Artwork resolveArtworkJson(String dataId) throws IOException {
+        JSONObject obj = fetchJson(String.format(ILLUST_PAGES_URL, dataId), ARTWORK_URL + dataId,
+                Metrics.DETAIL_REQUEST, false);
+        if (obj.getBooleanValue("error")) {
+            throw new IOException("获取作品 " + dataId + " 的页面失败: " + obj.getString("message"));
+        }
+        JSONArray body = obj.getJSONArray("body");
+        List<String> imageUrls = new ArrayList<>(body.size());
+        for (int i = 0; i < body.size(); i++) {
+            imageUrls.add(body.getJSONObject(i).getJSONObject("urls").getString("original"));
         }
+        return new Artwork(dataId, imageUrls.size(), imageUrls);
+    }
 
-        try {
-            Connection.Response res;
-            while (true) {
-                try {
-                    res = Jsoup.connect(imagePageUrl).cookies(cookies).method(Connection.Method.GET).execute();
-                    break; // 成功获取响应，退出循环
-                } catch (SocketTimeoutException e) {
-                    log.warn("请求图片页面超时, 将重试.", e);
-                } catch (SSLHandshakeException e) {
-                    log.warn("请求图片页面被拒绝, 将重试.", e);
-                } catch (SSLException e) {
-                    log.warn("请求图片页面被关闭, 将重试.", e);
-                } catch (ConnectException e) {
-                    log.warn("连接超时, 请检查 cookie 是否错误或过期.", e);
-                } catch (SocketException e) {
-                    log.warn("意外结束, 将重试.", e);
-                }
+    /**
+     * @param cacheable 响应是否可以保存到页面缓存，只有列表页面需要缓存
+     */
+    private JSONObject fetchJson(String url, String referrer, Histogram latency, boolean cacheable) throws IOException {
+        return requestPolicy.execute(url, () -> {
+            FetchRequest request = FetchRequest.get(url).cookies(cookies).header("Accept", "application/json")
+                    .cacheable(cacheable);
+            if (referrer != null) {
+                request.referrer(referrer);
+            }
+            long start = System.nanoTime();
+            try (FetchResponse res = httpFetcher.fetch(request)) {
+                return JSON.parseObject(res.bodyString());
+            } finally {
+                latency.observeSince(start);
             }
+        });
+    }
 
-            Document doc = res.parse();
-            Element meta = doc.select("#meta-preload-data").first();
-            assert meta != null;
-            String content = meta.attr("content");
-            JSONObject obj = JSON.parseObject(content);
-            int pageCount = obj.getJSONObject("illust").getJSONObject(dataId).getIntValue("pageCount");
-            String p0Url = obj.getJSONObject("illust").getJSONObject(dataId).getJSONObject("urls")
-                    .getString("original");
-
-            for (int i = 0; i < pageCount; i++) {
-                String imgUrl = (i == 0) ? p0Url : p0Url.replaceAll("p0", "p" + i);
-                String filename = imgUrl.substring(imgUrl.lastIndexOf("/") + 1);
-                // 这里要去掉 jarPath 末尾的 "/"
-                String imageSavePath = yamlConfig.getString("imgSavePath").replace("%HERE%",
-                        jarPath.substring(0, jarPath.length() - 1));
-                File imgFile = FileUtils.createFile(imageSavePath, filename);
-
-                BufferedInputStream in = null;
-                BufferedOutputStream out = null;
-                Connection.Response resImg;
-
-                try {
-                    while (true) {
-                        try {
-                            resImg = Jsoup
-                                    .connect(imgUrl)
-                                    .cookies(cookies)
-                                    .ignoreContentType(true)
-                                    .maxBodySize((int) Constants.GIGABYTE)
-                                    .referrer("https://www.pixiv.net/artworks/" + dataId)
-                                    .execute();
-                            in = new BufferedInputStream(resImg.bodyStream());
-                            out = new BufferedOutputStream(new FileOutputStream(imgFile));
-                            byte[] bytes = new byte[1024];
-                            int total = 0;
-                            int count;
-                            while ((count = in.read(bytes)) != Constants.END_OF_STREAM) {
-                                out.write(bytes, Constants.BUFFER_START_INDEX, count);
-                                total += count;
-                            }
-                            log.info("文件 {} 保存完成, 共收到 {} 字节.", filename, total);
-                            break;
-                        } catch (SocketTimeoutException e) {
-                            log.warn("请求图片超时, 将重试.", e);
-                        } catch (SSLHandshakeException e) {
-                            log.warn("请求图片被拒绝, 将重试.", e);
-                        } catch (SSLException e) {
-                            log.warn("请求图片被关闭, 将重试.", e);
-                        } catch (ConnectException e) {
-                            log.warn("连接超时, 请检查 cookie 是否错误或过期.", e);
-                        } catch (SocketException e) {
-                            log.warn("意外结束, 将重试.", e);
-                        } catch (HttpStatusException e) {
-                            if (imgUrl.contains(".jpg")) {
-                                imgUrl = imgUrl.replaceAll(".jpg", ".png");
-                            } else if (imgUrl.contains(".png")) {
-                                imgUrl = imgUrl.replaceAll(".png", ".jpg");
-                            }
-                            log.warn("HTTP 状态错误: {} 将尝试另一后缀名.", e.getStatusCode());
-                        }
-                    }
-                } catch (IOException e) {
-                    log.error("文件操作错误", e);
-                } finally {
-                    try {
-                        if (in != null) in.close();
-                        if (out != null) out.close();
-                    } catch (IOException e) {
-                        log.error("关闭流时发生错误", e);
-                    }
+    /**
+     * 设置 URL 中的查询参数，已存在时替换
+     */
+    static String withParam(String url, String name, String value) {
+        int fragment = url.indexOf('#');
+        String base = fragment < 0 ? url : url.substring(0, fragment);
+        int query = base.indexOf('?');
+        StringBuilder sb = new StringBuilder(query < 0 ? base : base.substring(0, query));
+        char separator = '?';
+        if (query >= 0) {
+            for (String param : base.substring(query + 1).split("&")) {
+                if (param.isEmpty() || param.equals(name) || param.startsWith(name + "=")) {
+                    continue;
                 }
+                sb.append(separator).append(param);
+                separator = '&';
             }
-            databaseManager.addArtworks(Integer.parseInt(dataId), pageCount);
-        } catch (IOException e) {
-            log.error("处理图片页面时发生错误", e);
         }
+        return sb.append(separator).append(name).append('=').append(value).toString();
+    }
+
+    /**
+     * 按请求策略获取并解析列表页面，超时与连接错误会退避后重试
+     */
+    private Document fetchDocument(String url) throws IOException {
+        return requestPolicy.execute(url, () -> {
+            long start = System.nanoTime();
+            try (FetchResponse res = httpFetcher.fetch(FetchRequest.get(url).cookies(cookies).cacheable(true))) {
+                return res.parse();
+            } finally {
+                Metrics.LIST_REQUEST.observeSince(start);
+            }
+        });
+    }
+
+    /**
+     * 按图片布局下载单张图片，在下载线程中执行
+     *
+     * @param imgUrl 图片 URL
+     * @param dataId 作品 ID
+     * @return 本次收到的字节数
+     * @throws IOException 文件操作错误
+     */
+    public long downloadImage(String imgUrl, String dataId) throws IOException {
+        String filename = imgUrl.substring(imgUrl.lastIndexOf("/") + 1);
+        return imageDownloader.download(imgUrl, ARTWORK_URL + dataId, imageLayout.prepare(filename));
     }
 }
@@ -0,0 +1,188 @@
+package top.anufether.pixiv.spider;
+
+import lombok.extern.slf4j.Slf4j;
+import top.anufether.pixiv.http.HttpStatusException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/28 10:15
+ * @Description: 分页计划。排行榜与搜索页面的页码由 p 参数决定，可以根据页码直接计算之后的页面并同时请求，
+ * 同时进行的请求数有上限，页面按页码顺序交给调用方；遇到空页面或不存在的页面时结束。
+ * 无法计算页码的页面仍然依次跟随下一页链接。
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Slf4j
+public class PaginationPlanner {
+
+    /**
+     * 排行榜每页 50 个作品，最多 500 个
+     */
+    private static final int RANKING_MAX_PAGES = 10;
+
+    private static final Pattern PAGE_PARAM = Pattern.compile("[?&]p=(\\d+)");
+
+    /**
+     * 获取列表页面
+     */
+    @FunctionalInterface
+    public interface PageFetcher {
+        ListPage fetch(String url) throws IOException;
+    }
+
+    /**
+     * 按顺序处理列表页面
+     */
+    @FunctionalInterface
+    public interface PageConsumer {
+        void accept(ListPage page) throws InterruptedException;
+    }
+
+    private final PageFetcher fetcher;
+
+    /**
+     * 执行页面请求的线程池，为 null 时依次请求
+     */
+    private final ExecutorService executor;
+
+    /**
+     * 同时请求的页面数
+     */
+    private final int fanout;
+
+    public PaginationPlanner(PageFetcher fetcher, ExecutorService executor, int fanout) {
+        this.fetcher = fetcher;
+        this.executor = executor;
+        this.fanout = executor == null ? 1 : Math.max(1, fanout);
+    }
+
+    /**
+     * 从起始页面开始获取所有列表页面，按页码顺序交给 consumer
+     *
+     * @param startUrl 起始页面
+     * @param consumer 页面处理，阻塞时暂停请求新的页面
+     * @throws IOException          请求页面失败
+     * @throws InterruptedException 等待时被中断
+     */
+    public void walk(String startUrl, PageConsumer consumer) throws IOException, InterruptedException {
+        int first = pageNumber(startUrl);
+        if (first < 1 || fanout <= 1) {
+            follow(startUrl, consumer);
+            return;
+        }
+        int last = maxPage(startUrl);
+        log.info("按页码同时请求最多 {} 个列表页面: {}, 从第 {} 页开始.", fanout, startUrl, first);
+
+        Deque<Future<ListPage>> window = new ArrayDeque<>(fanout);
+        int next = first;
+        try {
+            while (window.size() < fanout && next <= last) {
+                window.addLast(submit(startUrl, first, next++));
+            }
+            while (!window.isEmpty()) {
+                ListPage page = await(window.pollFirst());
+                if (page == null || page.getArtworks().isEmpty()) {
+                    log.info("列表页面已结束: {}", page == null ? "页面不存在" : page.getUrl());
+                    return;
+                }
+                consumer.accept(page);
+                if (page.getNextUrl() == null) {
+                    return;
+                }
+                if (next <= last) {
+                    window.addLast(submit(startUrl, first, next++));
+                }
+            }
+        } finally {
+            // 结束后不再需要已经提前请求的页面
+            for (Future<ListPage> future : window) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * 依次跟随下一页链接
+     */
+    private void follow(String startUrl, PageConsumer consumer) throws IOException, InterruptedException {
+        String url = startUrl;
+        while (url != null) {
+            ListPage page = fetcher.fetch(url);
+            consumer.accept(page);
+            url = page.getNextUrl();
+        }
+    }
+
+    private Future<ListPage> submit(String startUrl, int first, int page) {
+        // 起始页面保持原样，与爬取日志中记录的页面一致
+        String url = page == first ? startUrl : PageResolver.withParam(startUrl, "p", Integer.toString(page));
+        return executor.submit(() -> fetcher.fetch(url));
+    }
+
+    /**
+     * @return 请求到的页面，页面不存在时为 null
+     */
+    private static ListPage await(Future<ListPage> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (CancellationException e) {
+            throw new InterruptedIOException("列表页面请求已取消");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof HttpStatusException) {
+                int status = ((HttpStatusException) cause).getStatusCode();
+                // 超出最后一页时排行榜返回 404，JSON 格式返回 400
+                if (status == 400 || status == 404) {
+                    return null;
+                }
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * @return 页面的页码，不支持按页码请求时为 -1
+     */
+    static int pageNumber(String url) {
+        Matcher matcher = PAGE_PARAM.matcher(url);
+        if (matcher.find()) {
+            try {
+                return Integer.parseInt(matcher.group(1));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return isRanking(url) ? 1 : -1;
+    }
+
+    /**
+     * @return 最大页码，未知时为 Integer.MAX_VALUE，只能请求到空页面为止
+     */
+    private static int maxPage(String url) {
+        return isRanking(url) ? RANKING_MAX_PAGES : Integer.MAX_VALUE;
+    }
+
+    private static boolean isRanking(String url) {
+        int query = url.indexOf('?');
+        return (query < 0 ? url : url.substring(0, query)).endsWith("/ranking.php");
+    }
+}
@@ -0,0 +1,251 @@
+package top.anufether.pixiv.spider;
+
+import com.alibaba.fastjson2.JSONException;
+import com.alibaba.fastjson2.JSONReader;
+import org.jsoup.parser.Parser;
+import top.anufether.pixiv.constant.Constants;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/23 9:40
+ * @Description: 作品页面的快速解析：从响应流中找到 meta-preload-data 后立即停止读取，不构建 DOM，
+ * 再用 fastjson2 的流式读取器只取出图片数量和原图地址
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+public class PreloadExtractor {
+
+    private static final String MARKER = "meta-preload-data";
+
+    private static final int CHUNK_SIZE = (int) (8 * Constants.KILOBYTE);
+
+    private PreloadExtractor() {
+    }
+
+    /**
+     * 从作品页面的响应流中解析图片数量及每一页原图的 URL
+     *
+     * @param in      响应流，读到 meta 标签结束为止，不会被关闭
+     * @param charset 响应编码，为 null 时使用 UTF-8
+     * @param dataId  作品 ID
+     * @return 作品解析结果
+     * @throws IOException 读取失败，或页面中没有需要的数据
+     */
+    public static Artwork extract(InputStream in, String charset, String dataId) throws IOException {
+        Charset cs = charset == null ? StandardCharsets.UTF_8 : Charset.forName(charset);
+        Reader reader = new InputStreamReader(in, cs);
+        char[] buf = new char[4 * CHUNK_SIZE];
+        int length = 0;
+        int tagStart = -1;
+        // 标签结束位置的扫描进度及当前所在的引号，读到新数据时从上次的位置继续
+        int scan = -1;
+        char quote = 0;
+        while (true) {
+            if (length == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+            int count = reader.read(buf, length, buf.length - length);
+            if (count == Constants.END_OF_STREAM) {
+                throw new IOException("作品页面中未找到 meta-preload-data: " + dataId);
+            }
+            int from = length;
+            length += count;
+
+            if (tagStart < 0) {
+                int marker = indexOf(buf, length, Math.max(0, from - MARKER.length() + 1));
+                if (marker < 0) {
+                    continue;
+                }
+                tagStart = marker;
+                while (tagStart >= 0 && buf[tagStart] != '<') {
+                    tagStart--;
+                }
+                if (tagStart < 0) {
+                    throw new IOException("作品页面中未找到 meta-preload-data: " + dataId);
+                }
+                scan = tagStart + 1;
+            }
+
+            for (; scan < length; scan++) {
+                char c = buf[scan];
+                if (quote != 0) {
+                    if (c == quote) {
+                        quote = 0;
+                    }
+                } else if (c == '"' || c == '\'') {
+                    quote = c;
+                } else if (c == '>') {
+                    break;
+                }
+            }
+            if (scan < length) {
+                int[] range = attribute(CharBuffer.wrap(buf, 0, length), tagStart, scan, "content");
+                if (range == null) {
+                    throw new IOException("作品页面的 meta-preload-data 中没有 content 属性: " + dataId);
+                }
+                return parseIllust(buf, range[0], range[1], dataId);
+            }
+        }
+    }
+
+    private static int indexOf(char[] buf, int length, int from) {
+        char first = MARKER.charAt(0);
+        int last = length - MARKER.length();
+        outer:
+        for (int i = from; i <= last; i++) {
+            if (buf[i] != first) {
+                continue;
+            }
+            for (int j = 1; j < MARKER.length(); j++) {
+                if (buf[i + j] != MARKER.charAt(j)) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * 查找标签中的属性值
+     *
+     * @return 属性值的起止位置，属性不存在时返回 null
+     */
+    private static int[] attribute(CharSequence html, int tagStart, int tagEnd, String name) {
+        int pos = tagStart + 1;
+        // 跳过标签名
+        while (pos < tagEnd && !Character.isWhitespace(html.charAt(pos))) {
+            pos++;
+        }
+        while (pos < tagEnd) {
+            char c = html.charAt(pos);
+            if (Character.isWhitespace(c) || c == '/') {
+                pos++;
+                continue;
+            }
+            int nameStart = pos;
+            while (pos < tagEnd && html.charAt(pos) != '=' && !Character.isWhitespace(html.charAt(pos))) {
+                pos++;
+            }
+            String attrName = html.subSequence(nameStart, pos).toString();
+            while (pos < tagEnd && Character.isWhitespace(html.charAt(pos))) {
+                pos++;
+            }
+            if (pos >= tagEnd || html.charAt(pos) != '=') {
+                // 没有值的属性
+                continue;
+            }
+            pos++;
+            while (pos < tagEnd && Character.isWhitespace(html.charAt(pos))) {
+                pos++;
+            }
+            int valueStart;
+            int valueEnd;
+            char quote = pos < tagEnd ? html.charAt(pos) : 0;
+            if (quote == '"' || quote == '\'') {
+                valueStart = pos + 1;
+                valueEnd = valueStart;
+                while (valueEnd < tagEnd && html.charAt(valueEnd) != quote) {
+                    valueEnd++;
+                }
+                pos = valueEnd + 1;
+            } else {
+                valueStart = pos;
+                valueEnd = pos;
+                while (valueEnd < tagEnd && !Character.isWhitespace(html.charAt(valueEnd))) {
+                    valueEnd++;
+                }
+                pos = valueEnd;
+            }
+            if (attrName.equalsIgnoreCase(name)) {
+                return new int[]{valueStart, valueEnd};
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 解析 content 属性中的 JSON。不含实体时直接在读取缓冲区上解析，不再复制
+     */
+    private static Artwork parseIllust(char[] buf, int start, int end, String dataId) throws IOException {
+        for (int i = start; i < end; i++) {
+            if (buf[i] == '&') {
+                String json = Parser.unescapeEntities(new String(buf, start, end - start), true);
+                try (JSONReader reader = JSONReader.of(json)) {
+                    return parseIllust(reader, dataId);
+                }
+            }
+        }
+        try (JSONReader reader = JSONReader.of(buf, start, end - start)) {
+            return parseIllust(reader, dataId);
+        }
+    }
+
+    /**
+     * 只读取 illust.{dataId} 中的 pageCount 与 urls.original，其余内容跳过而不创建对象
+     */
+    static Artwork parseIllust(JSONReader reader, String dataId) throws IOException {
+        int pageCount = -1;
+        String p0Url = null;
+        try {
+            if (!reader.nextIfObjectStart() || !enterObject(reader, "illust") || !enterObject(reader, dataId)) {
+                throw new IOException("meta-preload-data 中没有作品 " + dataId + " 的数据");
+            }
+            while (!reader.nextIfObjectEnd() && (pageCount < 0 || p0Url == null)) {
+                String name = reader.readFieldName();
+                if ("pageCount".equals(name)) {
+                    pageCount = reader.readInt32Value();
+                } else if ("urls".equals(name) && reader.nextIfObjectStart()) {
+                    while (!reader.nextIfObjectEnd()) {
+                        if ("original".equals(reader.readFieldName())) {
+                            p0Url = reader.readString();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                } else {
+                    reader.skipValue();
+                }
+            }
+        } catch (JSONException e) {
+            throw new IOException("解析作品 " + dataId + " 的 meta-preload-data 失败", e);
+        }
+        if (pageCount < 0 || p0Url == null) {
+            throw new IOException("作品 " + dataId + " 缺少图片数量或原图地址");
+        }
+
+        List<String> imageUrls = new ArrayList<>(pageCount);
+        for (int i = 0; i < pageCount; i++) {
+            imageUrls.add((i == 0) ? p0Url : p0Url.replaceAll("p0", "p" + i));
+        }
+        return new Artwork(dataId, pageCount, imageUrls);
+    }
+
+    /**
+     * 在当前对象中查找字段，找到后进入该字段的对象值
+     *
+     * @return 字段存在且值为对象时返回 true
+     */
+    private static boolean enterObject(JSONReader reader, String field) {
+        while (!reader.nextIfObjectEnd()) {
+            if (field.equals(reader.readFieldName())) {
+                return reader.nextIfObjectStart();
+            }
+            reader.skipValue();
+        }
+        return false;
+    }
+}
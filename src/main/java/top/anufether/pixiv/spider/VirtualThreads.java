@@ -0,0 +1,79 @@
+package top.anufether.pixiv.spider;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/27 9:40
+ * @Description: 虚拟线程入口。Java 21 下由 src/main/java21 中的同名类替换 (多版本 jar)；
+ * 未按多版本 jar 加载时 (如直接运行编译输出) 通过反射查找虚拟线程 API，找不到时使用平台线程
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+final class VirtualThreads {
+
+    /**
+     * Thread.ofVirtual()，当前运行时不支持虚拟线程时为 null
+     */
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method FACTORY;
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        Method newExecutor = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = Class.forName("java.lang.Thread$Builder$OfVirtual").getMethod("name", String.class, long.class);
+            factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        } catch (ReflectiveOperationException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+        NEW_THREAD_PER_TASK_EXECUTOR = newExecutor;
+    }
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return 当前运行时是否支持虚拟线程
+     */
+    static boolean isAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * 创建为每个任务启动一个虚拟线程的线程池，当前运行时不支持虚拟线程时按需创建平台线程
+     *
+     * @param prefix 线程名前缀
+     */
+    static ExecutorService newThreadPerTaskExecutor(String prefix) {
+        if (OF_VIRTUAL != null) {
+            try {
+                Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 1L);
+                return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, FACTORY.invoke(builder));
+            } catch (ReflectiveOperationException e) {
+                // 与查找时的签名一致，不会发生；万一失败时退回平台线程
+            }
+        }
+        AtomicInteger threadIndex = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, prefix + threadIndex.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
@@ -0,0 +1,71 @@
+package top.anufether.pixiv.store;
+
+import lombok.extern.slf4j.Slf4j;
+import top.anufether.pixiv.dao.DatabaseManager;
+import top.anufether.pixiv.metrics.Metrics;
+import top.anufether.pixiv.spider.Artwork;
+
+import java.util.List;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/31 10:40
+ * @Description: 作品信息缓存，保存已解析作品的图片数量与原图地址，再次遇到时不需要请求作品页面。
+ * 缓存有保留时间与作品数上限，原图下载失败时删除对应的信息，下次重新解析。
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Slf4j
+public class ArtworkMetaCache {
+
+    private final DatabaseManager databaseManager;
+
+    /**
+     * 最长保留时间 (毫秒)
+     */
+    private final long maxAge;
+
+    /**
+     * 创建缓存并删除过期及超出数量的信息
+     *
+     * @param databaseManager 保存作品信息的数据库
+     * @param maxAge          最长保留时间 (毫秒)
+     * @param maxEntries      最多保留的作品数
+     */
+    public ArtworkMetaCache(DatabaseManager databaseManager, long maxAge, int maxEntries) {
+        this.databaseManager = databaseManager;
+        this.maxAge = maxAge;
+        int pruned = databaseManager.pruneArtworkMeta(System.currentTimeMillis() - maxAge, maxEntries);
+        if (pruned > 0) {
+            log.info("已清理 {} 个过期的作品信息.", pruned);
+        }
+    }
+
+    /**
+     * @return 缓存的作品信息，没有或已过期时为 null
+     */
+    public Artwork get(int id) {
+        List<String> urls = databaseManager.queryArtworkMeta(id, System.currentTimeMillis() - maxAge);
+        if (urls == null) {
+            return null;
+        }
+        Metrics.ARTWORK_META_HITS.inc();
+        return new Artwork(Integer.toString(id), urls.size(), urls);
+    }
+
+    public void put(int id, Artwork artwork) {
+        if (artwork.getImageUrls().isEmpty()) {
+            return;
+        }
+        databaseManager.saveArtworkMeta(id, artwork.getImageUrls());
+    }
+
+    /**
+     * 删除作品信息，下次遇到时重新解析
+     */
+    public void invalidate(int id) {
+        databaseManager.deleteArtworkMeta(id);
+    }
+}
@@ -0,0 +1,208 @@
+package top.anufether.pixiv.store;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import top.anufether.pixiv.dao.DatabaseManager;
+import top.anufether.pixiv.dao.ImageFile;
+import top.anufether.pixiv.spider.ImageDownloader;
+import top.anufether.pixiv.util.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/30 10:05
+ * @Description: 图片文件索引。图片保存完成后登记到数据库，打包与上传直接读取索引，不再遍历保存文件夹；
+ * 同时负责将平铺保存的图片迁移到分片布局。
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Slf4j
+public class ImageIndex {
+
+    /**
+     * 迁移时每批登记的文件数
+     */
+    private static final int MIGRATE_BATCH = 1000;
+
+    private static final String[] IMAGE_SUFFIXES = {".jpg", ".jpeg", ".png", ".gif", ".webp"};
+
+    private final DatabaseManager databaseManager;
+
+    @Getter
+    private final ImageLayout layout;
+
+    public ImageIndex(DatabaseManager databaseManager, ImageLayout layout) {
+        this.databaseManager = databaseManager;
+        this.layout = layout;
+    }
+
+    /**
+     * 登记保存完成的图片，可直接作为图片保存完成的回调
+     *
+     * @param file 图片文件
+     */
+    public void register(File file) {
+        List<ImageFile> files = new ArrayList<>(1);
+        files.add(new ImageFile(file.getName(), relativize(file), file.length()));
+        databaseManager.addImageFiles(files);
+    }
+
+    /**
+     * @return 索引中的所有图片，按文件名排序
+     */
+    public List<File> list() {
+        return toFiles(databaseManager.queryImageFiles());
+    }
+
+    /**
+     * @return 尚未上传的图片，按文件名排序
+     */
+    public List<File> listNotUploaded() {
+        return toFiles(databaseManager.queryNotUploadedImageFiles());
+    }
+
+    private List<File> toFiles(List<ImageFile> entries) {
+        List<File> files = new ArrayList<>(entries.size());
+        for (ImageFile entry : entries) {
+            files.add(new File(layout.getRoot(), entry.getPath()));
+        }
+        return files;
+    }
+
+    /**
+     * @return 索引中是否还没有任何图片
+     */
+    public boolean isEmpty() {
+        return !databaseManager.hasImageFiles();
+    }
+
+    /**
+     * 检查保存文件夹中是否有平铺保存的图片，找到第一个后立即返回。
+     * 使用分片布局时这些是未迁移的图片，使用平铺布局时即所有图片
+     */
+    public boolean hasLooseImages() {
+        if (!layout.getRoot().isDirectory()) {
+            return false;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(layout.getRoot().toPath())) {
+            for (Path path : stream) {
+                if (isImage(path.getFileName().toString()) && Files.isRegularFile(path)) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            log.warn("检查图片文件夹失败: {}", e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * 将保存文件夹中平铺的图片 (以及未完成的下载) 移动到当前布局的位置，并登记到索引中。
+     * 使用平铺布局时只登记，不移动文件。可以重复执行，已迁移的图片不受影响。
+     *
+     * @return 登记的图片数量
+     * @throws IOException 读取保存文件夹失败
+     */
+    public int migrate() throws IOException {
+        return scan(true);
+    }
+
+    /**
+     * 将保存文件夹中平铺的图片按当前位置登记到索引中，不移动文件。用于索引启用前已经下载的图片，
+     * 之后执行迁移时会更新登记的位置
+     *
+     * @return 登记的图片数量
+     * @throws IOException 读取保存文件夹失败
+     */
+    public int backfill() throws IOException {
+        return scan(false);
+    }
+
+    private int scan(boolean move) throws IOException {
+        File root = layout.getRoot();
+        if (!root.isDirectory()) {
+            log.info("图片文件夹 {} 不存在, 无需迁移.", root);
+            return 0;
+        }
+        log.info("开始{}图片文件夹 {}, 布局: {}", move ? "迁移" : "登记", root, layout.getMode());
+        List<ImageFile> batch = new ArrayList<>(MIGRATE_BATCH);
+        Map<String, String> moved = new LinkedHashMap<>();
+        int indexed = 0;
+        int movedCount = 0;
+        int conflicts = 0;
+        // 逐个读取目录项，不一次性列出整个文件夹
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root.toPath())) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                boolean image = isImage(name);
+                boolean partial = name.endsWith(ImageDownloader.PART_SUFFIX) || name.endsWith(ImageDownloader.META_SUFFIX);
+                if (!(image || move && partial) || !Files.isRegularFile(path)) {
+                    continue;
+                }
+                File source = path.toFile();
+                File target = move ? layout.prepare(name) : source;
+                if (!target.equals(source)) {
+                    if (target.exists()) {
+                        conflicts++;
+                        log.warn("{} 已存在, 保留原文件 {}", target, source);
+                        continue;
+                    }
+                    FileUtils.moveAtomically(source, target);
+                    moved.put(source.getAbsolutePath(), target.getAbsolutePath());
+                    movedCount++;
+                }
+                if (image) {
+                    batch.add(new ImageFile(name, relativize(target), target.length()));
+                }
+                if (batch.size() >= MIGRATE_BATCH) {
+                    indexed += flush(batch, moved);
+                    log.info("已迁移 {} 个文件, 登记 {} 个图片.", movedCount, indexed);
+                }
+            }
+        }
+        indexed += flush(batch, moved);
+        log.info("图片文件夹{}完成: 移动 {} 个文件, 登记 {} 个图片, {} 个文件因目标已存在未移动.",
+                move ? "迁移" : "登记", movedCount, indexed, conflicts);
+        return indexed;
+    }
+
+    private int flush(List<ImageFile> batch, Map<String, String> moved) throws IOException {
+        databaseManager.updateImagePaths(moved);
+        moved.clear();
+        if (!databaseManager.addImageFiles(batch)) {
+            throw new IOException("登记图片文件失败");
+        }
+        int count = batch.size();
+        batch.clear();
+        return count;
+    }
+
+    /**
+     * @return 相对于保存文件夹的路径，使用 / 分隔
+     */
+    private String relativize(File file) {
+        Path relative = layout.getRoot().toPath().toAbsolutePath().relativize(file.toPath().toAbsolutePath());
+        return relative.toString().replace(File.separatorChar, '/');
+    }
+
+    private static boolean isImage(String name) {
+        String lower = name.toLowerCase();
+        for (String suffix : IMAGE_SUFFIXES) {
+            if (lower.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,147 @@
+package top.anufether.pixiv.store;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import top.anufether.pixiv.util.FileUtils;
+
+import java.io.File;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/30 9:15
+ * @Description: 图片在保存文件夹中的布局。分片布局按作品 ID 的前缀将图片分散到两级子文件夹，
+ * 如 123456789_p0.jpg 保存为 123/456/123456789_p0.jpg，每个子文件夹最多包含 1000 个作品的图片。
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Slf4j
+public class ImageLayout {
+
+    /**
+     * 作品 ID 补零后的最小位数
+     */
+    private static final int ID_DIGITS = 9;
+
+    /**
+     * 每级子文件夹对应的位数
+     */
+    private static final int SHARD_DIGITS = 3;
+
+    /**
+     * 布局方式
+     */
+    public enum Mode {
+        /**
+         * 所有图片直接保存在保存文件夹中
+         */
+        FLAT,
+        /**
+         * 按作品 ID 前缀分片保存
+         */
+        SHARDED;
+
+        public static Mode of(String value) {
+            if (value == null || value.isEmpty()) {
+                return FLAT;
+            }
+            try {
+                return valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                log.warn("未知的图片布局: {}, 使用 FLAT", value);
+                return FLAT;
+            }
+        }
+    }
+
+    /**
+     * 图片保存文件夹
+     */
+    @Getter
+    private final File root;
+
+    @Getter
+    private final Mode mode;
+
+    /**
+     * 已经创建过的子文件夹，避免每张图片都检查一次
+     */
+    private final Set<String> createdFolders = ConcurrentHashMap.newKeySet();
+
+    public ImageLayout(File root, Mode mode) {
+        this.root = root;
+        this.mode = mode;
+    }
+
+    /**
+     * 图片相对于保存文件夹的路径，使用 / 分隔
+     *
+     * @param filename 图片文件名
+     * @return 相对路径，文件名不以作品 ID 开头或使用平铺布局时为文件名本身
+     */
+    public String relativePath(String filename) {
+        String shard = shard(filename);
+        return shard == null ? filename : shard + "/" + filename;
+    }
+
+    /**
+     * 图片应保存的位置，不创建文件夹
+     */
+    public File file(String filename) {
+        return new File(root, relativePath(filename));
+    }
+
+    /**
+     * 图片应保存的位置，所在的子文件夹不存在时创建
+     */
+    public File prepare(String filename) {
+        String shard = shard(filename);
+        if (shard == null) {
+            return new File(root, filename);
+        }
+        File folder = new File(root, shard);
+        if (createdFolders.add(shard)) {
+            FileUtils.createFolder(folder.getPath());
+        }
+        return new File(folder, filename);
+    }
+
+    /**
+     * @return 分片子文件夹，如 123/456，不需要分片时为 null
+     */
+    private String shard(String filename) {
+        if (mode != Mode.SHARDED) {
+            return null;
+        }
+        long id = artworkId(filename);
+        if (id < 0) {
+            return null;
+        }
+        StringBuilder digits = new StringBuilder(Long.toString(id));
+        while (digits.length() < ID_DIGITS) {
+            digits.insert(0, '0');
+        }
+        // 最后三位在同一个子文件夹中，其前两组各为一级
+        int end = digits.length() - SHARD_DIGITS;
+        return digits.substring(0, end - SHARD_DIGITS) + "/" + digits.substring(end - SHARD_DIGITS, end);
+    }
+
+    /**
+     * 从文件名开头解析作品 ID，如 123456789_p0.jpg
+     *
+     * @return 作品 ID，文件名不以数字开头时为 -1
+     */
+    static long artworkId(String filename) {
+        int end = 0;
+        while (end < filename.length() && end < 18 && Character.isDigit(filename.charAt(end))) {
+            end++;
+        }
+        if (end == 0 || end < filename.length() && filename.charAt(end) != '_' && filename.charAt(end) != '.') {
+            return -1;
+        }
+        return Long.parseLong(filename.substring(0, end));
+    }
+}
@@ -0,0 +1,157 @@
+package top.anufether.pixiv.store;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import top.anufether.pixiv.dao.DatabaseManager;
+import top.anufether.pixiv.util.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/20 14:05
+ * @Description: 按内容寻址的图片存储，根据下载时计算的 SHA-256 识别重复图片，重复内容以硬链接保存或直接跳过
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Slf4j
+@Getter
+public class ImageStore {
+
+    /**
+     * 摘要算法
+     */
+    public static final String DIGEST_ALGORITHM = "SHA-256";
+
+    /**
+     * 重复图片的处理方式
+     */
+    public enum DuplicatePolicy {
+        /**
+         * 创建指向已有文件的硬链接
+         */
+        LINK,
+        /**
+         * 不保存重复图片，只记录摘要
+         */
+        SKIP;
+
+        public static DuplicatePolicy of(String value) {
+            if (value == null || value.isEmpty()) {
+                return LINK;
+            }
+            try {
+                return valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                log.warn("未知的重复图片处理方式: {}, 使用 LINK", value);
+                return LINK;
+            }
+        }
+    }
+
+    private final DatabaseManager databaseManager;
+
+    private final DuplicatePolicy duplicatePolicy;
+
+    /**
+     * 因重复而节省的字节数
+     */
+    private final LongAdder savedBytes = new LongAdder();
+
+    private final LongAdder duplicates = new LongAdder();
+
+    /**
+     * 按摘要分段的锁，相同内容的图片依次存入
+     */
+    @Getter(AccessLevel.NONE)
+    private final Object[] locks = new Object[64];
+
+    public ImageStore(DatabaseManager databaseManager, DuplicatePolicy duplicatePolicy) {
+        this.databaseManager = databaseManager;
+        this.duplicatePolicy = duplicatePolicy;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * 创建新的摘要对象
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("不支持的摘要算法: " + DIGEST_ALGORITHM, e);
+        }
+    }
+
+    /**
+     * 检查图片是否已经保存过 (包括作为重复内容被跳过的图片)
+     *
+     * @param imgFile 最终保存的文件
+     */
+    public boolean contains(File imgFile) {
+        return databaseManager.hasImage(imgFile.getName());
+    }
+
+    /**
+     * 将下载完成的临时文件存入仓库。内容未出现过时原子重命名为最终文件；
+     * 重复时按照处理方式创建硬链接或直接删除临时文件。
+     * 相同内容的查询、文件操作与登记在同一把锁内完成，两个相同的图片同时完成下载时也只会保留一份；
+     * 文件就位后才登记，文件操作失败时不会留下登记记录，下次运行会重新下载。
+     *
+     * @param partFile 下载完成的临时文件
+     * @param imgFile  最终保存的文件
+     * @param digest   下载过程中计算的摘要
+     * @throws IOException 文件操作失败
+     */
+    public void commit(File partFile, File imgFile, MessageDigest digest) throws IOException {
+        String hash = toHex(digest.digest());
+        long size = partFile.length();
+        synchronized (locks[Math.floorMod(hash.hashCode(), locks.length)]) {
+            String existing = databaseManager.findImage(hash, size);
+            if (existing == null) {
+                FileUtils.moveAtomically(partFile, imgFile);
+                databaseManager.registerImage(imgFile.getName(), hash, size, imgFile.getAbsolutePath());
+                return;
+            }
+
+            duplicates.increment();
+            savedBytes.add(size);
+            if (duplicatePolicy == DuplicatePolicy.SKIP) {
+                FileUtils.deleteFile(partFile);
+                databaseManager.registerImage(imgFile.getName(), hash, size, null);
+                log.info("文件 {} 与 {} 内容相同, 已跳过保存.", imgFile.getName(), existing);
+                return;
+            }
+
+            try {
+                Files.deleteIfExists(imgFile.toPath());
+                Files.createLink(imgFile.toPath(), new File(existing).toPath());
+                FileUtils.deleteFile(partFile);
+                log.info("文件 {} 与 {} 内容相同, 已创建硬链接.", imgFile.getName(), existing);
+            } catch (IOException | UnsupportedOperationException e) {
+                // 跨文件系统等无法创建硬链接时，保留下载的文件
+                log.warn("无法为 {} 创建硬链接, 将保留原文件: {}", imgFile.getName(), e.getMessage());
+                FileUtils.moveAtomically(partFile, imgFile);
+            }
+            databaseManager.registerImage(imgFile.getName(), hash, size, null);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -2,6 +2,9 @@ package top.anufether.pixiv.util;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 /**
  * @Project: pixiv-spider
@@ -93,4 +96,32 @@ public class FileUtils {
         }
     }
 
+    /**
+     * 删除指定的文件。如果文件不存在，则不会进行任何操作。
+     *
+     * @param file 要删除的文件对象
+     * @throws RuntimeException 如果删除文件时发生错误
+     */
+    public static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            throw new RuntimeException("无法删除文件: " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * 将文件原子地重命名为目标文件，目标文件已存在时会被替换。
+     * 如果文件系统不支持原子移动，则退化为普通的替换移动。
+     *
+     * @param source 源文件
+     * @param target 目标文件
+     * @throws IOException 如果移动文件时发生错误
+     */
+    public static void moveAtomically(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
 }
@@ -3,16 +3,31 @@ package top.anufether.pixiv.util;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.compress.archivers.zip.ParallelScatterZipCreator;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import top.anufether.pixiv.constant.Constants;
+import top.anufether.pixiv.dao.ArchiveInfo;
+import top.anufether.pixiv.dao.DatabaseManager;
+import top.anufether.pixiv.metrics.Metrics;
+import top.anufether.pixiv.store.ImageIndex;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.Path;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
 
 /**
  * @Project: pixiv-spider
@@ -28,72 +43,300 @@ import java.nio.file.Paths;
 @Setter
 public class ImageZipperUtils {
 
+    /**
+     * 打包的图片格式，均已压缩过，打包时直接存储不再压缩
+     */
+    private static final String[] STORED_SUFFIXES = {".jpg", ".jpeg", ".png", ".gif", ".webp"};
+
     /**
      * 最大打包图片数量
      */
     private Integer zipNum = Constants.ZIP_MAX_NUM;
 
+    /**
+     * 单个压缩文件的目标大小 (字节)，超过后创建新压缩文件，为 0 时不限制
+     */
+    private long zipMaxBytes = 0;
+
+    /**
+     * 是否使用多线程并行打包
+     */
+    private boolean parallel = true;
+
+    /**
+     * 并行打包的线程数
+     */
+    private int threads = Runtime.getRuntime().availableProcessors();
+
     /**
      * 打包文件夹路径
      */
     private String zipPath;
 
+    /**
+     * 记录已打包图片的数据库，设置后只打包新增的图片，为 null 时每次重新打包全部图片
+     */
+    private DatabaseManager databaseManager;
+
+    /**
+     * 图片文件索引，设置后直接读取索引中的图片，不再遍历打包文件夹，为 null 时遍历 zipPath
+     */
+    private ImageIndex imageIndex;
+
     /**
      * 压缩指定文件夹中的图片文件
      *
-     * @param outputZipFilePattern 输出的ZIP文件路径，如 D:/output/images.zip
+     * @param outputZipFilePattern 输出的ZIP文件路径，如 D:/output/images%d.zip
      * @throws IOException 压缩图片文件失败异常
      */
     public void zipImages(String outputZipFilePattern) throws IOException {
-        Path zipDirPath = Paths.get(zipPath);
-        File[] imageFiles = zipDirPath.toFile().listFiles((dir, name) -> name.endsWith(".jpg") || name.endsWith(".png") || name.endsWith(".jpeg"));
-
-        if (imageFiles == null || imageFiles.length == 0) {
+        List<File> imageFiles = listImages();
+        if (imageFiles.isEmpty()) {
             log.warn("没有找到要压缩的图片文件！");
             return;
         }
-        int fileCount = 0;
+
+        if (databaseManager != null) {
+            zipIncremental(outputZipFilePattern, imageFiles);
+            return;
+        }
+
+        List<List<File>> archives = splitArchives(imageFiles, 0, 0);
+        for (int zipCount = 0; zipCount < archives.size(); zipCount++) {
+            writeArchive(String.format(outputZipFilePattern, zipCount), archives.get(zipCount));
+        }
+
+        log.info("图片压缩完成，共 {} 个压缩文件，输出文件模式: {}", archives.size(), outputZipFilePattern);
+    }
+
+    /**
+     * @return 要打包的图片，按文件名排序
+     */
+    private List<File> listImages() {
+        if (imageIndex != null) {
+            // 索引中可能有已被手动删除的图片
+            List<File> imageFiles = imageIndex.list();
+            imageFiles.removeIf(file -> !file.isFile());
+            return imageFiles;
+        }
+        File[] imageFiles = Paths.get(zipPath).toFile().listFiles((dir, name) -> isCompressed(name));
+        if (imageFiles == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(imageFiles, Comparator.comparing(File::getName));
+        return Arrays.asList(imageFiles);
+    }
+
+    /**
+     * 只打包清单中没有的图片：先补满最后一个未满的压缩文件，其余的写入新编号的压缩文件。
+     * 压缩文件写入完成后才登记清单，中途失败时下次运行会重新打包这些图片。
+     */
+    private void zipIncremental(String outputZipFilePattern, List<File> imageFiles) throws IOException {
+        Set<String> archived = databaseManager.queryArchivedImages();
+        List<File> newFiles = new ArrayList<>();
+        for (File imageFile : imageFiles) {
+            if (!archived.contains(imageFile.getName())) {
+                newFiles.add(imageFile);
+            }
+        }
+        if (newFiles.isEmpty()) {
+            log.info("没有新的图片需要打包, 已打包 {} 个图片文件", archived.size());
+            return;
+        }
+
+        ArchiveInfo last = databaseManager.queryLastArchive();
         int zipCount = 0;
+        int initialCount = 0;
+        long initialBytes = 0;
+        File partial = null;
+        if (last != null) {
+            File lastZip = new File(String.format(outputZipFilePattern, last.getArchive()));
+            if (lastZip.exists() && !isFull(last.getCount(), last.getBytes())) {
+                partial = lastZip;
+                zipCount = last.getArchive();
+                initialCount = last.getCount();
+                initialBytes = last.getBytes();
+            } else {
+                zipCount = last.getArchive() + 1;
+            }
+        }
+
+        List<List<File>> archives = splitArchives(newFiles, initialCount, initialBytes);
+        int written = 0;
+        for (int i = 0; i < archives.size(); i++) {
+            List<File> files = archives.get(i);
+            if (files.isEmpty()) {
+                continue;
+            }
+            String outputZipFile = String.format(outputZipFilePattern, zipCount + i);
+            List<File> added = i == 0 && partial != null
+                    ? appendArchive(partial, files)
+                    : writeArchive(outputZipFile, files);
+            if (!databaseManager.addArchivedImages(zipCount + i, added)) {
+                throw new IOException("登记已打包图片失败: " + outputZipFile);
+            }
+            written += added.size();
+        }
 
-        ZipArchiveOutputStream zos = createZipOutputStream(outputZipFilePattern, zipCount);
+        log.info("增量打包完成，新增 {} 个图片文件，输出文件模式: {}", written, outputZipFilePattern);
+    }
 
-        try {
-            for (File imageFile : imageFiles) {
-                if (zipNum != null && fileCount >= zipNum) {
-                    log.debug("达到最大打包数量: {}，创建新压缩文件", zipNum);
-                    zos.close(); // 关闭当前的ZIP文件
-                    zipCount++;
-                    zos = createZipOutputStream(outputZipFilePattern, zipCount);
-                    fileCount = 0; // 重置文件计数器
-                }
+    /**
+     * 按文件数量和目标大小将图片划分到多个压缩文件
+     *
+     * @param initialCount 第一个压缩文件中已有的图片数量
+     * @param initialBytes 第一个压缩文件中已有的图片大小
+     * @return 每个压缩文件的图片，第一个压缩文件已满时其列表为空
+     */
+    private List<List<File>> splitArchives(List<File> imageFiles, int initialCount, long initialBytes) {
+        List<List<File>> archives = new ArrayList<>();
+        List<File> current = new ArrayList<>();
+        int currentCount = initialCount;
+        long currentBytes = initialBytes;
+        for (File imageFile : imageFiles) {
+            if (currentCount > 0 && (isFull(currentCount, currentBytes)
+                    || zipMaxBytes > 0 && currentBytes + imageFile.length() > zipMaxBytes)) {
+                log.debug("达到最大打包数量或大小: {} 个 / {} 字节，创建新压缩文件", currentCount, currentBytes);
+                archives.add(current);
+                current = new ArrayList<>();
+                currentCount = 0;
+                currentBytes = 0;
+            }
+            current.add(imageFile);
+            currentCount++;
+            currentBytes += imageFile.length();
+        }
+        archives.add(current);
+        return archives;
+    }
+
+    private boolean isFull(int count, long bytes) {
+        return zipNum != null && count >= zipNum || zipMaxBytes > 0 && bytes >= zipMaxBytes;
+    }
 
-                log.debug("即将打包的文件: {}", imageFile.getName());
-
-                try (FileInputStream fis = new FileInputStream(imageFile)) {
-                    ZipArchiveEntry entry = new ZipArchiveEntry(imageFile.getName());
-                    zos.putArchiveEntry(entry);
-                    byte[] buffer = new byte[1024];
-                    int len;
-                    while ((len = fis.read(buffer)) > 0) {
-                        zos.write(buffer, 0, len);
-                    }
-                    zos.closeArchiveEntry();
-                    fileCount++;
-                    log.info("已添加图片文件: {}", imageFile.getName());
+    /**
+     * 将一组图片写入一个压缩文件
+     *
+     * @return 成功写入的图片
+     */
+    private List<File> writeArchive(String outputZipFile, List<File> imageFiles) throws IOException {
+        log.debug("创建新的压缩文件: {}", outputZipFile);
+        long start = System.nanoTime();
+        List<File> added;
+        try (ZipArchiveOutputStream zos = new ZipArchiveOutputStream(new File(outputZipFile))) {
+            added = writeEntries(zos, imageFiles);
+        }
+        recordArchive(start, added);
+        return added;
+    }
+
+    /**
+     * 向已有的压缩文件追加图片。ZIP 格式无法原地追加，因此将原有条目按原始数据复制到临时文件
+     * (不解压也不重新压缩)，写入新图片后再原子替换原文件。
+     *
+     * @return 成功写入的图片
+     */
+    private List<File> appendArchive(File zipFile, List<File> imageFiles) throws IOException {
+        log.debug("向压缩文件追加 {} 个图片文件: {}", imageFiles.size(), zipFile.getName());
+        Set<String> names = new HashSet<>();
+        for (File imageFile : imageFiles) {
+            names.add(imageFile.getName());
+        }
+        long start = System.nanoTime();
+        File tmp = new File(zipFile.getPath() + ".tmp");
+        List<File> added;
+        try (ZipFile source = ZipFile.builder().setFile(zipFile).get();
+             ZipArchiveOutputStream zos = new ZipArchiveOutputStream(tmp)) {
+            // 上次写入后未能登记的图片会再次打包，跳过其旧条目以免重复
+            source.copyRawEntries(zos, entry -> !names.contains(entry.getName()));
+            added = writeEntries(zos, imageFiles);
+        } catch (IOException e) {
+            FileUtils.deleteFile(tmp);
+            throw e;
+        }
+        FileUtils.moveAtomically(tmp, zipFile);
+        recordArchive(start, added);
+        return added;
+    }
+
+    private static void recordArchive(long start, List<File> added) {
+        Metrics.ARCHIVE_DURATION.observeSince(start);
+        Metrics.ARCHIVED_FILES.add(added.size());
+        for (File file : added) {
+            Metrics.ARCHIVED_BYTES.add(file.length());
+        }
+    }
+
+    private List<File> writeEntries(ZipArchiveOutputStream zos, List<File> imageFiles) throws IOException {
+        if (parallel && imageFiles.size() > 1) {
+            writeParallel(zos, imageFiles);
+            return new ArrayList<>(imageFiles);
+        }
+        return writeSequential(zos, imageFiles);
+    }
+
+    /**
+     * 多个线程同时读取图片并计算 CRC (需要压缩的文件同时压缩)，写入各自的临时存储，
+     * 再将临时存储中的条目按原始数据依次合并到压缩文件中
+     */
+    private void writeParallel(ZipArchiveOutputStream zos, List<File> imageFiles) throws IOException {
+        // writeTo 完成后会关闭线程池，因此每个压缩文件使用新的线程池
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        ParallelScatterZipCreator creator = new ParallelScatterZipCreator(executor);
+        for (File imageFile : imageFiles) {
+            log.debug("即将打包的文件: {}", imageFile.getName());
+            creator.addArchiveEntry(createEntry(imageFile), () -> {
+                try {
+                    return new FileInputStream(imageFile);
                 } catch (IOException e) {
-                    log.error("添加图片文件失败: {}", imageFile.getName(), e);
+                    throw new RuntimeException("无法读取图片文件: " + imageFile.getName(), e);
                 }
-            }
+            });
+        }
+        try {
+            creator.writeTo(zos);
+            log.info("已添加 {} 个图片文件, {}", imageFiles.size(), creator.getStatisticsMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("打包图片文件时被中断", e);
+        } catch (ExecutionException e) {
+            throw new IOException("并行打包图片文件失败", e.getCause());
         } finally {
-            zos.close();
+            executor.shutdownNow();
         }
+    }
 
-        log.info("图片压缩完成，输出文件模式: {}", outputZipFilePattern);
+    private List<File> writeSequential(ZipArchiveOutputStream zos, List<File> imageFiles) throws IOException {
+        List<File> added = new ArrayList<>(imageFiles.size());
+        for (File imageFile : imageFiles) {
+            log.debug("即将打包的文件: {}", imageFile.getName());
+            try {
+                zos.putArchiveEntry(createEntry(imageFile));
+                Files.copy(imageFile.toPath(), zos);
+                zos.closeArchiveEntry();
+                added.add(imageFile);
+                log.info("已添加图片文件: {}", imageFile.getName());
+            } catch (IOException e) {
+                log.error("添加图片文件失败: {}", imageFile.getName(), e);
+            }
+        }
+        return added;
     }
 
-    private ZipArchiveOutputStream createZipOutputStream(String outputZipFilePattern, int zipCount) throws IOException {
-        String outputZipFile = String.format(outputZipFilePattern, zipCount);
-        log.debug("创建新的压缩文件: {}", outputZipFile);
-        return new ZipArchiveOutputStream(new FileOutputStream(outputZipFile));
+    private ZipArchiveEntry createEntry(File imageFile) {
+        ZipArchiveEntry entry = new ZipArchiveEntry(imageFile.getName());
+        entry.setTime(imageFile.lastModified());
+        entry.setMethod(isCompressed(imageFile.getName()) ? ZipEntry.STORED : ZipEntry.DEFLATED);
+        return entry;
+    }
+
+    private static boolean isCompressed(String name) {
+        String lower = name.toLowerCase();
+        for (String suffix : STORED_SUFFIXES) {
+            if (lower.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
     }
 }
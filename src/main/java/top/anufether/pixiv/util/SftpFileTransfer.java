@@ -1,18 +1,370 @@
 package top.anufether.pixiv.util;
 
-import top.anufether.pixiv.config.YamlConfig;
+import com.jcraft.jsch.*;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import top.anufether.pixiv.config.SpiderConfig;
+import top.anufether.pixiv.constant.Constants;
+import top.anufether.pixiv.dao.DatabaseManager;
+import top.anufether.pixiv.metrics.Metrics;
+import top.anufether.pixiv.store.ImageLayout;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * @Project: pixiv-spider
  * @Package: top.anufether.pixiv
  * @Author: anufether
  * @Create: 2024/8/10 8:58
- * @Description: Sftp 传输类
+ * @Description: Sftp 传输类，使用会话与通道池并行上传图片，已上传的图片记录在数据库中
  * @History: modify
  * * 1900-01-01 12:00:00 modified by xxx
  **/
-public class SftpFileTransfer {
+@Slf4j
+@Getter
+@Setter
+public class SftpFileTransfer implements Closeable {
+
+    /**
+     * 上传中的远程临时文件后缀，上传完成后重命名
+     */
+    private static final String PART_SUFFIX = ".part";
+
+    /**
+     * 连接超时时间 (毫秒)
+     */
+    private static final int CONNECT_TIMEOUT = 10000;
+
+    private final DatabaseManager databaseManager;
+
+    private String remoteHost;
+
+    private int remotePort;
+
+    private String userName;
+
+    private String password;
+
+    private String remoteDir;
+
+    /**
+     * 本地图片布局，远程目录使用相同的子文件夹，为 null 时全部上传到 remoteDir
+     */
+    private ImageLayout imageLayout;
+
+    /**
+     * 已确认存在的远程子文件夹
+     */
+    private final Set<String> remoteFolders = ConcurrentHashMap.newKeySet();
+
+    /**
+     * known_hosts 文件路径，为空时不校验主机密钥
+     */
+    private String knownHosts;
+
+    /**
+     * SSH 会话数量，每个会话是一条 TCP 连接
+     */
+    private int sessions;
+
+    /**
+     * SFTP 通道总数，即同时上传的文件数，通道平均分配到各个会话上
+     */
+    private int channels;
+
+    private final JSch jsch = new JSch();
+
+    private final List<Session> sessionList = new ArrayList<>();
+
+    private BlockingQueue<ChannelSftp> channelPool;
+
+    private ExecutorService executor;
+
+    /**
+     * 关闭后不再接受新的上传
+     */
+    private volatile boolean closed;
+
+    /**
+     * 上传统计
+     */
+    private final LongAdder uploadedBytes = new LongAdder();
+    private final LongAdder uploadedFiles = new LongAdder();
+    private final LongAdder skippedFiles = new LongAdder();
+    private final LongAdder failedFiles = new LongAdder();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private long startNanos;
+
+    public SftpFileTransfer(SpiderConfig config, DatabaseManager databaseManager) {
+        this.databaseManager = databaseManager;
+        this.remoteHost = config.getRemoteHost();
+        this.remotePort = config.getRemotePort();
+        this.userName = config.getUserName();
+        this.password = config.getPassword();
+        this.remoteDir = config.getRemoteDir();
+        this.knownHosts = config.getKnownHosts();
+        this.sessions = config.getSessions();
+        this.channels = config.getChannels();
+    }
+
+    /**
+     * 建立会话与通道池，并创建远程目录
+     *
+     * @throws JSchException 连接或认证失败
+     * @throws SftpException 创建远程目录失败
+     */
+    public void start() throws JSchException, SftpException {
+        if (knownHosts != null && !knownHosts.isEmpty()) {
+            jsch.setKnownHosts(knownHosts);
+        } else {
+            log.warn("未配置 known_hosts, 将不校验服务器 {} 的主机密钥.", remoteHost);
+        }
+        if (remoteDir == null || remoteDir.isEmpty()) {
+            remoteDir = "./";
+        } else if (!remoteDir.endsWith("/")) {
+            remoteDir = remoteDir + "/";
+        }
+
+        sessions = Math.max(1, sessions);
+        channels = Math.max(sessions, channels);
+        for (int i = 0; i < sessions; i++) {
+            sessionList.add(openSession());
+        }
+        channelPool = new ArrayBlockingQueue<>(channels);
+        for (int i = 0; i < channels; i++) {
+            channelPool.add(openChannel(sessionList.get(i % sessions)));
+        }
+        mkdirs(channelPool.peek(), remoteDir);
+
+        AtomicInteger threadIndex = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(channels, r -> {
+            Thread t = new Thread(r, "sftp-upload-" + threadIndex.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        startNanos = System.nanoTime();
+        Metrics.REGISTRY.counter("pixiv_uploaded_bytes_total", "已上传的字节数", uploadedBytes::sum);
+        Metrics.REGISTRY.counter("pixiv_uploaded_files_total", "已上传的文件数", uploadedFiles::sum);
+        Metrics.REGISTRY.counter("pixiv_upload_skipped_total", "已上传过或远程已存在而跳过的文件数", skippedFiles::sum);
+        Metrics.REGISTRY.counter("pixiv_upload_failures_total", "上传失败的文件数", failedFiles::sum);
+        Metrics.queueDepth("upload", inFlight::get);
+        log.info("Sftp 已连接 {}:{}, 会话数: {}, 通道数: {}, 远程目录: {}",
+                remoteHost, remotePort, sessions, channels, remoteDir);
+    }
+
+    /**
+     * 提交上传任务，立即返回，可在图片下载完成时直接调用
+     *
+     * @param file 本地文件
+     * @return 上传结果，已上传过或远程已存在时同样为 true；尚未连接或已关闭时为失败的 future
+     */
+    public CompletableFuture<Boolean> submit(File file) {
+        if (closed || executor == null) {
+            return rejected(file);
+        }
+        inFlight.incrementAndGet();
+        try {
+            return CompletableFuture.supplyAsync(() -> upload(file), executor)
+                    .whenComplete((result, e) -> inFlight.decrementAndGet());
+        } catch (RejectedExecutionException e) {
+            // 检查之后线程池才被关闭
+            inFlight.decrementAndGet();
+            return rejected(file);
+        }
+    }
+
+    private static CompletableFuture<Boolean> rejected(File file) {
+        return CompletableFuture.failedFuture(new IllegalStateException("Sftp 上传已关闭, 无法上传 " + file.getName()));
+    }
+
+    private boolean upload(File file) {
+        String name = file.getName();
+        long size = file.length();
+        if (databaseManager.isUploaded(name, size)) {
+            skippedFiles.increment();
+            return true;
+        }
+
+        ChannelSftp channel;
+        try {
+            channel = channelPool.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        String relativePath = imageLayout == null ? name : imageLayout.relativePath(name);
+        String remotePath = remoteDir + relativePath;
+        try {
+            int slash = relativePath.lastIndexOf('/');
+            if (slash > 0 && !remoteFolders.contains(relativePath.substring(0, slash))) {
+                mkdirs(channel, remoteDir + relativePath.substring(0, slash + 1));
+                remoteFolders.add(relativePath.substring(0, slash));
+            }
+            SftpATTRS attrs = stat(channel, remotePath);
+            if (attrs != null && attrs.getSize() == size) {
+                databaseManager.addUploadedFile(name, size, remotePath);
+                skippedFiles.increment();
+                log.debug("远程文件 {} 已存在, 跳过上传.", remotePath);
+                return true;
+            }
+
+            // 先写入临时文件再重命名，中断的上传不会留下不完整的同名文件
+            long start = System.nanoTime();
+            String partPath = remotePath + PART_SUFFIX;
+            try (InputStream in = Files.newInputStream(file.toPath())) {
+                channel.put(in, partPath, ChannelSftp.OVERWRITE);
+            }
+            if (attrs != null) {
+                channel.rm(remotePath);
+            }
+            channel.rename(partPath, remotePath);
+            databaseManager.addUploadedFile(name, size, remotePath);
+
+            Metrics.UPLOAD_DURATION.observeSince(start);
+            double seconds = Math.max((System.nanoTime() - start) / 1e9, 0.001);
+            uploadedBytes.add(size);
+            uploadedFiles.increment();
+            log.info("已上传 {}, {} KB, {} MB/s", name, size / Constants.KILOBYTE,
+                    String.format("%.2f", size / (double) Constants.MEGABYTE / seconds));
+            return true;
+        } catch (SftpException | IOException e) {
+            failedFiles.increment();
+            log.error("上传 {} 失败: {}", name, e.getMessage());
+            if (!channel.isConnected() || channel.isClosed()) {
+                channel = reconnect(channel);
+            }
+            return false;
+        } finally {
+            channelPool.add(channel);
+        }
+    }
+
+    private static SftpATTRS stat(ChannelSftp channel, String path) throws SftpException {
+        try {
+            return channel.stat(path);
+        } catch (SftpException e) {
+            if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    private static void mkdirs(ChannelSftp channel, String dir) throws SftpException {
+        StringBuilder path = new StringBuilder(dir.startsWith("/") ? "/" : "");
+        for (String part : dir.split("/")) {
+            if (part.isEmpty() || ".".equals(part)) {
+                continue;
+            }
+            // 不带末尾的 /，部分服务器无法创建以 / 结尾的路径
+            path.append(part);
+            String folder = path.toString();
+            if (stat(channel, folder) == null) {
+                try {
+                    channel.mkdir(folder);
+                } catch (SftpException e) {
+                    // 其他通道可能同时创建了同一个文件夹
+                    if (stat(channel, folder) == null) {
+                        throw e;
+                    }
+                }
+            }
+            path.append('/');
+        }
+    }
+
+    private Session openSession() throws JSchException {
+        Session session = jsch.getSession(userName, remoteHost, remotePort);
+        session.setPassword(password);
+        if (knownHosts == null || knownHosts.isEmpty()) {
+            session.setConfig("StrictHostKeyChecking", "no");
+        }
+        session.setServerAliveInterval(CONNECT_TIMEOUT);
+        session.connect(CONNECT_TIMEOUT);
+        return session;
+    }
+
+    private static ChannelSftp openChannel(Session session) throws JSchException {
+        ChannelSftp channel = (ChannelSftp) session.openChannel("sftp");
+        channel.connect(CONNECT_TIMEOUT);
+        return channel;
+    }
+
+    /**
+     * 重新建立断开的通道，所属会话也已断开时一并重连
+     *
+     * @return 新的通道，重连失败时返回原通道，下次使用时再次尝试
+     */
+    private ChannelSftp reconnect(ChannelSftp channel) {
+        try {
+            Session session = channel.getSession();
+            channel.disconnect();
+            synchronized (sessionList) {
+                if (!session.isConnected()) {
+                    int index = sessionList.indexOf(session);
+                    session = openSession();
+                    if (index >= 0) {
+                        sessionList.set(index, session);
+                    } else {
+                        sessionList.add(session);
+                    }
+                    log.info("Sftp 会话已重新连接.");
+                }
+            }
+            return openChannel(session);
+        } catch (JSchException e) {
+            log.warn("Sftp 重新连接失败: {}", e.getMessage());
+            return channel;
+        }
+    }
 
-    private YamlConfig yamlConfig;
+    /**
+     * 输出上传统计
+     */
+    public void reportThroughput() {
+        double seconds = Math.max((System.nanoTime() - startNanos) / 1e9, 0.001);
+        double megabytes = uploadedBytes.sum() / (double) Constants.MEGABYTE;
+        log.info("上传统计: 完成 {} 个文件, 跳过 {} 个, 失败 {} 个, 共 {} MB, 平均速率 {} MB/s, 进行中 {} 个.",
+                uploadedFiles.sum(), skippedFiles.sum(), failedFiles.sum(), String.format("%.2f", megabytes),
+                String.format("%.2f", megabytes / seconds), inFlight.get());
+    }
 
+    /**
+     * 等待已提交的上传完成并断开连接
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.HOURS)) {
+                log.warn("等待上传完成超时, 仍有 {} 个上传未完成.", inFlight.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (ChannelSftp channel : channelPool) {
+            channel.disconnect();
+        }
+        synchronized (sessionList) {
+            for (Session session : sessionList) {
+                session.disconnect();
+            }
+        }
+        reportThroughput();
+    }
 }
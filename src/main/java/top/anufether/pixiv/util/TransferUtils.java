@@ -0,0 +1,276 @@
+package top.anufether.pixiv.util;
+
+import lombok.extern.slf4j.Slf4j;
+import top.anufether.pixiv.constant.Constants;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/16 15:20
+ * @Description: 基于 NIO 通道的数据传输工具，使用可复用的大容量直接缓冲区写文件，并按配置执行 fsync
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+@Slf4j
+public class TransferUtils {
+
+    /**
+     * 默认缓冲区大小
+     */
+    public static final int DEFAULT_BUFFER_SIZE = (int) (256 * Constants.KILOBYTE);
+
+    /**
+     * 直接缓冲区的最大数量，默认大小下最多占用 8 MB 堆外内存
+     */
+    private static final int MAX_BUFFERS = 32;
+
+    /**
+     * 写入完成后的同步策略
+     */
+    public enum FsyncPolicy {
+        /**
+         * 不主动同步，由操作系统决定何时落盘
+         */
+        NONE,
+        /**
+         * 同步文件内容
+         */
+        DATA,
+        /**
+         * 同步文件内容及元数据
+         */
+        ALL;
+
+        public static FsyncPolicy of(String value) {
+            if (value == null || value.isEmpty()) {
+                return NONE;
+            }
+            try {
+                return valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                log.warn("未知的 fsync 策略: {}, 使用 NONE", value);
+                return NONE;
+            }
+        }
+    }
+
+    private static volatile int bufferSize = DEFAULT_BUFFER_SIZE;
+
+    private static volatile FsyncPolicy fsyncPolicy = FsyncPolicy.NONE;
+
+    /**
+     * 空闲的直接缓冲区，传输时借出、完成后归还，避免每次传输都重新分配。
+     * 使用虚拟线程时线程数量不固定，不能按线程缓存缓冲区
+     */
+    private static final BlockingQueue<ByteBuffer> BUFFERS = new ArrayBlockingQueue<>(MAX_BUFFERS);
+
+    /**
+     * 已分配且未丢弃的直接缓冲区数量，包括借出中的
+     */
+    private static final AtomicInteger ALLOCATED = new AtomicInteger();
+
+    /**
+     * 设置缓冲区大小与同步策略
+     *
+     * @param size   缓冲区大小 (字节)
+     * @param policy 同步策略
+     */
+    public static void configure(int size, FsyncPolicy policy) {
+        bufferSize = Math.max((int) Constants.KILOBYTE, size);
+        fsyncPolicy = policy;
+        log.info("传输缓冲区大小: {} KB, fsync 策略: {}", bufferSize / Constants.KILOBYTE, fsyncPolicy);
+    }
+
+    /**
+     * 将输入流写入文件
+     *
+     * @param in     输入流，不会被关闭
+     * @param target 目标文件
+     * @param append 是否追加到文件末尾，否则覆盖原文件
+     * @return 写入的字节数
+     * @throws IOException 读写错误
+     */
+    public static long transfer(InputStream in, Path target, boolean append) throws IOException {
+        return transfer(in, target, append, null);
+    }
+
+    /**
+     * 将输入流写入文件，同时计算写入内容的摘要
+     *
+     * @param in     输入流，不会被关闭
+     * @param target 目标文件
+     * @param append 是否追加到文件末尾，否则覆盖原文件
+     * @param digest 写入的数据会同时更新该摘要，为 null 时不计算
+     * @return 写入的字节数
+     * @throws IOException 读写错误
+     */
+    public static long transfer(InputStream in, Path target, boolean append, MessageDigest digest)
+            throws IOException {
+        try (FileChannel out = append
+                ? FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+                : FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long total;
+            if (in instanceof FileInputStream && digest == null) {
+                // 文件到文件直接由内核完成复制
+                FileChannel source = ((FileInputStream) in).getChannel();
+                total = transferFrom(source, out);
+            } else {
+                total = transfer(Channels.newChannel(in), out, digest);
+            }
+            sync(out);
+            return total;
+        }
+    }
+
+    /**
+     * 通过直接缓冲区将数据从通道写入文件，缓冲区装满或读到末尾时才写一次，减少系统调用次数
+     *
+     * @param in  输入通道，不会被关闭
+     * @param out 输出文件通道，不会被关闭
+     * @return 写入的字节数
+     * @throws IOException 读写错误
+     */
+    public static long transfer(ReadableByteChannel in, FileChannel out) throws IOException {
+        return transfer(in, out, null);
+    }
+
+    /**
+     * 通过直接缓冲区将数据从通道写入文件，同时计算写入内容的摘要
+     *
+     * @param in     输入通道，不会被关闭
+     * @param out    输出文件通道，不会被关闭
+     * @param digest 写入的数据会同时更新该摘要，为 null 时不计算
+     * @return 写入的字节数
+     * @throws IOException 读写错误
+     */
+    public static long transfer(ReadableByteChannel in, FileChannel out, MessageDigest digest) throws IOException {
+        ByteBuffer buffer = acquire();
+        try {
+            long total = 0;
+            boolean eof = false;
+            while (!eof) {
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    if (in.read(buffer) == Constants.END_OF_STREAM) {
+                        eof = true;
+                        break;
+                    }
+                }
+                buffer.flip();
+                if (digest != null) {
+                    digest.update(buffer.duplicate());
+                }
+                while (buffer.hasRemaining()) {
+                    total += out.write(buffer);
+                }
+            }
+            return total;
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * 读取文件的前若干字节并更新摘要，用于断点续传时补齐已下载部分的摘要
+     *
+     * @param file   文件
+     * @param length 读取的字节数
+     * @param digest 摘要
+     * @throws IOException 读取错误
+     */
+    public static void digest(Path file, long length, MessageDigest digest) throws IOException {
+        ByteBuffer buffer = acquire();
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long remaining = length;
+            while (remaining > 0) {
+                buffer.clear();
+                if (remaining < buffer.capacity()) {
+                    buffer.limit((int) remaining);
+                }
+                int count = in.read(buffer);
+                if (count == Constants.END_OF_STREAM) {
+                    break;
+                }
+                buffer.flip();
+                digest.update(buffer);
+                remaining -= count;
+            }
+        } finally {
+            release(buffer);
+        }
+    }
+
+    private static long transferFrom(FileChannel source, FileChannel out) throws IOException {
+        long position = out.position();
+        long total = 0;
+        long count;
+        while ((count = out.transferFrom(source, position + total, Long.MAX_VALUE)) > 0) {
+            total += count;
+        }
+        out.position(position + total);
+        return total;
+    }
+
+    /**
+     * 按同步策略将文件落盘
+     */
+    public static void sync(FileChannel channel) throws IOException {
+        switch (fsyncPolicy) {
+            case DATA:
+                channel.force(false);
+                break;
+            case ALL:
+                channel.force(true);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 借出一个缓冲区，直接缓冲区都在使用中时返回临时的堆缓冲区
+     */
+    private static ByteBuffer acquire() {
+        ByteBuffer buffer;
+        while ((buffer = BUFFERS.poll()) != null) {
+            if (buffer.capacity() == bufferSize) {
+                return buffer;
+            }
+            // 缓冲区大小已修改，丢弃旧的缓冲区
+            ALLOCATED.decrementAndGet();
+        }
+        if (ALLOCATED.incrementAndGet() <= MAX_BUFFERS) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        ALLOCATED.decrementAndGet();
+        return ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * 归还借出的缓冲区，临时的堆缓冲区与大小已过时的缓冲区直接丢弃
+     */
+    private static void release(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            return;
+        }
+        if (buffer.capacity() != bufferSize || !BUFFERS.offer(buffer)) {
+            ALLOCATED.decrementAndGet();
+        }
+    }
+}
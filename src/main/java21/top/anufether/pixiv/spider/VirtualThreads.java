@@ -0,0 +1,35 @@
+package top.anufether.pixiv.spider;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/8/27 9:40
+ * @Description: 虚拟线程入口的 Java 21 实现，打包到多版本 jar 的 META-INF/versions/21 中
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return 当前运行时是否支持虚拟线程
+     */
+    static boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * 创建为每个任务启动一个虚拟线程的线程池
+     *
+     * @param prefix 线程名前缀
+     */
+    static ExecutorService newThreadPerTaskExecutor(String prefix) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(prefix, 1).factory());
+    }
+}
@@ -0,0 +1,330 @@
+package top.anufether.pixiv.cluster;
+
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONArray;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import top.anufether.pixiv.config.SpiderConfig;
+import top.anufether.pixiv.config.YamlConfig;
+import top.anufether.pixiv.dao.ArtworkLease;
+import top.anufether.pixiv.dao.DatabaseManager;
+import top.anufether.pixiv.http.RequestPolicy;
+import top.anufether.pixiv.spider.Artwork;
+import top.anufether.pixiv.spider.ArtworkRef;
+import top.anufether.pixiv.spider.DownloadEngine;
+import top.anufether.pixiv.spider.PageResolver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/9/2 14:30
+ * @Description: 租约过期后作品重新分配给其他 worker，原 worker 续约时发现租约失效并取消未完成的工作。
+ * 协调服务与 worker 都在本机运行，worker 通过一个可以拒绝续约请求的转发服务连接协调服务
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+class ClusterWorkerTest {
+
+    private static final int LEASE_TIMEOUT = 1000;
+    private static final long TIMEOUT = 10000;
+    private static final int ARTWORK_ID = 123456;
+    private static final String ARTWORK_URL = "https://www.pixiv.net/artworks/" + ARTWORK_ID;
+
+    @TempDir
+    Path tempDir;
+
+    private DatabaseManager databaseManager;
+    private CoordinatorServer server;
+    private RenewGate gate;
+    private DownloadEngine downloadEngine;
+    private Thread workerThread;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        databaseManager = new DatabaseManager();
+        databaseManager.setJarPath(tempDir.toString() + File.separator);
+        databaseManager.load();
+        databaseManager.enqueueArtworks(Collections.singletonMap(ARTWORK_ID, ARTWORK_URL));
+        server = new CoordinatorServer(databaseManager, "127.0.0.1", 0, LEASE_TIMEOUT, 3);
+        gate = new RenewGate("http://127.0.0.1:" + server.getPort());
+        downloadEngine = new DownloadEngine(1, 1, 16);
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        if (workerThread != null) {
+            workerThread.interrupt();
+            workerThread.join(TIMEOUT);
+        }
+        downloadEngine.close();
+        gate.close();
+        server.close();
+        databaseManager.close();
+    }
+
+    @Test
+    void lostLeaseSkipsRemainingPages() throws Exception {
+        CountDownLatch firstPageStarted = new CountDownLatch(1);
+        CountDownLatch releaseFirstPage = new CountDownLatch(1);
+        AtomicInteger downloads = new AtomicInteger();
+        PageResolver resolver = new FakeResolver(config("a")) {
+            @Override
+            public Artwork resolveArtwork(ArtworkRef ref) {
+                List<String> urls = Arrays.asList("https://i.pximg.net/" + ref.getId() + "_p0.jpg",
+                        "https://i.pximg.net/" + ref.getId() + "_p1.jpg",
+                        "https://i.pximg.net/" + ref.getId() + "_p2.jpg");
+                return new Artwork(ref.getDataId(), urls.size(), urls);
+            }
+
+            @Override
+            public long downloadImage(String imgUrl, String dataId) throws IOException {
+                downloads.incrementAndGet();
+                firstPageStarted.countDown();
+                await(releaseFirstPage);
+                return 1;
+            }
+        };
+        startWorker(resolver);
+        assertTrue(firstPageStarted.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        ArtworkLease reassigned = loseLease();
+        // 第一张图片已经开始下载，继续完成；排队中的两张不再下载
+        releaseFirstPage.countDown();
+        finishElsewhere(reassigned);
+        downloadEngine.close();
+        assertEquals(1, downloads.get());
+        assertEquals(1, databaseManager.countLeases()[ArtworkLease.DONE]);
+    }
+
+    @Test
+    void lostLeaseInterruptsResolve() throws Exception {
+        CountDownLatch resolveStarted = new CountDownLatch(1);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        AtomicInteger downloads = new AtomicInteger();
+        PageResolver resolver = new FakeResolver(config("a")) {
+            @Override
+            public Artwork resolveArtwork(ArtworkRef ref) throws IOException {
+                resolveStarted.countDown();
+                try {
+                    new CountDownLatch(1).await(TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                    throw new InterruptedIOException("解析被中断");
+                }
+                return new Artwork(ref.getDataId(), 1,
+                        Collections.singletonList("https://i.pximg.net/" + ref.getId() + "_p0.jpg"));
+            }
+
+            @Override
+            public long downloadImage(String imgUrl, String dataId) {
+                downloads.incrementAndGet();
+                return 1;
+            }
+        };
+        startWorker(resolver);
+        assertTrue(resolveStarted.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        ArtworkLease reassigned = loseLease();
+        assertTrue(interrupted.get());
+
+        finishElsewhere(reassigned);
+        assertEquals(0, downloads.get());
+        assertEquals(1, databaseManager.countLeases()[ArtworkLease.DONE]);
+    }
+
+    @Test
+    void unreachableCoordinatorCancelsQueuedPages() throws Exception {
+        CountDownLatch firstPageStarted = new CountDownLatch(1);
+        CountDownLatch releaseFirstPage = new CountDownLatch(1);
+        AtomicInteger downloads = new AtomicInteger();
+        PageResolver resolver = new FakeResolver(config("a")) {
+            @Override
+            public Artwork resolveArtwork(ArtworkRef ref) {
+                List<String> urls = Arrays.asList("https://i.pximg.net/" + ref.getId() + "_p0.jpg",
+                        "https://i.pximg.net/" + ref.getId() + "_p1.jpg");
+                return new Artwork(ref.getDataId(), urls.size(), urls);
+            }
+
+            @Override
+            public long downloadImage(String imgUrl, String dataId) throws IOException {
+                downloads.incrementAndGet();
+                firstPageStarted.countDown();
+                await(releaseFirstPage);
+                return 1;
+            }
+        };
+        startWorker(resolver);
+        assertTrue(firstPageStarted.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // 协调节点无法连接，超过租约时长后 worker 退出
+        gate.down = true;
+        workerThread.join(TIMEOUT);
+        assertFalse(workerThread.isAlive());
+
+        releaseFirstPage.countDown();
+        downloadEngine.close();
+        assertEquals(1, downloads.get());
+    }
+
+    private void startWorker(PageResolver resolver) {
+        ClusterWorker worker = new ClusterWorker(resolver, downloadEngine, config("a"));
+        workerThread = new Thread(worker::run, "test-worker");
+        workerThread.start();
+    }
+
+    /**
+     * 拒绝 worker a 的续约直到租约过期，由 worker b 领取同一个作品，之后恢复续约让 a 发现租约已失效
+     *
+     * @return b 领取到的租约
+     */
+    private ArtworkLease loseLease() throws Exception {
+        gate.blocked = true;
+        CoordinatorClient other = new CoordinatorClient("http://127.0.0.1:" + server.getPort(), "b");
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        List<ArtworkLease> leases = other.lease(1).getLeases();
+        while (leases.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            leases = other.lease(1).getLeases();
+        }
+        assertEquals(1, leases.size());
+        assertEquals(ARTWORK_ID, leases.get(0).getId());
+
+        gate.blocked = false;
+        assertTrue(gate.lost.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        // 等待 worker 处理续约结果
+        Thread.sleep(200);
+        return leases.get(0);
+    }
+
+    /**
+     * worker b 上报完成，之后 worker a 领取不到作品并退出，且不会上报已失效的租约
+     */
+    private void finishElsewhere(ArtworkLease lease) throws Exception {
+        CoordinatorClient other = new CoordinatorClient("http://127.0.0.1:" + server.getPort(), "b");
+        assertEquals(1, other.complete(Collections.singletonMap(lease, 1), Collections.emptyList()));
+        server.setDiscoveryFinished(true);
+        workerThread.join(TIMEOUT);
+        assertFalse(workerThread.isAlive());
+    }
+
+    private SpiderConfig config(String worker) {
+        Map<String, Object> cluster = new LinkedHashMap<>();
+        cluster.put("role", "worker");
+        cluster.put("coordinator", gate.url);
+        cluster.put("workerName", worker);
+        cluster.put("leaseTimeout", LEASE_TIMEOUT);
+        cluster.put("maxInFlight", 4);
+        Map<String, Object> pipeline = new LinkedHashMap<>();
+        pipeline.put("resolvers", 1);
+
+        YamlConfig yaml = new YamlConfig("config.yaml");
+        yaml.map.put("startPage", "https://www.pixiv.net/ranking.php");
+        yaml.map.put("imgSavePath", tempDir.resolve("images").toString());
+        yaml.map.put("cluster", cluster);
+        yaml.map.put("pipeline", pipeline);
+        return SpiderConfig.of(yaml, tempDir.toString() + File.separator);
+    }
+
+    private static void await(CountDownLatch latch) throws IOException {
+        try {
+            latch.await(TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("下载被中断");
+        }
+    }
+
+    /**
+     * 不访问网络的解析器，由各个测试覆盖解析与下载
+     */
+    private static class FakeResolver extends PageResolver {
+        FakeResolver(SpiderConfig config) {
+            super(config, null, new RequestPolicy(config));
+        }
+    }
+
+    /**
+     * 转发 worker 的请求到协调服务，blocked 时拒绝续约请求，模拟 worker 与协调服务之间的网络中断
+     */
+    private static class RenewGate {
+
+        private final HttpServer proxy;
+        private final HttpClient client = HttpClient.newHttpClient();
+        private final String url;
+        private volatile boolean blocked;
+
+        /**
+         * 拒绝所有请求，模拟协调节点无法连接
+         */
+        private volatile boolean down;
+
+        /**
+         * 协调服务返回了失效的租约
+         */
+        private final CountDownLatch lost = new CountDownLatch(1);
+
+        RenewGate(String target) throws IOException {
+            proxy = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            proxy.createContext("/", exchange -> {
+                String path = exchange.getRequestURI().getPath();
+                byte[] body;
+                int status;
+                if (down || blocked && CoordinatorServer.RENEW.equals(path)) {
+                    status = 503;
+                    body = new byte[0];
+                } else {
+                    HttpRequest request = HttpRequest.newBuilder(URI.create(target + path))
+                            .header("Content-Type", "application/json; charset=utf-8")
+                            .POST(HttpRequest.BodyPublishers.ofByteArray(exchange.getRequestBody().readAllBytes()))
+                            .build();
+                    try {
+                        HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+                        status = response.statusCode();
+                        body = response.body();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        status = 503;
+                        body = new byte[0];
+                    }
+                    if (CoordinatorServer.RENEW.equals(path) && status == 200) {
+                        JSONArray ids = JSON.parseObject(body).getJSONArray("lost");
+                        if (ids != null && !ids.isEmpty()) {
+                            lost.countDown();
+                        }
+                    }
+                }
+                exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            proxy.start();
+            url = "http://127.0.0.1:" + proxy.getAddress().getPort();
+        }
+
+        void close() {
+            proxy.stop(0);
+        }
+    }
+}
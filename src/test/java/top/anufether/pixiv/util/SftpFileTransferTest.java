@@ -0,0 +1,155 @@
+package top.anufether.pixiv.util;
+
+import org.apache.sshd.common.config.keys.KeyUtils;
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.sftp.server.SftpSubsystemFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import top.anufether.pixiv.config.SpiderConfig;
+import top.anufether.pixiv.config.YamlConfig;
+import top.anufether.pixiv.dao.DatabaseManager;
+import top.anufether.pixiv.store.ImageLayout;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @Project: pixiv-spider
+ * @Package: top.anufether.pixiv
+ * @Author: anufether
+ * @Create: 2024/9/2 10:20
+ * @Description: Sftp 上传测试，使用本机的内嵌 SSH 服务器
+ * @History: modify
+ * * 1900-01-01 12:00:00 modified by xxx
+ **/
+class SftpFileTransferTest {
+
+    private static final String USER = "pixiv";
+    private static final String PASSWORD = "secret";
+    private static final long TIMEOUT = 30;
+
+    @TempDir
+    Path tempDir;
+
+    private SshServer server;
+    private Path remoteRoot;
+    private File localDir;
+    private DatabaseManager databaseManager;
+    private SftpFileTransfer transfer;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        remoteRoot = Files.createDirectories(tempDir.resolve("remote"));
+        localDir = Files.createDirectories(tempDir.resolve("images")).toFile();
+
+        server = SshServer.setUpDefaultServer();
+        server.setHost("127.0.0.1");
+        server.setPort(0);
+        // JSch 0.1.55 不支持 rsa-sha2 签名，使用 EC 主机密钥
+        SimpleGeneratorHostKeyProvider hostKey = new SimpleGeneratorHostKeyProvider(tempDir.resolve("host.key"));
+        hostKey.setAlgorithm(KeyUtils.EC_ALGORITHM);
+        server.setKeyPairProvider(hostKey);
+        server.setPasswordAuthenticator((user, password, session) -> USER.equals(user) && PASSWORD.equals(password));
+        server.setFileSystemFactory(new VirtualFileSystemFactory(remoteRoot));
+        server.setSubsystemFactories(Collections.singletonList(new SftpSubsystemFactory()));
+        server.start();
+
+        databaseManager = new DatabaseManager();
+        databaseManager.setJarPath(tempDir.toString() + File.separator);
+        databaseManager.load();
+
+        transfer = new SftpFileTransfer(config(server.getPort()), databaseManager);
+        transfer.setImageLayout(new ImageLayout(localDir, ImageLayout.Mode.SHARDED));
+        transfer.start();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        transfer.close();
+        databaseManager.close();
+        server.stop(true);
+    }
+
+    @Test
+    void uploadsIntoLayoutFoldersAndRecordsFile() throws Exception {
+        File file = image("123456789_p0.jpg", "first page");
+
+        assertTrue(transfer.submit(file).get(TIMEOUT, TimeUnit.SECONDS));
+
+        Path remote = remoteRoot.resolve("upload/123/456/123456789_p0.jpg");
+        assertEquals("first page", new String(Files.readAllBytes(remote), StandardCharsets.UTF_8));
+        assertFalse(Files.exists(remote.resolveSibling("123456789_p0.jpg.part")));
+        assertTrue(databaseManager.isUploaded(file.getName(), file.length()));
+        assertEquals(1, transfer.getUploadedFiles().sum());
+
+        // 已记录的文件不再上传
+        assertTrue(transfer.submit(file).get(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(1, transfer.getUploadedFiles().sum());
+        assertEquals(1, transfer.getSkippedFiles().sum());
+    }
+
+    @Test
+    void skipsRemoteFileWithSameSize() throws Exception {
+        File file = image("987654321_p0.png", "same size");
+        Path remote = Files.createDirectories(remoteRoot.resolve("upload/987/654")).resolve(file.getName());
+        Files.write(remote, "SAME SIZE".getBytes(StandardCharsets.UTF_8));
+
+        assertTrue(transfer.submit(file).get(TIMEOUT, TimeUnit.SECONDS));
+
+        assertEquals("SAME SIZE", new String(Files.readAllBytes(remote), StandardCharsets.UTF_8));
+        assertEquals(0, transfer.getUploadedFiles().sum());
+        assertTrue(databaseManager.isUploaded(file.getName(), file.length()));
+    }
+
+    @Test
+    void submitAfterCloseReturnsFailedFuture() throws Exception {
+        File file = image("111222333_p0.jpg", "too late");
+        transfer.close();
+
+        CompletableFuture<Boolean> future = transfer.submit(file);
+
+        assertTrue(future.isCompletedExceptionally());
+        ExecutionException e = assertThrows(ExecutionException.class, future::get);
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+        assertEquals(0, transfer.getInFlight().get());
+        assertFalse(Files.exists(remoteRoot.resolve("upload/111/222/111222333_p0.jpg")));
+    }
+
+    private File image(String name, String content) throws Exception {
+        File file = new File(localDir, name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private SpiderConfig config(int port) {
+        Map<String, Object> ssh = new LinkedHashMap<>();
+        ssh.put("enabled", true);
+        ssh.put("remoteHost", "127.0.0.1");
+        ssh.put("remotePort", port);
+        ssh.put("userName", USER);
+        ssh.put("password", PASSWORD);
+        ssh.put("remoteDir", "upload");
+        ssh.put("sessions", 1);
+        ssh.put("channels", 2);
+
+        YamlConfig yaml = new YamlConfig("config.yaml");
+        yaml.map.put("startPage", "https://www.pixiv.net/");
+        yaml.map.put("imgSavePath", localDir.getAbsolutePath());
+        yaml.map.put("ssh", ssh);
+        return SpiderConfig.of(yaml, tempDir.toString() + File.separator);
+    }
+}